@@ -16,6 +16,8 @@ import javafx.stage.Stage;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.sound.sampled.LineUnavailableException;
@@ -247,7 +249,12 @@ public class App extends Application {
 
     private void loadHistoryForPeer(String peerName) {
         new Thread(() -> {
-            var msgs = db.loadConversationAsc(myName, peerName, 500);
+            // 500 mục mới nhất của timeline (mới nhất trước), hiển thị theo thứ tự thời gian
+            List<Message> msgs = new ArrayList<>();
+            db.streamConversationTimeline(myName, peerName, null, 500, item -> {
+                if (item instanceof Message m) msgs.add(m);
+            });
+            Collections.reverse(msgs);
             Platform.runLater(() -> {
                 messagesBox.getChildren().clear();
                 for (Message m : msgs) {
@@ -390,6 +397,7 @@ public class App extends Application {
     @Override
     public void stop() throws Exception {
         if (peer != null) peer.shutdown();
+        db.close();
         super.stop();
     }
 }
@@ -99,6 +99,12 @@ public class AppTestUI extends Application {
         stage.setScene(new Scene(root, 1000, 700));
         stage.centerOnScreen();
     }
+    @Override
+    public void stop() throws Exception {
+        if (chatDb != null) chatDb.close();
+        super.stop();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -0,0 +1,110 @@
+package org.example.peer_chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed store for received files: each distinct content is kept
+ * once as {@code <root>/ab/cd/<sha256><.ext>}, where {@code ab} and {@code cd}
+ * are the first two bytes of the hash. The extension of the original file
+ * name is kept so images and documents still open with the right program.
+ */
+public class BlobStore {
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final Pattern EXT = Pattern.compile("\\.[A-Za-z0-9]{1,10}");
+
+    private final Path root;
+
+    public BlobStore(Path root) {
+        this.root = root;
+    }
+
+    public static boolean isHash(String s) {
+        return s != null && HASH.matcher(s).matches();
+    }
+
+    /** Hex SHA-256 of the file content. */
+    public static String sha256(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /** @return the stored file for this hash, or null if the content is not here. */
+    public File find(String hash) {
+        if (!isHash(hash)) return null;
+        Path dir = shard(hash);
+        if (!Files.isDirectory(dir)) return null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, hash + "*")) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (name.length() == hash.length() || name.charAt(hash.length()) == '.') return p.toFile();
+            }
+        } catch (IOException e) {
+            System.err.println("[BlobStore] " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Move {@code source} into the store under {@code hash}. If the content is
+     * already stored, {@code source} is deleted and the existing blob returned.
+     */
+    public synchronized File put(Path source, String hash, String filename) throws IOException {
+        if (!isHash(hash)) throw new IllegalArgumentException("Bad hash " + hash);
+        File existing = find(hash);
+        if (existing != null) {
+            Files.deleteIfExists(source);
+            return existing;
+        }
+        Path dir = shard(hash);
+        Files.createDirectories(dir);
+        Path target = dir.resolve(hash + extension(filename));
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target.toFile();
+    }
+
+    private Path shard(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+    }
+
+    private static String extension(String filename) {
+        if (filename == null) return "";
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0) return "";
+        String ext = filename.substring(dot);
+        return EXT.matcher(ext).matches() ? ext.toLowerCase() : "";
+    }
+}
@@ -7,6 +7,7 @@ public class CallRecord implements ChatItem {
     private final long duration; // giây
     private final boolean success;
     private final boolean video; // true = video call, false = voice call
+    private volatile long id; // row id trong call_history, 0 nếu chưa lưu
 
     public CallRecord(String fromUser, String toUser,
                       long startTs, long duration, boolean success, boolean video) {
@@ -26,4 +27,9 @@ public class CallRecord implements ChatItem {
 
     @Override
     public long getTimestamp() { return startTs; }
+
+    @Override
+    public long getId() { return id; }
+
+    public void setId(long id) { this.id = id; }
 }
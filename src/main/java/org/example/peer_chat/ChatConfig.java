@@ -0,0 +1,135 @@
+package org.example.peer_chat;
+
+/**
+ * Tunables read from JVM system properties, e.g.
+ * {@code -Dpeerchat.transport=nio}. Defaults keep the original behaviour.
+ */
+public final class ChatConfig {
+
+    private ChatConfig() {
+    }
+
+    /** Inbound transport of MessageHandler: "blocking" (thread per connection) or "nio". */
+    public static final String TRANSPORT = System.getProperty("peerchat.transport", "blocking");
+
+    /** Number of selector threads used by the NIO transport. */
+    public static final int NIO_IO_THREADS = Integer.getInteger("peerchat.nio.ioThreads", 2);
+
+    /** Worker threads running message/file callbacks for the NIO transport. */
+    public static final int NIO_WORKER_THREADS = Integer.getInteger("peerchat.nio.workerThreads", 4);
+
+    /** Frames queued per connection before the NIO transport stops reading from it. */
+    public static final int NIO_MAX_PENDING_FRAMES = Integer.getInteger("peerchat.nio.maxPendingFrames", 256);
+
+    /**
+     * Largest frame body accepted on a connection. Bigger messages are sent as
+     * FRAGMENT frames of at most this size; peers must agree on the value.
+     */
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("peerchat.maxFrameBytes", 256 * 1024);
+
+    /** Largest message that is reassembled from fragments; larger ones are dropped. */
+    public static final int MAX_MESSAGE_BYTES = Integer.getInteger("peerchat.maxMessageBytes", 16 * 1024 * 1024);
+
+    /** Chunk size of file transfers; each chunk is checksummed and resumable on its own. */
+    public static final int FILE_CHUNK_BYTES = Integer.getInteger("peerchat.fileChunkBytes", 1024 * 1024);
+
+    /** Largest incoming file that is accepted; larger offers get FILE_REJECT. */
+    public static final long MAX_FILE_BYTES = Long.getLong("peerchat.maxFileBytes", 8L * 1024 * 1024 * 1024);
+
+    /** How many times a broken file transfer is resumed before giving up. */
+    public static final int FILE_RESUME_ATTEMPTS = Integer.getInteger("peerchat.fileResumeAttempts", 5);
+
+    /** Parallel connections used to send one large file; 1 sends everything on the normal connection. */
+    public static final int FILE_TRANSFER_LANES = Integer.getInteger("peerchat.fileLanes", 1);
+
+    /** Files smaller than this always use a single connection. */
+    public static final long FILE_PARALLEL_MIN_BYTES = Long.getLong("peerchat.fileParallelMinBytes", 8L * 1024 * 1024);
+
+    /**
+     * Group files of at least FILE_RELAY_MIN_BYTES are sent to this many
+     * members, who forward them down a tree to the rest; 0 sends every copy
+     * from the sender.
+     */
+    public static final int FILE_RELAY_FANOUT = Integer.getInteger("peerchat.fileRelayFanout", 2);
+
+    /** Smaller group files are sent directly to every member. */
+    public static final long FILE_RELAY_MIN_BYTES = Long.getLong("peerchat.fileRelayMinBytes", 8L * 1024 * 1024);
+
+    /** How long one send to one group member may take before it is cancelled. */
+    public static final int GROUP_SEND_TIMEOUT_MS = Integer.getInteger("peerchat.groupSendTimeoutMs", 5_000);
+
+    /**
+     * How long a file broadcast waits for one recipient, for its handshake or
+     * to take the next chunk, before dropping it and resuming it on its own.
+     */
+    public static final int FILE_STALL_TIMEOUT_MS = Integer.getInteger("peerchat.fileStallTimeoutMs", 15_000);
+
+    /** Attempts per group member before its delivery is reported as failed. */
+    public static final int GROUP_SEND_ATTEMPTS = Integer.getInteger("peerchat.groupSendAttempts", 3);
+
+    /** Pause before a group send is retried, multiplied by the attempt number. */
+    public static final int GROUP_SEND_RETRY_MS = Integer.getInteger("peerchat.groupSendRetryMs", 1_000);
+
+    /**
+     * A discovered peer is dropped after this many HELLOs in a row (sent every
+     * 2 s) are missed, even if it never said SYSTEM_OFFLINE.
+     */
+    public static final int PEER_TIMEOUT_HELLOS = Integer.getInteger("peerchat.peerTimeoutHellos", 3);
+
+    /** Application data directory; received files live in its "blobs" subfolder. */
+    public static final String DATA_DIR = System.getProperty("peerchat.dataDir", "data");
+
+    /** Directory holding partial incoming files (.part) and their chunk bitmaps. */
+    public static final String TRANSFER_DIR = System.getProperty("peerchat.transferDir", "transfers");
+
+    /** Read-only SQLite connections kept open by ChatDb next to its single writer. */
+    public static final int DB_READERS = Integer.getInteger("peerchat.dbReaders", 4);
+
+    /** Inserts waiting for the write-behind thread; producers block when it is full. */
+    public static final int DB_WRITE_QUEUE_CAPACITY = Integer.getInteger("peerchat.dbWriteQueue", 10_000);
+
+    /** Most rows committed in one write-behind transaction. */
+    public static final int DB_WRITE_BATCH = Integer.getInteger("peerchat.dbWriteBatch", 256);
+
+    /** How long the write-behind thread waits for a batch to fill before committing. */
+    public static final int DB_WRITE_FLUSH_MS = Integer.getInteger("peerchat.dbWriteFlushMs", 5);
+
+    /** Old rows added to the search index per write-behind transaction while it is built in the background. */
+    public static final int FTS_BACKFILL_BATCH = Integer.getInteger("peerchat.ftsBackfillBatch", 2_000);
+
+    /** Messages listed under the sidebar search box. */
+    public static final int SEARCH_RESULTS = Integer.getInteger("peerchat.searchResults", 20);
+
+    /** History items loaded when a chat opens and each time the user scrolls to the top. */
+    public static final int HISTORY_PAGE_SIZE = Integer.getInteger("peerchat.historyPageSize", 50);
+
+    /** Newest items of each conversation kept in memory by PeerHandle; 0 disables the cache. */
+    public static final int CONVERSATION_CACHE_DEPTH = Integer.getInteger("peerchat.conversationCacheDepth",
+            HISTORY_PAGE_SIZE);
+
+    /** Items cached over all conversations; the least recently used conversations are dropped beyond it. */
+    public static final int CONVERSATION_CACHE_ITEMS = Integer.getInteger("peerchat.conversationCacheItems", 5_000);
+
+    /** On-disk cache of image previews, one PNG per content hash. */
+    public static final String THUMB_DIR = System.getProperty("peerchat.thumbDir", DATA_DIR + "/thumbs");
+
+    /** Size limit of THUMB_DIR; the least recently used previews are deleted beyond it. */
+    public static final long THUMB_CACHE_BYTES = Long.getLong("peerchat.thumbCacheBytes", 64L * 1024 * 1024);
+
+    /** Decoded previews kept in memory. */
+    public static final int THUMB_MEMORY_ENTRIES = Integer.getInteger("peerchat.thumbMemoryEntries", 200);
+
+    /** Run background tasks on virtual threads; false falls back to a bounded platform pool. */
+    public static final boolean VIRTUAL_THREADS = Boolean.parseBoolean(
+            System.getProperty("peerchat.virtualThreads", "true"));
+
+    /** Maximum platform threads when virtual threads are disabled. */
+    public static final int PLATFORM_POOL_SIZE = Integer.getInteger("peerchat.platformPoolSize", 256);
+
+    /** Tasks waiting for a platform thread when all of them are busy. */
+    public static final int PLATFORM_QUEUE_SIZE = Integer.getInteger("peerchat.platformQueueSize", 1_024);
+
+    public static boolean useNioTransport() {
+        return "nio".equalsIgnoreCase(TRANSPORT);
+    }
+}
@@ -2,21 +2,45 @@ package org.example.peer_chat;
 
 import java.security.MessageDigest;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class ChatDb {
 
-    private final String url;
+    private final SqlitePool pool;
+    // tin nhắn, group message, group file được ghi nền theo batch
+    private final WriteBehindQueue writes;
+    private volatile boolean closed = false;
 
     public ChatDb(String dbPath) {
-        this.url = "jdbc:sqlite:" + dbPath;
+        try {
+            this.pool = new SqlitePool("jdbc:sqlite:" + dbPath);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot open database " + dbPath, e);
+        }
         init();
+        this.writes = new WriteBehindQueue(pool);
+        Workers.startDedicated("fts-backfill", this::backfillSearchIndex); // chạy lâu trên DB lớn: không giữ thread của pool
+    }
+
+    /** Wait until every message, group message and group file inserted so far is committed. */
+    public void flush() {
+        writes.flush();
+    }
+
+    /** Commit pending inserts and close the pooled connections; call once when the app exits. */
+    public void close() {
+        closed = true;
+        writes.close();
+        pool.close();
     }
 
     private void init() {
@@ -77,7 +101,7 @@ public class ChatDb {
                 + "ts INTEGER NOT NULL"
                 + ");";
 
-        try (Connection c = DriverManager.getConnection(url); Statement s = c.createStatement()) {
+        try (SqlitePool.Lease c = pool.write(); Statement s = c.createStatement()) {
             s.execute(sqlMessages);
             s.execute(sqlCalls);
             s.execute(sqlUser);
@@ -85,11 +109,166 @@ public class ChatDb {
             s.execute(sqlGroupMembers);
             s.execute(sqlGroupMessages);
             s.execute(sqlGroupFiles);
+            migrate(c);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    /** Schema version stored in PRAGMA user_version; bump it with each new step in {@link #migrate}. */
+    private static final int SCHEMA_VERSION = 3;
+
+    /**
+     * Bring an existing database up to {@link #SCHEMA_VERSION}. Each step runs
+     * in its own transaction together with the user_version update, so a crash
+     * halfway leaves the database at the previous version.
+     */
+    private void migrate(SqlitePool.Lease c) throws SQLException {
+        int version;
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        Connection conn = c.connection();
+        while (version < SCHEMA_VERSION) {
+            int next = version + 1;
+            conn.setAutoCommit(false);
+            try (Statement s = c.createStatement()) {
+                switch (next) {
+                    case 1:
+                        // file nhận được nằm trong BlobStore, row giữ hash nội dung
+                        addColumnIfMissing(conn, "messages", "file_hash", "TEXT");
+                        addColumnIfMissing(conn, "group_files", "file_hash", "TEXT");
+                        break;
+                    case 2:
+                        // khóa hội thoại 1:1 chuẩn hóa, để (a,b) và (b,a) dùng chung một index
+                        addColumnIfMissing(conn, "messages", "conv_key", "TEXT");
+                        addColumnIfMissing(conn, "call_history", "conv_key", "TEXT");
+                        backfillConvKeys(c, "messages");
+                        backfillConvKeys(c, "call_history");
+                        s.execute("CREATE INDEX IF NOT EXISTS idx_messages_conv_ts ON messages(conv_key, ts, id)");
+                        s.execute("CREATE INDEX IF NOT EXISTS idx_calls_conv_ts ON call_history(conv_key, timestamp)");
+                        s.execute("CREATE INDEX IF NOT EXISTS idx_group_messages_group_ts ON group_messages(group_id, ts, id)");
+                        s.execute("CREATE INDEX IF NOT EXISTS idx_group_files_group_ts ON group_files(group_id, ts, id)");
+                        s.execute("CREATE INDEX IF NOT EXISTS idx_group_members_member ON group_members(member_name, group_id)");
+                        break;
+                    case 3:
+                        // full-text search: index FTS5 trỏ về bảng gốc, dòng mới được index bằng trigger
+                        // trong cùng transaction; dòng cũ được index dần ở background (backfillSearchIndex)
+                        s.execute("CREATE TABLE IF NOT EXISTS fts_backfill ("
+                                + "tbl TEXT PRIMARY KEY, next_id INTEGER NOT NULL, upto INTEGER NOT NULL)");
+                        createSearchIndex(s, "messages", "new.is_file = 0");
+                        createSearchIndex(s, "group_messages", "1");
+                        break;
+                    default:
+                        throw new IllegalStateException("No migration to schema " + next);
+                }
+                s.execute("PRAGMA user_version = " + next);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            System.out.println("[ChatDb] Migrated schema to version " + next);
+            version = next;
+        }
+    }
+
+    /**
+     * FTS5 index over {@code table}.content. Rows are only ever inserted into
+     * the chat tables, so an insert trigger is all it takes to keep it current.
+     * Rows up to the current max id are left to {@link #backfillSearchIndex()}.
+     */
+    private static void createSearchIndex(Statement s, String table, String when) throws SQLException {
+        // remove_diacritics: "tên" cũng tìm được bằng "ten"
+        s.execute("CREATE VIRTUAL TABLE IF NOT EXISTS " + table + "_fts USING fts5(content, content='" + table
+                + "', content_rowid='id', tokenize='unicode61 remove_diacritics 2')");
+        s.execute("CREATE TRIGGER IF NOT EXISTS " + table + "_fts_ai AFTER INSERT ON " + table + " WHEN " + when
+                + " BEGIN INSERT INTO " + table + "_fts(rowid, content) VALUES (new.id, new.content); END");
+        s.execute("INSERT OR IGNORE INTO fts_backfill (tbl, next_id, upto) SELECT '" + table
+                + "', 0, IFNULL(MAX(id), 0) FROM " + table);
+    }
+
+    /**
+     * Index the history that existed before the search index, a chunk of
+     * {@link ChatConfig#FTS_BACKFILL_BATCH} ids per write-behind transaction,
+     * so a large database is searchable without a long pause at startup.
+     * Progress is stored in fts_backfill and resumes after a restart.
+     */
+    private void backfillSearchIndex() {
+        AtomicBoolean more = new AtomicBoolean(true);
+        long indexed = 0;
+        try {
+            while (more.get() && !closed) {
+                writes.submit(c -> more.set(indexChunk(c)));
+                writes.flush();
+                indexed++;
+            }
+        } catch (IllegalStateException e) {
+            return; // ChatDb đã đóng, lần mở sau chạy tiếp
+        }
+        if (indexed > 1)
+            System.out.println("[ChatDb] Search index built (" + (indexed - 1) + " chunks)");
+    }
+
+    private static boolean indexChunk(SqlitePool.Lease c) throws SQLException {
+        String table;
+        long next;
+        long upto;
+        try (ResultSet rs = c.prepare("SELECT tbl, next_id, upto FROM fts_backfill WHERE next_id < upto LIMIT 1")
+                .executeQuery()) {
+            if (!rs.next())
+                return false;
+            table = rs.getString(1);
+            next = rs.getLong(2);
+            upto = rs.getLong(3);
+        }
+        long end = Math.min(upto, next + Math.max(1, ChatConfig.FTS_BACKFILL_BATCH));
+        String filter = "messages".equals(table) ? " AND is_file = 0" : "";
+        PreparedStatement p = c.prepare("INSERT INTO " + table + "_fts(rowid, content) SELECT id, content FROM "
+                + table + " WHERE id > ? AND id <= ?" + filter);
+        p.setLong(1, next);
+        p.setLong(2, end);
+        p.executeUpdate();
+        PreparedStatement done = c.prepare("UPDATE fts_backfill SET next_id=? WHERE tbl=?");
+        done.setLong(1, end);
+        done.setString(2, table);
+        done.executeUpdate();
+        return true;
+    }
+
+    private static void backfillConvKeys(SqlitePool.Lease c, String table) throws SQLException {
+        PreparedStatement update = c.prepare("UPDATE " + table + " SET conv_key=? WHERE id=?");
+        try (Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT id, from_user, to_user FROM " + table + " WHERE conv_key IS NULL")) {
+            while (rs.next()) {
+                update.setString(1, convKey(rs.getString(2), rs.getString(3)));
+                update.setLong(2, rs.getLong(1));
+                update.addBatch();
+            }
+        }
+        update.executeBatch();
+    }
+
+    /** Key of the 1:1 conversation between {@code a} and {@code b}, the same whichever one sent. */
+    static String convKey(String a, String b) {
+        if (a == null || b == null) return null;
+        return a.compareTo(b) <= 0 ? a + '\n' + b : b + '\n' + a;
+    }
+
+    private static void addColumnIfMissing(Connection c, String table, String column, String type)
+            throws SQLException {
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return;
+            }
+        }
+        try (Statement s = c.createStatement()) {
+            s.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+
     private String hashPassword(String password) throws Exception {
         MessageDigest md = MessageDigest.getInstance("SHA-256");
         byte[] hash = md.digest(password.getBytes("UTF-8"));
@@ -102,7 +281,8 @@ public class ChatDb {
 
     public boolean registerUser(String username, String password) {
         String sql = "INSERT INTO users(username, password_hash) VALUES (?, ?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, username);
             p.setString(2, hashPassword(password));
             p.executeUpdate();
@@ -118,7 +298,8 @@ public class ChatDb {
 
     public boolean loginUser(String username, String password) {
         String sql = "SELECT password_hash FROM users WHERE username=?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, username);
             try (ResultSet rs = p.executeQuery()) {
                 if (rs.next()) {
@@ -134,34 +315,47 @@ public class ChatDb {
         }
     }
 
+    /**
+     * Queued: the row is committed by the write-behind thread, see {@link #flush()}.
+     * The row id is set on {@code m} once it is written.
+     */
     public void insertMessage(Message m) {
-        String sql = "INSERT INTO messages (from_user,to_user,content,is_file,file_path,ts) VALUES (?,?,?,?,?,?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, m.getFromUser());
-            p.setString(2, m.getToUser());
-            p.setString(3, m.getContent());
-            p.setInt(4, m.isFile() ? 1 : 0);
-            p.setString(5, m.getFilePath());
-
-            // Dùng timestamp của Message nếu có, không thì mới dùng currentTimeMillis
-            long timestamp = m.getTimestamp();
-            if (timestamp == 0) {
-                timestamp = System.currentTimeMillis();
-            }
+        String sql = "INSERT INTO messages (from_user,to_user,content,is_file,file_path,ts,file_hash,conv_key) "
+                + "VALUES (?,?,?,?,?,?,?,?)";
+        // chụp giá trị ngay lúc gọi, Message có thể bị sửa sau đó
+        String from = m.getFromUser();
+        String to = m.getToUser();
+        String content = m.getContent();
+        boolean isFile = m.isFile();
+        String filePath = m.getFilePath();
+        // Dùng timestamp của Message nếu có, không thì mới dùng currentTimeMillis
+        long timestamp = m.getTimestamp() != 0 ? m.getTimestamp() : System.currentTimeMillis();
+        String fileHash = m.getFileHash();
+        writes.submit(c -> {
+            PreparedStatement p = c.prepare(sql);
+            p.setString(1, from);
+            p.setString(2, to);
+            p.setString(3, content);
+            p.setInt(4, isFile ? 1 : 0);
+            p.setString(5, filePath);
             p.setLong(6, timestamp);
-
+            p.setString(7, fileHash);
+            p.setString(8, convKey(from, to));
             p.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+            m.setId(lastRowId(c));
+        });
+    }
+
+    private static long lastRowId(SqlitePool.Lease c) throws SQLException {
+        try (ResultSet rs = c.prepare("SELECT last_insert_rowid()").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
         }
     }
 
     public List<String> getAllUsers() {
         List<String> users = new ArrayList<>();
         String sql = "SELECT username FROM users";
-        try (Connection c = DriverManager.getConnection(url);
-                Statement s = c.createStatement();
-                ResultSet rs = s.executeQuery(sql)) {
+        try (SqlitePool.Lease c = pool.read(); ResultSet rs = c.prepare(sql).executeQuery()) {
             while (rs.next()) {
                 users.add(rs.getString("username"));
             }
@@ -172,86 +366,141 @@ public class ChatDb {
     }
 
     public void insertCallRecord(CallRecord record) {
-        String sql = "INSERT INTO call_history (from_user, to_user, is_video, timestamp, duration_seconds, accepted) "
-                + "VALUES (?, ?, ?, ?, ?, ?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        String sql = "INSERT INTO call_history (from_user, to_user, is_video, timestamp, duration_seconds, accepted, conv_key) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, record.getFromUser());
             p.setString(2, record.getToUser());
             p.setInt(3, record.isVideo() ? 1 : 0);
             p.setLong(4, record.getTimestamp()); // startTs
             p.setLong(5, record.getDuration()); // duration in seconds
             p.setInt(6, record.isSuccess() ? 1 : 0); // success -> accepted
+            p.setString(7, convKey(record.getFromUser(), record.getToUser()));
             p.executeUpdate();
+            record.setId(lastRowId(c));
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public List<CallRecord> loadCallHistory(String me, String peer, int limit) {
-        List<CallRecord> out = new ArrayList<>();
-        String sql = "SELECT from_user, to_user, is_video, timestamp, duration_seconds, accepted "
-                + "FROM call_history "
-                + "WHERE (from_user=? AND to_user=?) OR (from_user=? AND to_user=?) "
-                + "ORDER BY timestamp ASC LIMIT ?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, me);
-            p.setString(2, peer);
-            p.setString(3, peer);
-            p.setString(4, me);
-            p.setInt(5, limit);
+    // ==== Timeline (keyset pages, mới nhất trước) ====
+    // Hai bảng của một cuộc trò chuyện được gộp bằng UNION ALL và sắp xếp trong SQLite theo
+    // (ts, src, id) giảm dần, src = 0 cho tin nhắn / group message, 1 cho cuộc gọi / group file.
+    // Mỗi nhánh đã có index theo (key, ts, id) nên SQLite trộn hai luồng đã sắp xếp theo ts; chỉ những
+    // dòng trùng ts mới được sắp lại theo (src, id) trong một temp b-tree nhỏ.
+
+    static final String CONVERSATION_TIMELINE =
+            "SELECT 0 AS src, id, ts, from_user, to_user, content, is_file, file_path, file_hash, "
+            + "NULL, NULL, NULL FROM messages WHERE conv_key=? AND (ts, id) < (?, ?) "
+            + "UNION ALL "
+            + "SELECT 1 AS src, id, timestamp, from_user, to_user, NULL, NULL, NULL, NULL, "
+            + "is_video, duration_seconds, accepted FROM call_history WHERE conv_key=? AND (timestamp, id) < (?, ?) "
+            + "ORDER BY 3 DESC, 1 DESC, 2 DESC LIMIT ?";
+
+    static final String GROUP_TIMELINE =
+            "SELECT 0 AS src, id, ts, from_user, content, NULL, NULL FROM group_messages "
+            + "WHERE group_id=? AND (ts, id) < (?, ?) "
+            + "UNION ALL "
+            + "SELECT 1 AS src, id, ts, from_user, filename, file_path, file_hash FROM group_files "
+            + "WHERE group_id=? AND (ts, id) < (?, ?) "
+            + "ORDER BY 3 DESC, 1 DESC, 2 DESC LIMIT ?";
+
+    /**
+     * Stream up to {@code limit} items of the 1:1 conversation, newest first,
+     * all strictly older than {@code before} (null = start from the newest).
+     * Items are {@link Message}s and {@link CallRecord}s.
+     *
+     * @return number of items passed to {@code sink}
+     */
+    public int streamConversationTimeline(String me, String peer, ChatItem before, int limit,
+                                          Consumer<ChatItem> sink) {
+        flush();
+        int n = 0;
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(CONVERSATION_TIMELINE);
+            String key = convKey(me, peer);
+            bindTimelineBranches(p, key, before, before instanceof CallRecord);
+            p.setInt(7, limit);
             try (ResultSet rs = p.executeQuery()) {
                 while (rs.next()) {
-                    out.add(new CallRecord(
-                            rs.getString("from_user"),
-                            rs.getString("to_user"),
-                            rs.getLong("timestamp"), // startTs
-                            rs.getLong("duration_seconds"), // duration
-                            rs.getInt("accepted") == 1, // success
-                            rs.getInt("is_video") == 1 // video?
-                    ));
+                    if (rs.getInt(1) == 0) {
+                        Message m = new Message(rs.getString(4), rs.getString(5), rs.getString(6), rs.getInt(7) == 1,
+                                rs.getString(8));
+                        m.setId(rs.getLong(2));
+                        m.setTimestamp(rs.getLong(3));
+                        m.setFileHash(rs.getString(9));
+                        sink.accept(m);
+                    } else {
+                        CallRecord r = new CallRecord(rs.getString(4), rs.getString(5), rs.getLong(3), rs.getLong(11),
+                                rs.getInt(12) == 1, rs.getInt(10) == 1);
+                        r.setId(rs.getLong(2));
+                        sink.accept(r);
+                    }
+                    n++;
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return out;
+        return n;
     }
 
-    public List<Message> loadConversationAsc(String me, String peer, int limit) {
-        List<Message> out = new ArrayList<>();
-        String sql = "SELECT from_user,to_user,content,is_file,file_path,ts FROM messages "
-                + "WHERE (from_user=? AND to_user=?) OR (from_user=? AND to_user=?) "
-                + "ORDER BY ts ASC LIMIT ?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, me);
-            p.setString(2, peer);
-            p.setString(3, peer);
-            p.setString(4, me);
-            p.setInt(5, limit);
+    /**
+     * Like {@link #streamConversationTimeline} for a group: group messages and
+     * group files (as {@link Message}s with isFile set), newest first.
+     */
+    public int streamGroupTimeline(String groupId, ChatItem before, int limit, Consumer<ChatItem> sink) {
+        flush();
+        int n = 0;
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(GROUP_TIMELINE);
+            bindTimelineBranches(p, groupId, before, before instanceof Message m && m.isFile());
+            p.setInt(7, limit);
             try (ResultSet rs = p.executeQuery()) {
                 while (rs.next()) {
-                    String from = rs.getString(1);
-                    String to = rs.getString(2);
-                    String content = rs.getString(3);
-                    boolean isFile = rs.getInt(4) == 1;
-                    String fp = rs.getString(5);
-                    long timestamp = rs.getLong(6);
-                    Message msg = new Message(from, to, content, isFile, fp);
-                    msg.setTimestamp(timestamp); // Set timestamp cho Message
-                    out.add(msg);
+                    boolean isFile = rs.getInt(1) == 1;
+                    // toUser = null cho group; file: content = tên file
+                    Message m = new Message(rs.getString(4), null, rs.getString(5), isFile, rs.getString(6));
+                    m.setId(rs.getLong(2));
+                    m.setTimestamp(rs.getLong(3));
+                    m.setFileHash(rs.getString(7));
+                    sink.accept(m);
+                    n++;
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return out;
+        return n;
+    }
+
+    /**
+     * Bind both branches so that together they return the rows with
+     * (ts, src, id) < the cursor. {@code beforeInSecond}: the cursor item came
+     * from the src=1 table.
+     */
+    private static void bindTimelineBranches(PreparedStatement p, String key, ChatItem before, boolean beforeInSecond)
+            throws SQLException {
+        long ts = before == null ? Long.MAX_VALUE : before.getTimestamp();
+        long id = before == null ? Long.MAX_VALUE : before.getId();
+        // cùng ts: mọi dòng src=0 đứng trước cursor src=1; không dòng src=1 nào đứng trước cursor src=0
+        long firstBound = before == null || beforeInSecond ? Long.MAX_VALUE : id;
+        long secondBound = before == null ? Long.MAX_VALUE : beforeInSecond ? id : Long.MIN_VALUE;
+        p.setString(1, key);
+        p.setLong(2, ts);
+        p.setLong(3, firstBound);
+        p.setString(4, key);
+        p.setLong(5, ts);
+        p.setLong(6, secondBound);
     }
 
     // ==== Group chat helpers ====
 
     public void insertGroup(String groupId, String name, String owner) {
         String sql = "INSERT OR REPLACE INTO groups (id, name, owner) VALUES (?,?,?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             p.setString(2, name);
             p.setString(3, owner);
@@ -263,14 +512,24 @@ public class ChatDb {
 
     public void insertGroupMembers(String groupId, List<String> members) {
         String sql = "INSERT OR REPLACE INTO group_members (group_id, member_name) VALUES (?,?)";
-        try (Connection c = DriverManager.getConnection(url);
-                PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             for (String m : members) {
                 p.setString(1, groupId);
                 p.setString(2, m);
                 p.addBatch();
             }
-            p.executeBatch();
+            // cả batch trong một transaction thay vì một commit mỗi dòng
+            c.connection().setAutoCommit(false);
+            try {
+                p.executeBatch();
+                c.connection().commit();
+            } catch (SQLException e) {
+                c.connection().rollback();
+                throw e;
+            } finally {
+                c.connection().setAutoCommit(true);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -278,7 +537,8 @@ public class ChatDb {
 
     public void deleteGroup(String groupId) {
         String sql = "DELETE FROM groups WHERE id=?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             p.executeUpdate();
         } catch (SQLException e) {
@@ -289,7 +549,8 @@ public class ChatDb {
     public List<String> getGroupMembers(String groupId) {
         List<String> members = new ArrayList<>();
         String sql = "SELECT member_name FROM group_members WHERE group_id=?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             try (ResultSet rs = p.executeQuery()) {
                 while (rs.next()) {
@@ -304,8 +565,8 @@ public class ChatDb {
 
     public String getGroupOwner(String groupId) {
         String sql = "SELECT owner FROM groups WHERE id = ?";
-        try (Connection c = DriverManager.getConnection(url);
-                PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             try (ResultSet rs = p.executeQuery()) {
                 if (rs.next()) {
@@ -321,8 +582,8 @@ public class ChatDb {
     // Xóa 1 thành viên khỏi group
     public void removeGroupMember(String groupId, String member) {
         String sql = "DELETE FROM group_members WHERE group_id=? AND member_name=?";
-        try (Connection c = DriverManager.getConnection(url);
-                PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             p.setString(2, member);
             p.executeUpdate();
@@ -334,8 +595,8 @@ public class ChatDb {
     // Xóa group nếu không còn thành viên nào
     public void deleteGroupIfEmpty(String groupId) {
         String sql = "SELECT COUNT(*) FROM group_members WHERE group_id=?";
-        try (Connection c = DriverManager.getConnection(url);
-                PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             try (ResultSet rs = p.executeQuery()) {
                 if (rs.next() && rs.getInt(1) == 0) {
@@ -350,8 +611,8 @@ public class ChatDb {
     // Đổi tên group
     public void renameGroup(String groupId, String newName) {
         String sql = "UPDATE groups SET name=? WHERE id=?";
-        try (Connection c = DriverManager.getConnection(url);
-                PreparedStatement p = c.prepareStatement(sql)) {
+        try (SqlitePool.Lease c = pool.write()) {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, newName);
             p.setString(2, groupId);
             p.executeUpdate();
@@ -362,73 +623,93 @@ public class ChatDb {
 
     // ==== Group message history ====
 
-    public void insertGroupMessage(String groupId, String fromUser, String content) {
+    /**
+     * Queued like {@link #insertMessage(Message)}; ts is taken at call time.
+     *
+     * @return the row as it appears in {@link #streamGroupTimeline}
+     */
+    public Message insertGroupMessage(String groupId, String fromUser, String content) {
         String sql = "INSERT INTO group_messages (group_id, from_user, content, ts) VALUES (?,?,?,?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+        Message m = new Message(fromUser, null, content, false, null);
+        m.setTimestamp(System.currentTimeMillis());
+        writes.submit(c -> {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             p.setString(2, fromUser);
             p.setString(3, content);
-            p.setLong(4, System.currentTimeMillis());
+            p.setLong(4, m.getTimestamp());
             p.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public List<Message> loadGroupMessagesAsc(String groupId, int limit) {
-        List<Message> out = new ArrayList<>();
-        String sql = "SELECT from_user, content, ts FROM group_messages WHERE group_id=? ORDER BY ts ASC LIMIT ?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, groupId);
-            p.setInt(2, limit);
-            try (ResultSet rs = p.executeQuery()) {
-                while (rs.next()) {
-                    String from = rs.getString(1);
-                    String content = rs.getString(2);
-                    long ts = rs.getLong(3);
-                    // toUser = null, isFile=false, filePath=null cho group message
-                    Message m = new Message(from, null, content, false, null);
-                    m.setTimestamp(ts);
-                    out.add(m);
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return out;
+            m.setId(lastRowId(c));
+        });
+        return m;
     }
 
     // ==== Group file / image / voice history ====
 
-    public void insertGroupFile(String groupId, String fromUser, String filename, String filePath) {
-        String sql = "INSERT INTO group_files (group_id, from_user, filename, file_path, ts) VALUES (?,?,?,?,?)";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
+    public Message insertGroupFile(String groupId, String fromUser, String filename, String filePath) {
+        return insertGroupFile(groupId, fromUser, filename, filePath, null);
+    }
+
+    /** Queued like {@link #insertGroupMessage}; ts is taken at call time. */
+    public Message insertGroupFile(String groupId, String fromUser, String filename, String filePath, String fileHash) {
+        String sql = "INSERT INTO group_files (group_id, from_user, filename, file_path, ts, file_hash) VALUES (?,?,?,?,?,?)";
+        Message m = new Message(fromUser, null, filename, true, filePath);
+        m.setTimestamp(System.currentTimeMillis());
+        m.setFileHash(fileHash);
+        writes.submit(c -> {
+            PreparedStatement p = c.prepare(sql);
             p.setString(1, groupId);
             p.setString(2, fromUser);
             p.setString(3, filename);
             p.setString(4, filePath);
-            p.setLong(5, System.currentTimeMillis());
+            p.setLong(5, m.getTimestamp());
+            p.setString(6, fileHash);
             p.executeUpdate();
+            m.setId(lastRowId(c));
+        });
+        return m;
+    }
+
+    /**
+     * Trả về danh sách tất cả group (id,name,owner) mà user này là thành viên.
+     */
+    public List<GroupInfo> loadGroupsForUser(String username) {
+        List<GroupInfo> groups = new ArrayList<>();
+        String sql = "SELECT g.id, g.name, g.owner FROM groups g " +
+                "JOIN group_members gm ON g.id = gm.group_id " +
+                "WHERE gm.member_name = ? ORDER BY g.name ASC";
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(sql);
+            p.setString(1, username);
+            try (ResultSet rs = p.executeQuery()) {
+                while (rs.next()) {
+                    String id = rs.getString("id");
+                    String name = rs.getString("name");
+                    String owner = rs.getString("owner");
+                    groups.add(new GroupInfo(id, name, owner));
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return groups;
     }
 
-    public List<Message> loadGroupFilesAsc(String groupId, int limit) {
-        List<Message> out = new ArrayList<>();
-        String sql = "SELECT from_user, filename, file_path, ts FROM group_files WHERE group_id=? ORDER BY ts ASC LIMIT ?";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, groupId);
-            p.setInt(2, limit);
+    /**
+     * Thành viên của mọi group mà user này tham gia, groupId -> members, trong
+     * một query (dùng để nạp cache thành viên khi đăng nhập).
+     */
+    public Map<String, List<String>> loadGroupMembersForUser(String username) {
+        Map<String, List<String>> out = new HashMap<>();
+        String sql = "SELECT gm.group_id, gm.member_name FROM group_members gm " +
+                "JOIN group_members me ON me.group_id = gm.group_id " +
+                "WHERE me.member_name = ?";
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(sql);
+            p.setString(1, username);
             try (ResultSet rs = p.executeQuery()) {
                 while (rs.next()) {
-                    String from = rs.getString(1);
-                    String filename = rs.getString(2);
-                    String path = rs.getString(3);
-                    long ts = rs.getLong(4);
-                    Message m = new Message(from, null, filename, true, path);
-                    m.setTimestamp(ts);
-                    out.add(m);
+                    out.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(rs.getString(2));
                 }
             }
         } catch (SQLException e) {
@@ -437,27 +718,76 @@ public class ChatDb {
         return out;
     }
 
+    // ==== Search ====
+
+    private static final String SEARCH =
+            "SELECT * FROM (SELECT m.id, NULL, m.from_user, m.to_user, m.ts, "
+            + "snippet(messages_fts, 0, '[', ']', '…', 12), bm25(messages_fts) AS score "
+            + "FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid "
+            + "WHERE messages_fts MATCH ? AND (m.from_user = ? OR m.to_user = ?) "
+            + "ORDER BY score LIMIT ?) "
+            + "UNION ALL "
+            + "SELECT * FROM (SELECT g.id, g.group_id, g.from_user, NULL, g.ts, "
+            + "snippet(group_messages_fts, 0, '[', ']', '…', 12), bm25(group_messages_fts) AS score "
+            + "FROM group_messages_fts JOIN group_messages g ON g.id = group_messages_fts.rowid "
+            + "WHERE group_messages_fts MATCH ? "
+            + "AND g.group_id IN (SELECT group_id FROM group_members WHERE member_name = ?) "
+            + "ORDER BY score LIMIT ?) "
+            + "ORDER BY 7 LIMIT ?";
+
     /**
-     * Trả về danh sách tất cả group (id,name,owner) mà user này là thành viên.
+     * Full-text search over the 1:1 and group messages visible to {@code me},
+     * best matches first. Every word of {@code text} must appear; the last one
+     * also matches as a prefix, so results can follow the user's typing.
+     * History older than the search index is found once the background
+     * indexing has reached it.
      */
-    public List<GroupInfo> loadGroupsForUser(String username) {
-        List<GroupInfo> groups = new ArrayList<>();
-        String sql = "SELECT g.id, g.name, g.owner FROM groups g " +
-                "JOIN group_members gm ON g.id = gm.group_id " +
-                "WHERE gm.member_name = ? ORDER BY g.name ASC";
-        try (Connection c = DriverManager.getConnection(url); PreparedStatement p = c.prepareStatement(sql)) {
-            p.setString(1, username);
+    public List<SearchResult> search(String me, String text, int limit) {
+        List<SearchResult> out = new ArrayList<>();
+        String query = ftsQuery(text);
+        if (query == null || limit <= 0)
+            return out;
+        flush();
+        try (SqlitePool.Lease c = pool.read()) {
+            PreparedStatement p = c.prepare(SEARCH);
+            p.setString(1, query);
+            p.setString(2, me);
+            p.setString(3, me);
+            p.setInt(4, limit);
+            p.setString(5, query);
+            p.setString(6, me);
+            p.setInt(7, limit);
+            p.setInt(8, limit);
             try (ResultSet rs = p.executeQuery()) {
                 while (rs.next()) {
-                    String id = rs.getString("id");
-                    String name = rs.getString("name");
-                    String owner = rs.getString("owner");
-                    groups.add(new GroupInfo(id, name, owner));
+                    out.add(new SearchResult(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                            rs.getLong(5), rs.getString(6), rs.getDouble(7)));
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return groups;
+        return out;
+    }
+
+    /**
+     * Biến chuỗi người dùng gõ thành query FTS5 an toàn: mỗi từ thành một
+     * chuỗi trong ngoặc kép (dấu ", AND, NEAR... không còn là cú pháp), từ
+     * cuối khớp theo tiền tố. Null nếu không có từ nào.
+     */
+    static String ftsQuery(String text) {
+        if (text == null)
+            return null;
+        StringBuilder q = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            if (q.length() > 0)
+                q.append(' ');
+            q.append('"').append(word.replace("\"", "\"\"")).append('"');
+        }
+        if (q.length() == 0)
+            return null;
+        return q.append('*').toString();
     }
 }
@@ -3,4 +3,6 @@ package org.example.peer_chat;
 public interface ChatItem {
     long getTimestamp();
 
+    /** Row id in its history table; with the timestamp it orders items for keyset paging. */
+    long getId();
 }
@@ -0,0 +1,308 @@
+package org.example.peer_chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one long-lived TCP connection per peer address ("ip:port", same key as
+ * PeerHandle.cachedPeers) and reuses it for every frame.
+ *
+ * Frames on the wire are length-prefixed: [int length][body]. A FILE_CHUNK
+ * frame is followed by exactly the chunk's raw bytes. The remote side only
+ * writes in reply to a request (e.g. FILE_HAVE after FILE_OFFER), which the
+ * caller reads inside the same {@link #exchange}.
+ *
+ * Lane 0 carries chat and control frames only. File transfers use
+ * {@link #FILE_LANE} and up, their own connections, so a long upload never
+ * holds the connection a chat message or call signal needs.
+ *
+ * A broken connection is dropped and reopened once, transparently for the
+ * caller. Connections idle for longer than {@link #IDLE_TIMEOUT_MS} are closed
+ * by a background evictor.
+ */
+public class ConnectionManager {
+
+    static final int CONNECT_TIMEOUT_MS = 3000;
+    static final long IDLE_TIMEOUT_MS = 60_000;
+    // receiver gives up on a silent connection a bit later than the sender evicts it
+    static final int READ_TIMEOUT_MS = (int) (IDLE_TIMEOUT_MS * 2);
+    // only probe for a half-closed socket if it has been quiet for a while
+    private static final long STALE_CHECK_MS = 5_000;
+    private static final String LANE_SEPARATOR = "#";
+    // lane 0 chỉ mang frame ngắn: chờ lâu hơn mức này nghĩa là kết nối bị kẹt
+    static final long LOCK_TIMEOUT_MS = 10_000;
+
+    /** First lane of file transfers; parallel transfers use the lanes after it. */
+    public static final int FILE_LANE = 1;
+
+    public interface ConnectionTask<T> {
+        T run(Connection conn) throws IOException;
+    }
+
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public ConnectionManager() {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "conn-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, IDLE_TIMEOUT_MS / 4, IDLE_TIMEOUT_MS / 4,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Write one length-prefixed frame to the peer. */
+    public void send(String address, byte[] body) throws IOException {
+        exchange(address, conn -> {
+            conn.writeFrame(body);
+            conn.flush();
+            return null;
+        });
+    }
+
+    /**
+     * Run {@code task} with exclusive use of the connection to {@code address}.
+     * If the connection turns out to be broken, it is reopened and the task is
+     * retried once.
+     */
+    public <T> T exchange(String address, ConnectionTask<T> task) throws IOException {
+        return exchange(address, 0, task);
+    }
+
+    /**
+     * Like {@link #exchange(String, ConnectionTask)} on one of several parallel
+     * connections ("lanes") to the same peer. Lane 0 is the normal connection;
+     * waiting for it gives up after {@link #LOCK_TIMEOUT_MS}, waiting for a file
+     * lane lasts until the transfer ahead ends. Both waits can be interrupted.
+     */
+    public <T> T exchange(String address, int lane, ConnectionTask<T> task) throws IOException {
+        return exchange(address, lane, task, 2);
+    }
+
+    /**
+     * Like {@link #exchange(String, ConnectionTask)} without the transparent
+     * retry, for tasks that consume shared state and cannot simply run again.
+     */
+    public <T> T exchangeOnce(String address, int lane, ConnectionTask<T> task) throws IOException {
+        return exchange(address, lane, task, 1);
+    }
+
+    private <T> T exchange(String address, int lane, ConnectionTask<T> task, int attempts) throws IOException {
+        String key = lane == 0 ? address : address + LANE_SEPARATOR + lane;
+        IOException last = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            Connection conn = acquire(address, key);
+            lock(conn, address, lane);
+            try {
+                if (conn.isClosed()) {
+                    continue;
+                }
+                T result = task.run(conn);
+                conn.lastUsed = System.currentTimeMillis();
+                return result;
+            } catch (IOException e) {
+                last = e;
+                conn.close();
+                connections.remove(key, conn);
+            } finally {
+                conn.lock.unlock();
+            }
+        }
+        throw last != null ? last : new IOException("Connection to " + address + " closed");
+    }
+
+    private static void lock(Connection conn, String address, int lane) throws IOException {
+        try {
+            if (lane != 0) {
+                conn.lock.lockInterruptibly();
+            } else if (!conn.lock.tryLock(LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Connection to " + address + " busy for " + LOCK_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection to " + address);
+        }
+    }
+
+    private Connection acquire(String address, String key) throws IOException {
+        if (closed) throw new IOException("ConnectionManager closed");
+        Connection existing = connections.get(key);
+        if (existing != null && !existing.isClosed() && !existing.isStale()) {
+            return existing;
+        }
+        if (existing != null) {
+            existing.close();
+            connections.remove(key, existing);
+        }
+
+        String[] p = address.split(":", 2);
+        if (p.length != 2) throw new IOException("Bad address: " + address);
+
+        Connection fresh = Connection.open(p[0], Integer.parseInt(p[1]));
+        Connection raced = connections.putIfAbsent(key, fresh);
+        if (raced != null && !raced.isClosed()) {
+            fresh.close();
+            return raced;
+        }
+        if (raced != null) connections.put(key, fresh);
+        return fresh;
+    }
+
+    /** Drop the pooled connections to this peer, all lanes (e.g. when it goes offline). */
+    public void close(String address) {
+        Connection conn = connections.remove(address);
+        if (conn != null) conn.close();
+        String lanePrefix = address + LANE_SEPARATOR;
+        connections.entrySet().removeIf(e -> {
+            if (!e.getKey().startsWith(lanePrefix)) return false;
+            e.getValue().close();
+            return true;
+        });
+    }
+
+    public void closeAll() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Connection conn : connections.values()) {
+            conn.close();
+        }
+        connections.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Connection> e : connections.entrySet()) {
+            Connection conn = e.getValue();
+            if (now - conn.lastUsed < IDLE_TIMEOUT_MS) continue;
+            // skip connections that are busy right now
+            if (!conn.lock.tryLock()) continue;
+            try {
+                if (now - conn.lastUsed >= IDLE_TIMEOUT_MS) {
+                    conn.close();
+                    connections.remove(e.getKey(), conn);
+                }
+            } finally {
+                conn.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One pooled connection. All access goes through
+     * {@link ConnectionManager#exchange}, which holds the lock.
+     */
+    public static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        static Connection open(String host, int port) throws IOException {
+            // socket gắn với SocketChannel để gửi file bằng FileChannel.transferTo
+            Socket s = SocketChannel.open().socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                s.setKeepAlive(true);
+                s.setSoTimeout(READ_TIMEOUT_MS);
+                return new Connection(s);
+            } catch (IOException e) {
+                try { s.close(); } catch (IOException ignored) {}
+                throw e;
+            }
+        }
+
+        public void writeFrame(byte[] body) throws IOException {
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        /** Read one reply frame written by the remote side. */
+        public Frame readFrame() throws IOException {
+            int len = in.readInt();
+            if (len < 0 || len > ChatConfig.MAX_FRAME_BYTES) throw new IOException("Bad frame length " + len);
+            byte[] body = new byte[len];
+            in.readFully(body);
+            try {
+                return FrameCodec.decode(body);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed reply: " + e.getMessage());
+            }
+        }
+
+        public DataOutputStream out() {
+            return out;
+        }
+
+        /**
+         * Blocking channel of this connection, for zero-copy writes. Call
+         * {@link #flush()} first so buffered frames go out before it.
+         */
+        public SocketChannel channel() {
+            return socket.getChannel();
+        }
+
+        public DataInputStream in() {
+            return in;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        /**
+         * Replies are always consumed inside the exchange that asked for them,
+         * so an idle connection has nothing to read. Anything readable means
+         * it can no longer be used: -1 when the remote has closed its end
+         * (e.g. the peer restarted), or a stray byte that is now consumed and
+         * would shift every later reply.
+         */
+        private boolean isStale() {
+            if (System.currentTimeMillis() - lastUsed < STALE_CHECK_MS) return false;
+            if (!lock.tryLock()) return false;
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            } finally {
+                try { socket.setSoTimeout(READ_TIMEOUT_MS); } catch (IOException ignored) {}
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.example.peer_chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The newest items of recently opened conversations, kept in memory so that
+ * switching back to a chat needs no DB query.
+ *
+ * A conversation enters the cache when its first history page is read from
+ * {@link ChatDb} ({@link #put}); after that PeerHandle {@link #append}s every
+ * message, file and call of it as it is recorded. Each conversation keeps at
+ * most {@code depth} items; when the total passes {@code maxItems} the least
+ * recently used conversations are dropped. Thread-safe.
+ */
+public final class ConversationCache {
+
+    /** Cached items of one conversation, oldest first. */
+    public static final class Page {
+        private final List<ChatItem> items;
+        private final boolean complete;
+
+        private Page(List<ChatItem> items, boolean complete) {
+            this.items = items;
+            this.complete = complete;
+        }
+
+        public List<ChatItem> items() { return items; }
+
+        /** True if the items are the whole history, so there is nothing older in the DB. */
+        public boolean complete() { return complete; }
+    }
+
+    private static final class Entry {
+        final ArrayDeque<ChatItem> items = new ArrayDeque<>();
+        boolean complete;
+    }
+
+    // số conversation được nhớ version, kể cả những chat chưa cache
+    private static final int VERSIONS_KEPT = 1_024;
+
+    private final int depth;
+    private final int maxItems;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // lần append cuối của mỗi conversation (giá trị của clock), kể cả khi chưa cache;
+    // put() dựa vào đó để biết DB đã cũ. Chỉ giữ VERSIONS_KEPT conversation dùng gần nhất
+    // và bỏ cùng lúc với entry bị evict; key không còn trong map có version = floor
+    private final LinkedHashMap<String, Long> versions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= VERSIONS_KEPT)
+                return false;
+            floor = Math.max(floor, eldest.getValue());
+            return true;
+        }
+    };
+    private long clock;
+    // version lớn nhất từng bị bỏ: mọi token lấy trước khi một version bị bỏ đều không còn khớp
+    private long floor;
+    private int size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ConversationCache() {
+        this(ChatConfig.CONVERSATION_CACHE_DEPTH, ChatConfig.CONVERSATION_CACHE_ITEMS);
+    }
+
+    public ConversationCache(int depth, int maxItems) {
+        this.depth = Math.max(0, depth);
+        this.maxItems = Math.max(this.depth, maxItems);
+    }
+
+    public static String conversationKey(String me, String peer) {
+        return ChatDb.convKey(me, peer);
+    }
+
+    public static String groupKey(String groupId) {
+        return "group:" + groupId;
+    }
+
+    /** Largest number of items {@link #put} keeps for one conversation. */
+    public int depth() {
+        return depth;
+    }
+
+    /** The cached newest items of {@code key}, or null; counts a hit or a miss. */
+    public synchronized Page get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new Page(new ArrayList<>(e.items), e.complete);
+    }
+
+    /** Token for {@link #put}; take it before reading the conversation from the DB. */
+    public synchronized long version(String key) {
+        return versions.getOrDefault(key, floor);
+    }
+
+    /**
+     * Cache what the DB returned for {@code key}, newest first. Ignored if an
+     * item was appended since {@code version} was taken, because the DB read
+     * may not contain it. (The timeline reads of ChatDb flush pending inserts
+     * first, so anything appended before the token is in the read.)
+     *
+     * @param complete the DB has nothing older than these items
+     */
+    public synchronized void put(String key, List<ChatItem> newestFirst, boolean complete, long version) {
+        if (depth == 0 || version(key) != version)
+            return;
+        Entry e = new Entry();
+        int n = Math.min(depth, newestFirst.size());
+        for (int i = n - 1; i >= 0; i--) {
+            e.items.addLast(newestFirst.get(i));
+        }
+        e.complete = complete && n == newestFirst.size();
+        Entry old = entries.put(key, e);
+        if (old != null)
+            size -= old.items.size();
+        size += n;
+        evict();
+    }
+
+    /** A new item of {@code key} was recorded; call after it was passed to ChatDb. */
+    public synchronized void append(String key, ChatItem item) {
+        versions.put(key, ++clock);
+        Entry e = entries.get(key);
+        if (e == null)
+            return; // chưa mở chat này: lần mở đầu tiên sẽ đọc từ DB
+        e.items.addLast(item);
+        size++;
+        if (e.items.size() > depth) {
+            e.items.removeFirst();
+            e.complete = false;
+            size--;
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        // giữ lại ít nhất conversation vừa dùng
+        while (size > maxItems && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            size -= eldest.getValue().items.size();
+            it.remove();
+            forgetVersion(eldest.getKey());
+        }
+    }
+
+    private void forgetVersion(String key) {
+        Long v = versions.remove(key);
+        if (v != null)
+            floor = Math.max(floor, v);
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConversationCache{conversations=" + entries.size() + ", items=" + size + ", hits=" + hits
+                + ", misses=" + misses + "}";
+    }
+}
@@ -0,0 +1,274 @@
+package org.example.peer_chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Sends one file to several peers with the chunked protocol of
+ * {@link IncomingTransfers}, reading and checksumming each chunk once.
+ *
+ * Every recipient gets its own connection worker that makes the FILE_OFFER
+ * handshake on the peer's file lane and then writes the chunks it is missing. A single reader goes
+ * through the file once and hands each chunk, as a read-only buffer shared by
+ * all workers, to the recipients that need it. At most {@link #WINDOW} chunks
+ * are in flight, so memory stays bounded and the slowest recipient sets the
+ * pace. A recipient whose connection fails, or that stalls for longer than
+ * {@link ChatConfig#FILE_STALL_TIMEOUT_MS}, is dropped from the broadcast and
+ * reported back, so the caller can resume it on its own.
+ */
+final class FileBroadcast {
+
+    // số chunk đọc trước so với người nhận chậm nhất
+    private static final int WINDOW = 4;
+    private static final long POLL_MS = 100;
+
+    private static final Chunk END = new Chunk(null, null);
+
+    /** FILE_CHUNK header and read-only data of one chunk, shared by all recipients. */
+    private static final class Chunk {
+        final byte[] header;
+        final ByteBuffer data;
+
+        Chunk(byte[] header, ByteBuffer data) {
+            this.header = header;
+            this.data = data;
+        }
+    }
+
+    private final ConnectionManager connections;
+    private final String selfName;
+
+    FileBroadcast(ConnectionManager connections, String selfName) {
+        this.connections = connections;
+        this.selfName = selfName;
+    }
+
+    /** One receiving peer. */
+    private final class Recipient {
+        final String address;
+        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(WINDOW);
+        volatile BitSet have; // null = đã có cả file
+        volatile boolean failed;
+        volatile boolean done;
+        volatile boolean handshaken;
+        volatile Future<?> worker;
+        volatile ConnectionManager.Connection conn;
+
+        Recipient(String address) {
+            this.address = address;
+        }
+
+        boolean needs(int index) {
+            return !failed && !done && have != null && !have.get(index);
+        }
+
+        /**
+         * Stop waiting for this recipient: interrupt its worker, which may be
+         * waiting for the file lane, and close its connection, which unblocks
+         * a write to a peer that no longer reads.
+         */
+        void drop(String why) {
+            if (failed || done) return;
+            failed = true;
+            System.err.println("[File] Broadcast to " + address + " dropped: " + why);
+            Future<?> w = worker;
+            if (w != null) w.cancel(true);
+            ConnectionManager.Connection c = conn;
+            if (c != null) c.close();
+        }
+
+        void run(byte[] offer, String id, CountDownLatch ready) {
+            try {
+                connections.exchangeOnce(address, ConnectionManager.FILE_LANE, conn -> {
+                    this.conn = conn;
+                    if (failed) throw new IOException("dropped");
+                    conn.writeFrame(offer);
+                    conn.flush();
+                    Frame reply = conn.readFrame();
+                    if (reply.opcode() == Opcode.FILE_DONE) {
+                        done = true; // người nhận đã có nội dung này
+                    } else if (reply.opcode() == Opcode.FILE_REJECT) {
+                        throw MessageHandler.rejected(reply);
+                    } else if (reply.opcode() == Opcode.FILE_HAVE) {
+                        if (!id.equals(reply.string())) throw new IOException("FILE_HAVE for another transfer");
+                        have = BitSet.valueOf(reply.bytes());
+                    } else {
+                        throw new IOException("Unexpected reply " + reply.code());
+                    }
+                    handshaken = true;
+                    ready.countDown();
+                    if (done) return null;
+                    stream(conn, id);
+                    return null;
+                });
+            } catch (IOException | IllegalArgumentException e) {
+                if (!failed) System.err.println("[File] Broadcast to " + address + " failed: " + e.getMessage());
+                failed = true;
+            } finally {
+                conn = null;
+                if (!handshaken) ready.countDown();
+                queue.clear(); // reader không bị chặn bởi người nhận đã dừng
+            }
+        }
+
+        private void stream(ConnectionManager.Connection conn, String id) throws IOException {
+            SocketChannel channel = conn.channel();
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sending file");
+                }
+                if (chunk == END) break;
+                conn.writeFrame(chunk.header);
+                conn.flush();
+                ByteBuffer data = chunk.data.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            conn.writeFrame(FrameCodec.writer(Opcode.FILE_END, selfName).string(id).toByteArray());
+            conn.flush();
+            Frame reply = conn.readFrame();
+            if (reply.opcode() == Opcode.FILE_DONE) {
+                done = true;
+                return;
+            }
+            // FILE_HAVE: có chunk sai checksum, caller gửi lại riêng phần còn thiếu
+            throw new IOException(reply.opcode() == Opcode.FILE_HAVE ? "chunks missing after FILE_END"
+                    : "Unexpected reply " + reply.code());
+        }
+    }
+
+    /**
+     * Send {@code file} to every address.
+     *
+     * @return the addresses that did not receive the whole file
+     */
+    List<String> send(List<String> addresses, File file, String id, byte[] offer, int chunkSize)
+            throws IOException {
+        long size = file.length();
+        int chunks = FileChunks.count(size, chunkSize);
+        List<Recipient> recipients = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            recipients.add(new Recipient(address));
+        }
+        CountDownLatch ready = new CountDownLatch(recipients.size());
+        for (Recipient r : recipients) {
+            r.worker = Workers.tryStart("file-broadcast-" + r.address, () -> r.run(offer, id, ready));
+            if (r.worker == null) {
+                // không có thread: người nhận này được gửi lại riêng sau broadcast
+                System.err.println("[File] Broadcast to " + r.address + " skipped: no worker thread free");
+                r.failed = true;
+                ready.countDown();
+            }
+        }
+
+        long read = 0;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            awaitHandshakes(ready, recipients);
+            for (int i = 0; i < chunks; i++) {
+                List<Recipient> targets = new ArrayList<>();
+                for (Recipient r : recipients) {
+                    if (r.needs(i)) targets.add(r);
+                }
+                if (targets.isEmpty()) continue;
+                Chunk chunk = readChunk(fc, id, i, size, chunkSize);
+                read += chunk.data.remaining();
+                for (Recipient r : targets) {
+                    put(r, chunk);
+                }
+            }
+        } finally {
+            for (Recipient r : recipients) {
+                put(r, END);
+            }
+            for (Recipient r : recipients) {
+                if (r.worker == null) continue;
+                try {
+                    r.worker.get(ChatConfig.FILE_STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    r.drop("no reply to FILE_END"); // sau drop, get() trả về ngay
+                } catch (CancellationException e) {
+                    // đã drop
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (Recipient r : recipients) {
+            if (!r.done) failed.add(r.address);
+        }
+        System.out.printf("[File] Broadcast %s to %d peers: read %d bytes once, %d peer%s left to resume%n",
+                file.getName(), recipients.size(), read, failed.size(), failed.size() == 1 ? "" : "s");
+        return failed;
+    }
+
+    /** Wait for every FILE_OFFER reply; a recipient that has not answered in time is dropped. */
+    private static void awaitHandshakes(CountDownLatch ready, List<Recipient> recipients) throws IOException {
+        try {
+            if (ready.await(ChatConfig.FILE_STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return;
+            for (Recipient r : recipients) {
+                if (!r.handshaken) r.drop("no reply to FILE_OFFER in " + ChatConfig.FILE_STALL_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending file");
+        }
+    }
+
+    private Chunk readChunk(FileChannel fc, String id, int index, long size, int chunkSize) throws IOException {
+        long pos = FileChunks.offset(index, chunkSize);
+        int len = FileChunks.length(size, chunkSize, index);
+        ByteBuffer data = ByteBuffer.allocate(len);
+        while (data.hasRemaining()) {
+            if (fc.read(data, pos + data.position()) < 0) throw new IOException("File shrank while sending");
+        }
+        data.flip();
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        byte[] header = FrameCodec.writer(Opcode.FILE_CHUNK, selfName)
+                .string(id)
+                .varint(index)
+                .varint(crc.getValue())
+                .toByteArray();
+        return new Chunk(header, data.asReadOnlyBuffer());
+    }
+
+    /** Hand a chunk to a recipient, unless it has stopped or does not take it in time. */
+    private static void put(Recipient r, Chunk chunk) {
+        long deadline = System.currentTimeMillis() + ChatConfig.FILE_STALL_TIMEOUT_MS;
+        try {
+            while (!r.failed && !r.done) {
+                if (r.queue.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)) return;
+                if (System.currentTimeMillis() > deadline) {
+                    r.drop("no chunk taken in " + ChatConfig.FILE_STALL_TIMEOUT_MS + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
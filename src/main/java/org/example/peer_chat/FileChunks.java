@@ -0,0 +1,52 @@
+package org.example.peer_chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Chunk arithmetic and checksums shared by the sending and receiving side of
+ * a file transfer. Chunk {@code i} covers bytes
+ * {@code [i * chunkSize, min(size, (i + 1) * chunkSize))}.
+ */
+final class FileChunks {
+
+    private static final int SCRATCH_BYTES = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SCRATCH_BYTES));
+
+    private FileChunks() {
+    }
+
+    static int count(long size, int chunkSize) {
+        long n = size / chunkSize + (size % chunkSize != 0 ? 1 : 0); // size + chunkSize - 1 có thể tràn
+        if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many chunks: " + n);
+        return (int) n;
+    }
+
+    static long offset(int index, int chunkSize) {
+        return (long) index * chunkSize;
+    }
+
+    static int length(long size, int chunkSize, int index) {
+        return (int) Math.min(chunkSize, size - offset(index, chunkSize));
+    }
+
+    /** CRC32 of {@code len} bytes of {@code ch} starting at {@code pos}. */
+    static long crc32(FileChannel ch, long pos, long len) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = SCRATCH.get();
+        long end = pos + len;
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("File ended inside chunk");
+            buf.flip();
+            crc.update(buf);
+            pos += n;
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,90 @@
+package org.example.peer_chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A decoded protocol frame. The header (version, opcode, sender) is parsed by
+ * {@link FrameCodec#decode(byte[])}; the remaining fields are read in order
+ * with the cursor methods, straight from the received byte array.
+ *
+ * Reading past the end or a malformed varint throws IllegalArgumentException.
+ */
+public final class Frame {
+
+    private final int code;
+    private final Opcode opcode;
+    private final String sender;
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    Frame(int code, byte[] buf, int pos, int limit) {
+        this.code = code;
+        this.opcode = Opcode.fromCode(code);
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+        this.sender = string();
+    }
+
+    /** Raw wire code, also set for opcodes this build does not know. */
+    public int code() {
+        return code;
+    }
+
+    /** @return the opcode, or null for an unknown code. */
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    public String sender() {
+        return sender;
+    }
+
+    public long varint() {
+        long result = 0;
+        // 9 byte x 7 bit = 63 bit, đủ cho mọi long không âm; byte thứ 10 sẽ làm tràn sang bit dấu
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (pos >= limit) throw new IllegalArgumentException("Truncated frame");
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public int varintInt() {
+        long v = varint();
+        if (v > Integer.MAX_VALUE) throw new IllegalArgumentException("Varint out of int range: " + v);
+        return (int) v;
+    }
+
+    public String string() {
+        int len = varintInt();
+        if (len > limit - pos) throw new IllegalArgumentException("Truncated frame");
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    public byte[] bytes() {
+        int len = varintInt();
+        if (len > limit - pos) throw new IllegalArgumentException("Truncated frame");
+        byte[] out = Arrays.copyOfRange(buf, pos, pos + len);
+        pos += len;
+        return out;
+    }
+
+    public List<String> strings() {
+        int n = varintInt();
+        if (n > limit - pos) throw new IllegalArgumentException("Truncated frame");
+        List<String> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            out.add(string());
+        }
+        return out;
+    }
+}
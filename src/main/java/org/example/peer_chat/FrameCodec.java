@@ -0,0 +1,113 @@
+package org.example.peer_chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary frame format shared by every peer-to-peer message.
+ *
+ * <pre>
+ * frame  := version:u8 opcode:u8 sender:string field*
+ * string := length:varint utf8-bytes
+ * list   := count:varint string*
+ * bytes  := length:varint raw-bytes
+ * varint := unsigned LEB128 (7 bits per byte, high bit = more)
+ * </pre>
+ *
+ * The transport adds its own length prefix around each frame. Fields per
+ * opcode are written by the sender and read back in the same order by the
+ * handler registered for that opcode.
+ */
+public final class FrameCodec {
+
+    public static final int VERSION = 1;
+
+    /** Wire codes from here up are never used by {@link Opcode}; free for plugged-in frame types. */
+    public static final int FIRST_CUSTOM_CODE = 128;
+
+    private FrameCodec() {
+    }
+
+    public static Writer writer(Opcode opcode, String sender) {
+        return new Writer(opcode.code(), sender);
+    }
+
+    /** Writer for a raw wire code, for frame types registered at runtime. */
+    public static Writer writer(int code, String sender) {
+        if (code < 0 || code > 255) throw new IllegalArgumentException("Opcode out of range: " + code);
+        return new Writer(code, sender);
+    }
+
+    /**
+     * Parse the frame header. Unknown opcodes are returned with
+     * {@link Frame#opcode()} == null so the caller can decide to skip them.
+     */
+    public static Frame decode(byte[] body) {
+        if (body.length < 2) throw new IllegalArgumentException("Frame too short");
+        int version = body[0] & 0xFF;
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported protocol version " + version);
+        return new Frame(body[1] & 0xFF, body, 2, body.length);
+    }
+
+    public static final class Writer {
+        private byte[] buf = new byte[64];
+        private int size;
+
+        private Writer(int code, String sender) {
+            put((byte) VERSION);
+            put((byte) code);
+            string(sender);
+        }
+
+        public Writer varint(long v) {
+            if (v < 0) throw new IllegalArgumentException("Negative varint: " + v);
+            while ((v & ~0x7FL) != 0) {
+                put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+            return this;
+        }
+
+        public Writer string(String s) {
+            byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+            return this;
+        }
+
+        public Writer bytes(byte[] b, int off, int len) {
+            varint(len);
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+            return this;
+        }
+
+        public Writer strings(List<String> list) {
+            varint(list.size());
+            for (String s : list) {
+                string(s);
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.example.peer_chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Sends one group frame to all members at the same time.
+ *
+ * Each member has its own ordered pipeline: frames to the same member go out
+ * in the order they were submitted, while different members never wait for
+ * each other, so one unreachable member only delays its own frames. A send
+ * that does not finish within {@link ChatConfig#GROUP_SEND_TIMEOUT_MS} is
+ * cancelled, and failed sends are retried up to
+ * {@link ChatConfig#GROUP_SEND_ATTEMPTS} times. The caller gets a
+ * {@link Delivery} per member once every member is done.
+ */
+public final class GroupFanout {
+
+    public enum Status {
+        DELIVERED,
+        /** Could not be sent within the attempts. */
+        FAILED,
+        /** No known address, the member is not online. */
+        OFFLINE
+    }
+
+    /** Outcome of one group send. */
+    public static final class Delivery {
+        private final Map<String, Status> statuses;
+
+        Delivery(Map<String, Status> statuses) {
+            this.statuses = Collections.unmodifiableMap(statuses);
+        }
+
+        /** Status per member, in the order the members were given. */
+        public Map<String, Status> statuses() {
+            return statuses;
+        }
+
+        /** Members that ended with {@code status}. */
+        public List<String> members(Status status) {
+            List<String> out = new ArrayList<>();
+            for (Map.Entry<String, Status> e : statuses.entrySet()) {
+                if (e.getValue() == status) out.add(e.getKey());
+            }
+            return out;
+        }
+
+        public boolean allDelivered() {
+            return members(Status.DELIVERED).size() == statuses.size();
+        }
+    }
+
+    interface Sender {
+        void send(String address, OutboundFrame frame) throws IOException;
+    }
+
+    private final Function<String, String> lookup;
+    private final Sender sender;
+    // member -> lần gửi cuối đang chờ/chạy; lần gửi sau nối vào sau nó để giữ thứ tự
+    private final Map<String, CompletableFuture<Status>> tails = new ConcurrentHashMap<>();
+
+    /** {@code lookup}: member name to "ip:port", null when offline. */
+    GroupFanout(Function<String, String> lookup, Sender sender) {
+        this.lookup = lookup;
+        this.sender = sender;
+    }
+
+    /** Queue {@code frame} for every member; never blocks. The same encoded bytes go to all of them. */
+    CompletableFuture<Delivery> send(List<String> members, OutboundFrame frame) {
+        List<String> targets = new ArrayList<>(new LinkedHashSet<>(members));
+        List<CompletableFuture<Status>> pending = new ArrayList<>(targets.size());
+        for (String member : targets) {
+            pending.add(enqueue(member, frame));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, Status> statuses = new LinkedHashMap<>();
+            for (int i = 0; i < targets.size(); i++) {
+                statuses.put(targets.get(i), pending.get(i).join());
+            }
+            return new Delivery(statuses);
+        });
+    }
+
+    private CompletableFuture<Status> enqueue(String member, OutboundFrame frame) {
+        CompletableFuture<Status> tail = new CompletableFuture<>();
+        CompletableFuture<Status> previous = tails.put(member, tail);
+        Runnable start = () -> {
+            Future<?> started = Workers.tryStart("group-fanout-" + member, () -> {
+                try {
+                    tail.complete(deliver(member, frame));
+                } catch (RuntimeException e) {
+                    tail.completeExceptionally(e);
+                }
+            });
+            if (started == null) {
+                System.err.println("[GroupFanout] " + member + ": no worker thread free");
+                tail.complete(Status.FAILED);
+            }
+        };
+        if (previous == null) {
+            start.run();
+        } else {
+            previous.whenComplete((status, error) -> start.run());
+        }
+        tail.whenComplete((status, error) -> tails.remove(member, tail));
+        return tail;
+    }
+
+    private Status deliver(String member, OutboundFrame frame) {
+        int attempts = Math.max(1, ChatConfig.GROUP_SEND_ATTEMPTS);
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            // tra lại địa chỉ mỗi lần: peer có thể vừa khởi động lại với port khác
+            String address = lookup.apply(member);
+            if (address == null)
+                return Status.OFFLINE;
+            String error = attempt(address, frame);
+            if (error == null)
+                return Status.DELIVERED;
+            System.err.println("[GroupFanout] " + member + ": " + error + " (attempt " + attempt + "/" + attempts + ")");
+            if (attempt == attempts)
+                break;
+            try {
+                Thread.sleep((long) ChatConfig.GROUP_SEND_RETRY_MS * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return Status.FAILED;
+    }
+
+    /** One send with a deadline; null on success, else why it failed. */
+    private String attempt(String address, OutboundFrame frame) {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Future<?> running = Workers.tryStart("group-send-" + address, () -> {
+            try {
+                sender.send(address, frame);
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        if (running == null)
+            return "no worker thread free";
+        try {
+            running.get(ChatConfig.GROUP_SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // socket mở qua SocketChannel: interrupt đóng kết nối đang bị kẹt
+            running.cancel(true);
+            return "timed out after " + ChatConfig.GROUP_SEND_TIMEOUT_MS + " ms";
+        } catch (ExecutionException e) {
+            return String.valueOf(e.getCause());
+        } catch (InterruptedException e) {
+            running.cancel(true);
+            Thread.currentThread().interrupt();
+            return "interrupted";
+        }
+        IOException e = failure.get();
+        return e == null ? null : e.getMessage();
+    }
+}
@@ -0,0 +1,106 @@
+package org.example.peer_chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Tree distribution of large group files, so the sender's uplink carries
+ * about {@link ChatConfig#FILE_RELAY_FANOUT} copies instead of one per member.
+ *
+ * The member list is split into up to {@code fanout} contiguous branches. The
+ * first member of each branch gets the file directly (one
+ * {@link FileBroadcast} for all of them), then a GROUP_FILE_RELAY frame asking
+ * it to do the same for the rest of its branch. Receivers keep the original
+ * sender as the file's author. A branch head that cannot be reached is
+ * skipped and its branch is served by the node above instead, so one offline
+ * member does not cut off the members below it.
+ */
+final class GroupFileRelay {
+
+    private final String selfName;
+    private final MessageHandler handler;
+    private final Function<String, String> lookup;
+    private final int fanout;
+
+    /** {@code lookup}: member name to "ip:port", null when offline. */
+    GroupFileRelay(String selfName, MessageHandler handler, Function<String, String> lookup, int fanout) {
+        this.selfName = selfName;
+        this.handler = handler;
+        this.lookup = lookup;
+        this.fanout = Math.max(1, fanout);
+    }
+
+    /**
+     * Deliver {@code file} to {@code members} through the tree. Blocks until
+     * this node's part is done; the branch heads forward in the background.
+     *
+     * @param origin member who posted the file, shown as its sender
+     * @return members this node could not reach
+     */
+    List<String> distribute(String groupId, File file, String name, String origin, List<String> members)
+            throws IOException {
+        List<String> targets = new ArrayList<>(members);
+        targets.remove(selfName);
+        targets.remove(origin);
+        List<String> unreached = new ArrayList<>();
+        if (targets.isEmpty())
+            return unreached;
+
+        List<List<String>> branches = split(targets, fanout);
+        List<String> headAddresses = new ArrayList<>();
+        String[] addressOf = new String[branches.size()];
+        for (int i = 0; i < branches.size(); i++) {
+            addressOf[i] = lookup.apply(branches.get(i).get(0));
+            if (addressOf[i] != null)
+                headAddresses.add(addressOf[i]);
+        }
+        List<String> failed = headAddresses.isEmpty() ? List.of()
+                : handler.sendGroupFile(headAddresses, file, name, groupId, origin);
+
+        String hash = null;
+        for (int i = 0; i < branches.size(); i++) {
+            List<String> branch = branches.get(i);
+            List<String> rest = branch.subList(1, branch.size());
+            if (addressOf[i] == null || failed.contains(addressOf[i])) {
+                // nhánh mất đầu: tự gửi cho phần còn lại của nhánh
+                unreached.add(branch.get(0));
+                unreached.addAll(distribute(groupId, file, name, origin, rest));
+                continue;
+            }
+            if (rest.isEmpty())
+                continue;
+            if (hash == null)
+                hash = handler.fileId(file);
+            byte[] relay = FrameCodec.writer(Opcode.GROUP_FILE_RELAY, selfName)
+                    .string(groupId)
+                    .string(hash)
+                    .string(name)
+                    .string(origin)
+                    .strings(rest)
+                    .toByteArray();
+            try {
+                handler.trySendFrame(addressOf[i], relay);
+            } catch (IOException e) {
+                System.err.println("[Relay] " + branch.get(0) + " cannot forward: " + e.getMessage());
+                unreached.addAll(distribute(groupId, file, name, origin, rest));
+            }
+        }
+        return unreached;
+    }
+
+    /** Chia danh sách thành tối đa {@code parts} nhánh liên tiếp, độ dài chênh nhau tối đa 1. */
+    static List<List<String>> split(List<String> members, int parts) {
+        List<List<String>> out = new ArrayList<>();
+        int n = Math.min(parts, members.size());
+        int from = 0;
+        for (int i = 0; i < n; i++) {
+            int size = members.size() / n + (i < members.size() % n ? 1 : 0);
+            out.add(new ArrayList<>(members.subList(from, from + size)));
+            from += size;
+        }
+        return out;
+    }
+}
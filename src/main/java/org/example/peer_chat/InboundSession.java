@@ -0,0 +1,330 @@
+package org.example.peer_chat;
+
+import javax.sound.sampled.LineUnavailableException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Protocol state of one inbound peer connection, shared by the blocking and
+ * the NIO transport of {@link MessageHandler}.
+ *
+ * The transport feeds complete frame bodies to {@link #onFrame(byte[])}. When a
+ * FILE_CHUNK frame announces raw bytes, {@link #rawRemaining()} tells how many
+ * follow; the transport hands them over with {@link #onRaw(ByteBuffer)} or
+ * {@link #transferFrom(ReadableByteChannel)}. Replies of the file transfer
+ * handshake go back through the {@link Replier}.
+ * FRAGMENT frames are reassembled here into the original frame body.
+ *
+ * Disk work of file transfers (offers, chunk writes and checks, completion)
+ * goes through {@link FileTasks}: the blocking transport runs it inline on the
+ * connection's own thread, the NIO transport hands it to a worker so the
+ * selector thread only does framing. Chunks given with {@link #onRaw} are
+ * collected in memory and written by that task in one go.
+ */
+class InboundSession {
+
+    /** Writes one frame back to the peer on the same connection. */
+    interface Replier {
+        void reply(byte[] frame) throws IOException;
+    }
+
+    /** Runs file transfer work in the order it is given, one task at a time per connection. */
+    interface FileTasks {
+        /** @param bufferedBytes chunk bytes held in memory by the task until it runs */
+        void run(FileTask task, long bufferedBytes) throws IOException;
+    }
+
+    interface FileTask {
+        void run() throws IOException;
+    }
+
+    private final String selfName;
+    private final MessageHandler.MsgCallback msgCallback;
+    private final MessageHandler.FileCallback fileCallback;
+    private final IncomingTransfers transfers;
+    private final Replier replier;
+    private final FileTasks fileTasks;
+
+    // chunk currently being received on this connection
+    private IncomingTransfers.Transfer chunkTransfer;
+    private int chunkIndex;
+    private long chunkCrc;
+    private long chunkPos;
+    private long rawRemaining;
+    private boolean skipChunk; // transfer đã hoàn tất: đọc bỏ byte của chunk
+    private ByteBuffer chunkData; // chỉ dùng với onRaw: byte của chunk chờ ghi ra đĩa
+
+    // message being reassembled from FRAGMENT frames
+    private byte[] fragments;
+    private int fragmentsFilled;
+    private boolean discardingFragments;
+
+    InboundSession(String selfName, MessageHandler.MsgCallback msgCallback, MessageHandler.FileCallback fileCallback,
+                   IncomingTransfers transfers, Replier replier, FileTasks fileTasks) {
+        this.selfName = selfName;
+        this.msgCallback = msgCallback;
+        this.fileCallback = fileCallback;
+        this.transfers = transfers;
+        this.replier = replier;
+        this.fileTasks = fileTasks;
+    }
+
+    long rawRemaining() {
+        return rawRemaining;
+    }
+
+    /**
+     * Handle one frame body. A frame that cannot be parsed is only skipped
+     * when nothing else depends on it; a bad header or a bad file transfer
+     * frame throws IOException so the transport closes the connection, since
+     * a FILE_CHUNK's raw bytes would otherwise be read as frames.
+     */
+    void onFrame(byte[] body) throws IOException, LineUnavailableException {
+        Frame frame;
+        try {
+            frame = FrameCodec.decode(body);
+        } catch (IllegalArgumentException e) {
+            // không biết opcode: có thể là FILE_CHUNK với byte thô theo sau
+            throw new IOException("Malformed frame header: " + e.getMessage(), e);
+        }
+        if (frame.opcode() == Opcode.FILE_OFFER) {
+            fileTasks.run(() -> fileFrame(frame, () -> onFileOffer(frame)), 0);
+            return;
+        }
+        if (frame.opcode() == Opcode.FILE_CHUNK) {
+            fileFrame(frame, () -> onFileChunk(frame));
+            return;
+        }
+        if (frame.opcode() == Opcode.FILE_END) {
+            fileTasks.run(() -> fileFrame(frame, () -> onFileEnd(frame)), 0);
+            return;
+        }
+        if (frame.opcode() == Opcode.FRAGMENT) {
+            byte[] whole;
+            try {
+                whole = onFragment(frame);
+            } catch (IllegalArgumentException e) {
+                System.err.println("[MessageHandler] Dropping malformed fragment: " + e.getMessage());
+                return;
+            }
+            if (whole != null) onFrame(whole);
+            return;
+        }
+        if (msgCallback != null) msgCallback.onMessage(frame);
+    }
+
+    /** File transfer frames that do not parse close the connection instead of being skipped. */
+    private static void fileFrame(Frame frame, FileTask task) throws IOException {
+        try {
+            task.run();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed " + frame.opcode() + " from " + frame.sender() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * fragment := total:varint offset:varint data:bytes, sent back to back on
+     * one connection. Returns the complete body once the last piece arrived.
+     */
+    private byte[] onFragment(Frame frame) {
+        long total = frame.varint();
+        long offset = frame.varint();
+        byte[] data = frame.bytes();
+        if (offset == 0) {
+            discardingFragments = total > ChatConfig.MAX_MESSAGE_BYTES;
+            if (discardingFragments) {
+                System.err.println("[MessageHandler] Dropping " + total + " byte message from " + frame.sender()
+                        + " (limit " + ChatConfig.MAX_MESSAGE_BYTES + ")");
+                fragments = null;
+            } else {
+                fragments = new byte[(int) total];
+            }
+            fragmentsFilled = 0;
+        }
+        if (discardingFragments) return null;
+        if (fragments == null || offset != fragmentsFilled || data.length > fragments.length - fragmentsFilled) {
+            fragments = null;
+            throw new IllegalArgumentException("Unexpected fragment at " + offset);
+        }
+        System.arraycopy(data, 0, fragments, fragmentsFilled, data.length);
+        fragmentsFilled += data.length;
+        if (fragmentsFilled < fragments.length) return null;
+        byte[] whole = fragments;
+        fragments = null;
+        return whole;
+    }
+
+    // offer := id groupId filename size:varint chunkSize:varint
+    private void onFileOffer(Frame frame) throws IOException {
+        String id = frame.string();
+        String groupId = frame.string();
+        String filename = frame.string();
+        long size = frame.varint();
+        int chunkSize = frame.varintInt();
+        if (groupId.isEmpty()) groupId = null;
+        File stored = transfers.stored(id);
+        if (stored != null) {
+            alreadyStored(frame.sender(), id, groupId, filename, size, stored);
+            return;
+        }
+        IncomingTransfers.Transfer t;
+        try {
+            t = transfers.offer(frame.sender(), id, groupId, filename, size, chunkSize);
+            if (t == null) {
+                // một offer cùng nội dung vừa hoàn tất
+                alreadyStored(frame.sender(), id, groupId, filename, size, transfers.stored(id));
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // trả lời rõ ràng để sender không phải chờ FILE_HAVE tới hết READ_TIMEOUT
+            System.err.println("[MessageHandler] Rejecting file offer from " + frame.sender() + ": " + e.getMessage());
+            replier.reply(FrameCodec.writer(Opcode.FILE_REJECT, selfName).string(id).string(e.getMessage())
+                    .toByteArray());
+            return;
+        }
+        replyHave(t);
+    }
+
+    // đã có nội dung này: không cần nhận lại byte nào
+    private void alreadyStored(String sender, String id, String groupId, String filename, long size, File stored)
+            throws IOException {
+        replier.reply(FrameCodec.writer(Opcode.FILE_DONE, selfName).string(id).toByteArray());
+        if (fileCallback != null) {
+            fileCallback.onFileReceived(sender, groupId, filename, id, stored.getAbsolutePath(), size);
+        }
+    }
+
+    // chunk := id index:varint crc32:varint, followed by the chunk's raw bytes
+    private void onFileChunk(Frame frame) throws IOException {
+        String id = frame.string();
+        int index = frame.varintInt();
+        long crc = frame.varint();
+        IncomingTransfers.Transfer t = transfers.get(id);
+        // không có offer trước đó thì không biết đặt byte vào đâu: đóng kết nối
+        if (t == null) throw new IOException("FILE_CHUNK for unknown transfer " + id);
+        t.checkIndex(index);
+        chunkTransfer = t;
+        chunkIndex = index;
+        chunkCrc = crc;
+        chunkPos = FileChunks.offset(index, t.chunkSize);
+        rawRemaining = FileChunks.length(t.size, t.chunkSize, index);
+        skipChunk = t.isClosed();
+    }
+
+    private void onFileEnd(Frame frame) throws IOException {
+        String id = frame.string();
+        IncomingTransfers.Transfer t = transfers.get(id);
+        File out = t == null || t.isClosed() ? null : transfers.completeIfDone(t);
+        if (out == null && (t == null || t.isClosed())) {
+            if (transfers.stored(id) != null) {
+                // kết nối khác vừa hoàn tất transfer này và đã báo cho mọi claim
+                replier.reply(FrameCodec.writer(Opcode.FILE_DONE, selfName).string(id).toByteArray());
+                return;
+            }
+            // chưa từng offer (hoặc đã bị hủy): sender offer lại từ đầu
+            replier.reply(FrameCodec.writer(Opcode.FILE_HAVE, selfName).string(id).bytes(new byte[0], 0, 0)
+                    .toByteArray());
+            return;
+        }
+        if (out == null) {
+            replyHave(t);
+            return;
+        }
+        replier.reply(FrameCodec.writer(Opcode.FILE_DONE, selfName).string(id).toByteArray());
+        if (fileCallback != null) {
+            for (IncomingTransfers.Claim c : t.claims()) {
+                fileCallback.onFileReceived(c.sender, c.groupId, c.filename, t.id, out.getAbsolutePath(), t.size);
+            }
+        }
+    }
+
+    private void replyHave(IncomingTransfers.Transfer t) throws IOException {
+        byte[] bits = t.have().toByteArray();
+        replier.reply(FrameCodec.writer(Opcode.FILE_HAVE, selfName).string(t.id).bytes(bits, 0, bits.length)
+                .toByteArray());
+    }
+
+    /**
+     * Write raw chunk bytes from {@code buf}, never more than {@link #rawRemaining()}.
+     * The buffer position is advanced past the consumed bytes.
+     */
+    void onRaw(ByteBuffer buf) throws IOException {
+        if (skipChunk) {
+            int n = (int) Math.min(buf.remaining(), rawRemaining);
+            buf.position(buf.position() + n);
+            rawRemaining -= n;
+            if (rawRemaining == 0) chunkTransfer = null;
+            return;
+        }
+        if (chunkData == null) chunkData = ByteBuffer.allocate((int) rawRemaining);
+        int n = (int) Math.min(buf.remaining(), rawRemaining);
+        ByteBuffer slice = buf.slice();
+        slice.limit(n);
+        chunkData.put(slice);
+        buf.position(buf.position() + n);
+        rawRemaining -= n;
+        if (rawRemaining > 0) return;
+
+        IncomingTransfers.Transfer t = chunkTransfer;
+        int index = chunkIndex;
+        long crc = chunkCrc;
+        ByteBuffer data = chunkData.flip();
+        chunkTransfer = null;
+        chunkData = null;
+        // ghi và kiểm tra checksum ngoài thread đọc socket
+        fileTasks.run(() -> t.write(index, crc, data), data.remaining());
+    }
+
+    /**
+     * Pull raw chunk bytes straight from {@code src} into the file with
+     * {@link java.nio.channels.FileChannel#transferFrom}, never more than
+     * {@link #rawRemaining()}.
+     */
+    void transferFrom(ReadableByteChannel src) throws IOException {
+        if (!skipChunk && chunkTransfer.isClosed()) {
+            // transfer vừa hoàn tất trên kết nối khác; không ghi vào file đã chuyển đi
+            skipChunk = true;
+        }
+        if (skipChunk) {
+            ByteBuffer scratch = ByteBuffer.allocate((int) Math.min(rawRemaining, 64 * 1024));
+            int n = src.read(scratch);
+            if (n < 0) throw new EOFException("Connection closed during file transfer");
+            rawRemaining -= n;
+            if (rawRemaining == 0) chunkTransfer = null;
+            return;
+        }
+        long n;
+        try {
+            n = chunkTransfer.channel.transferFrom(src, chunkPos, rawRemaining);
+        } catch (AsynchronousCloseException e) {
+            throw e; // không biết đã đọc bao nhiêu byte của chunk
+        } catch (ClosedChannelException e) {
+            if (!chunkTransfer.isClosed()) throw e;
+            skipChunk = true; // đóng trước khi đọc: phần còn lại được bỏ qua ở lần gọi sau
+            return;
+        }
+        if (n == 0) throw new EOFException("Connection closed during file transfer");
+        chunkPos += n;
+        rawRemaining -= n;
+        if (rawRemaining == 0) finishChunk();
+    }
+
+    private void finishChunk() throws IOException {
+        IncomingTransfers.Transfer t = chunkTransfer;
+        chunkTransfer = null;
+        // chunk sai checksum thì bỏ qua, sender gửi lại sau FILE_END
+        t.verify(chunkIndex, chunkCrc);
+    }
+
+    /** Forget an unfinished chunk when the connection goes away; it is resent on resume. */
+    void close() {
+        chunkTransfer = null;
+        chunkData = null;
+        rawRemaining = 0;
+    }
+}
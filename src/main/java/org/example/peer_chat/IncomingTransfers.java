@@ -0,0 +1,356 @@
+package org.example.peer_chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Receiver side of chunked file transfers.
+ *
+ * <pre>
+ * sender                                   receiver
+ * FILE_OFFER id groupId name size chunk -&gt;
+ *                                       &lt;- FILE_HAVE id bitmap | FILE_REJECT id reason
+ * FILE_CHUNK id index crc32 + raw bytes -&gt;   (for every missing chunk)
+ * FILE_END id                           -&gt;
+ *                                       &lt;- FILE_DONE id | FILE_HAVE id bitmap
+ * </pre>
+ *
+ * Chunks are written into {@code <TRANSFER_DIR>/<id>.part}, preallocated to
+ * the final size; a chunk only counts once its CRC32 matches, and the bitmap
+ * of verified chunks is kept in {@code <id>.state} so an interrupted transfer
+ * resumes where it stopped, even after a restart. The file is handed to the
+ * application only when every chunk is verified and the whole content hashes
+ * to the transfer id (its SHA-256); it is then moved into the {@link BlobStore}.
+ * An offer for content already in the store is answered with FILE_DONE right
+ * away, so no bytes are sent twice.
+ *
+ * The sender may spread FILE_CHUNKs over several connections, each ending
+ * with its own FILE_END; the one that finds every chunk verified completes
+ * the transfer.
+ *
+ * Several peers may offer the same content at the same time; they share one
+ * staged transfer, and every offer is recorded as a {@link Claim} so the
+ * completed file is reported once per sender/group. Locking is per transfer:
+ * hashing and moving one finished file never blocks the chunks and offers of
+ * other transfers.
+ */
+class IncomingTransfers {
+
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int FINISHED_KEPT = 64;
+
+    private final Path dir;
+    private final BlobStore blobs;
+    private final Map<String, Transfer> active = new ConcurrentHashMap<>();
+    // transfer vừa hoàn tất, để chunk/FILE_END đến muộn từ claim khác được bỏ qua
+    // thay vì làm đứt kết nối (sender sẽ offer lại và file bị báo hai lần)
+    private final Map<String, Transfer> finished = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Transfer> eldest) {
+            return size() > FINISHED_KEPT;
+        }
+    };
+
+    IncomingTransfers(Path dir, BlobStore blobs) {
+        this.dir = dir;
+        this.blobs = blobs;
+    }
+
+    /** @return the stored file with this content hash, or null */
+    File stored(String id) {
+        return blobs.find(id);
+    }
+
+    /** Who offered a file: the completed file is reported once per claim. */
+    static final class Claim {
+        final String sender;
+        final String groupId;
+        final String filename;
+
+        Claim(String sender, String groupId, String filename) {
+            this.sender = sender;
+            this.groupId = groupId;
+            this.filename = filename;
+        }
+    }
+
+    /**
+     * Open a new transfer or resume the staged one with the same id, and record
+     * this offer's sender, group and name on it.
+     *
+     * @return the transfer, or null if the content has just been stored
+     */
+    Transfer offer(String sender, String id, String groupId, String filename, long size,
+                   int chunkSize) throws IOException {
+        if (!BlobStore.isHash(id)) throw new IllegalArgumentException("Bad transfer id " + id);
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Bad transfer size " + size + "/" + chunkSize);
+        }
+        if (size > ChatConfig.MAX_FILE_BYTES) {
+            throw new IllegalArgumentException("File too large: " + size + " > " + ChatConfig.MAX_FILE_BYTES + " bytes");
+        }
+        Claim claim = new Claim(sender, groupId, filename);
+        while (true) {
+            if (blobs.find(id) != null) return null;
+            Transfer t = active.get(id);
+            if (t != null && !t.matches(size, chunkSize)) {
+                synchronized (t.completion) {
+                    if (!t.isClosed()) discard(t);
+                }
+                continue;
+            }
+            if (t == null) {
+                Files.createDirectories(dir);
+                BitSet have = loadState(id, size, chunkSize);
+                // .part được cấp phát thưa: chỉ các chunk còn thiếu cần chỗ trống
+                long missing = Math.max(0, size - (long) have.cardinality() * chunkSize);
+                long usable = Files.getFileStore(dir).getUsableSpace();
+                if (missing > usable) {
+                    throw new IllegalArgumentException("Not enough disk space: " + missing + " bytes needed, "
+                            + usable + " free");
+                }
+                Transfer fresh = new Transfer(id, filename, size, chunkSize, have);
+                t = active.putIfAbsent(id, fresh);
+                if (t != null) {
+                    fresh.channel.close(); // offer khác vừa tạo cùng transfer
+                } else {
+                    t = fresh;
+                }
+            }
+            if (t.claim(claim)) return t;
+            // transfer vừa hoàn tất hoặc bị hủy: thử lại từ đầu
+            active.remove(id, t);
+        }
+    }
+
+    /** The active transfer, or a just completed one ({@link Transfer#isClosed()}), or null. */
+    Transfer get(String id) {
+        Transfer t = active.get(id);
+        if (t != null) return t;
+        synchronized (finished) {
+            return finished.get(id);
+        }
+    }
+
+    /**
+     * Move the transfer into the blob store if every chunk is verified.
+     * Only one caller wins when several connections end at the same time.
+     * Content that does not hash to the transfer id is thrown away, so the
+     * sender's next offer starts over.
+     *
+     * Once it returns a file, {@link Transfer#claims()} lists everyone who
+     * offered it.
+     *
+     * @return the stored file, or null if chunks are missing, the hash did not
+     *         match, or another connection already completed it
+     */
+    File completeIfDone(Transfer t) throws IOException {
+        synchronized (t.completion) {
+            if (t.isClosed() || active.get(t.id) != t || !t.isComplete()) return null;
+            String actual = BlobStore.sha256(t.part);
+            if (!actual.equals(t.id)) {
+                System.err.println("[Transfer] " + t.filename + " content hash mismatch, discarding");
+                discard(t);
+                return null;
+            }
+            t.channel.close();
+            File out = blobs.put(t.part, t.id, t.filename);
+            Files.deleteIfExists(statePath(t.id));
+            // đóng sau khi blob đã có: offer đến sau đó thấy blob và trả FILE_DONE luôn
+            t.close();
+            synchronized (finished) {
+                finished.put(t.id, t);
+            }
+            active.remove(t.id, t);
+            return out;
+        }
+    }
+
+    private void discard(Transfer t) throws IOException {
+        t.close();
+        active.remove(t.id, t);
+        t.channel.close();
+        Files.deleteIfExists(t.part);
+        Files.deleteIfExists(statePath(t.id));
+    }
+
+    private Path statePath(String id) {
+        return dir.resolve(id + ".state");
+    }
+
+    // state := size:long chunkSize:int bitmapLength:int bitmap
+    private BitSet loadState(String id, long size, int chunkSize) {
+        Path state = statePath(id);
+        if (!Files.exists(state) || !Files.exists(dir.resolve(id + ".part"))) return new BitSet();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(state)))) {
+            if (in.readLong() != size || in.readInt() != chunkSize) return new BitSet();
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            return BitSet.valueOf(bits);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[Transfer] Ignoring unreadable state for " + id + ": " + e.getMessage());
+            return new BitSet();
+        }
+    }
+
+    final class Transfer {
+        final String id;
+        final String filename; // tên trong offer đầu tiên, để log và đặt đuôi blob
+        final long size;
+        final int chunkSize;
+        final int chunks;
+        final Path part;
+        final FileChannel channel;
+        private final BitSet have;
+        // sender|groupId -> claim; guarded by itself
+        private final Map<String, Claim> claims = new LinkedHashMap<>();
+        private boolean closed; // guarded by claims
+        private final Object completion = new Object();
+
+        private Transfer(String id, String filename, long size, int chunkSize, BitSet have) throws IOException {
+            this.id = id;
+            this.filename = filename;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = FileChunks.count(size, chunkSize);
+            this.part = dir.resolve(id + ".part");
+            this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.have = have;
+            // cấp phát trước toàn bộ kích thước, các chunk ghi theo vị trí vào đúng chỗ
+            if (size > 0 && channel.size() < size) {
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+
+        private boolean matches(long size, int chunkSize) {
+            return this.size == size && this.chunkSize == chunkSize;
+        }
+
+        /** @return false if the transfer already completed or was discarded */
+        private boolean claim(Claim c) {
+            synchronized (claims) {
+                if (closed) return false;
+                claims.putIfAbsent(c.sender + "|" + c.groupId, c);
+                return true;
+            }
+        }
+
+        private void close() {
+            synchronized (claims) {
+                closed = true;
+            }
+        }
+
+        /** True once the transfer completed or was discarded; its chunks are no longer needed. */
+        boolean isClosed() {
+            synchronized (claims) {
+                return closed;
+            }
+        }
+
+        /** Everyone who offered this content, in offer order. */
+        List<Claim> claims() {
+            synchronized (claims) {
+                return new ArrayList<>(claims.values());
+            }
+        }
+
+        synchronized BitSet have() {
+            return (BitSet) have.clone();
+        }
+
+        synchronized boolean isComplete() {
+            return have.cardinality() == chunks;
+        }
+
+        void checkIndex(int index) {
+            if (index < 0 || index >= chunks) throw new IllegalArgumentException("Bad chunk index " + index);
+        }
+
+        /**
+         * Check chunk {@code index} on disk against the sender's CRC32 and
+         * record it as received if it matches.
+         */
+        boolean verify(int index, long crc) throws IOException {
+            long actual;
+            try {
+                actual = FileChunks.crc32(channel, FileChunks.offset(index, chunkSize),
+                        FileChunks.length(size, chunkSize, index));
+            } catch (ClosedChannelException e) {
+                if (isClosed()) return false;
+                throw e;
+            }
+            if (actual != crc) {
+                System.err.println("[Transfer] " + filename + " chunk " + index + " checksum mismatch");
+                return false;
+            }
+            synchronized (this) {
+                have.set(index);
+                saveState();
+            }
+            return true;
+        }
+
+        /**
+         * Write chunk {@code index} from memory if it matches the sender's
+         * CRC32 and record it as received; no need to read it back.
+         */
+        boolean write(int index, long crc, ByteBuffer data) throws IOException {
+            if (isClosed()) return false;
+            CRC32 actual = new CRC32();
+            actual.update(data.duplicate());
+            if (actual.getValue() != crc || data.remaining() != FileChunks.length(size, chunkSize, index)) {
+                System.err.println("[Transfer] " + filename + " chunk " + index + " checksum mismatch");
+                return false;
+            }
+            long pos = FileChunks.offset(index, chunkSize);
+            try {
+                while (data.hasRemaining()) {
+                    pos += channel.write(data, pos);
+                }
+            } catch (ClosedChannelException e) {
+                if (isClosed()) return false; // kết nối khác vừa hoàn tất transfer
+                throw e;
+            }
+            synchronized (this) {
+                have.set(index);
+                saveState();
+            }
+            return true;
+        }
+
+        private void saveState() throws IOException {
+            byte[] bits = have.toByteArray();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(16 + bits.length);
+            try (DataOutputStream out = new DataOutputStream(bos)) {
+                out.writeLong(size);
+                out.writeInt(chunkSize);
+                out.writeInt(bits.length);
+                out.write(bits);
+            }
+            Path state = statePath(id);
+            Path tmp = dir.resolve(id + ".state.tmp");
+            Files.write(tmp, bos.toByteArray());
+            Files.move(tmp, state, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
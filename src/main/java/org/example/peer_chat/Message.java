@@ -6,12 +6,19 @@ public class Message implements ChatItem {
     private final String content;
     private final boolean file;
     private final String filePath;
+    private String fileHash;
     private long ts;
+    private volatile long id; // ghi bởi thread write-behind của ChatDb
 
     public long getTimestamp() { return ts; }
 
     public void setTimestamp(long timestamp) { this.ts = timestamp; }
 
+    /** Row id in messages / group_messages / group_files, 0 if not loaded from the DB. */
+    public long getId() { return id; }
+
+    public void setId(long id) { this.id = id; }
+
     public Message(String fromUser, String toUser, String content, boolean file, String filePath) {
         this.fromUser = fromUser;
         this.toUser = toUser;
@@ -25,4 +32,9 @@ public class Message implements ChatItem {
     public String getContent() { return content; }
     public boolean isFile() { return file; }
     public String getFilePath() { return filePath; }
+
+    /** SHA-256 of a received file's content (see BlobStore), null otherwise. */
+    public String getFileHash() { return fileHash; }
+
+    public void setFileHash(String fileHash) { this.fileHash = fileHash; }
 }
\ No newline at end of file
@@ -5,14 +5,57 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MessageHandler {
+    private static final int HASHES_KEPT = 256;
+
     private final String selfName;
     private final ServerSocket serverSocket;
+    private final ConnectionManager connections = new ConnectionManager();
+    private final FileBroadcast broadcast;
+    private final NioMessageServer nioServer;
+    private final BlobStore blobs = new BlobStore(Paths.get(ChatConfig.DATA_DIR, "blobs"));
+    private final IncomingTransfers transfers = new IncomingTransfers(Paths.get(ChatConfig.TRANSFER_DIR), blobs);
+    // path|size|mtime -> sha256, để gửi cùng file cho nhiều người không phải hash lại;
+    // LRU nhỏ, file sửa hoặc gửi lâu rồi thì hash lại; guarded by itself
+    private final Map<String, String> hashCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HASHES_KEPT;
+        }
+    };
     private volatile boolean running = true;
 
-    public interface MsgCallback { void onMessage(String sender, String message) throws SocketException, LineUnavailableException; }
-    public interface FileCallback { void onFileReceived(String sender, String filename, String absPath, long size); }
+    /** The receiver refused a file offer; sending the same offer again cannot succeed. */
+    static final class FileRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileRejectedException(String reason) {
+            super("Receiver rejected file: " + reason);
+        }
+    }
+
+    public interface MsgCallback { void onMessage(Frame frame) throws SocketException, LineUnavailableException; }
+    /** groupId is null for a direct (non-group) file; hash is the SHA-256 naming the blob. */
+    public interface FileCallback {
+        void onFileReceived(String sender, String groupId, String filename, String hash, String absPath, long size);
+    }
 
     private final MsgCallback msgCallback;
     private final FileCallback fileCallback;
@@ -23,144 +66,441 @@ public class MessageHandler {
         this.serverSocket = serverSocket;
         this.msgCallback = msgCallback;
         this.fileCallback = fileCallback;
-        startAcceptLoop();
+        this.broadcast = new FileBroadcast(connections, selfName);
+
+        NioMessageServer nio = null;
+        if (ChatConfig.useNioTransport() && serverSocket.getChannel() != null) {
+            try {
+                nio = new NioMessageServer(selfName, serverSocket.getChannel(), msgCallback, fileCallback, transfers);
+            } catch (IOException e) {
+                System.err.println("[MessageHandler] NIO transport unavailable, using blocking: " + e.getMessage());
+            }
+        }
+        this.nioServer = nio;
+        if (nioServer == null) startAcceptLoop();
     }
 
     private void startAcceptLoop() {
-        new Thread(() -> {
+        Workers.startDedicated("msg-accept-thread", () -> {
             while (running) {
                 try {
                     Socket s = serverSocket.accept();
-                    new Thread(() -> handleIncoming(s), "msg-handler-" + s.getRemoteSocketAddress()).start();
+                    if (Workers.tryStart("msg-conn-" + s.getRemoteSocketAddress(), () -> handleIncoming(s)) == null) {
+                        // hết thread: đóng kết nối, bên gửi sẽ kết nối lại
+                        System.err.println("[MessageHandler accept] Too busy, dropping " + s.getRemoteSocketAddress());
+                        try { s.close(); } catch (IOException ignored) {}
+                    }
                 } catch (IOException e) {
                     if (running) System.err.println("[MessageHandler accept] " + e.getMessage());
                 }
             }
-        }, "msg-accept-thread").start();
+        });
     }
 
+    // Một kết nối từ peer có thể mang nhiều frame liên tiếp, đọc tới khi peer đóng
     private void handleIncoming(Socket s) {
-        try (DataInputStream dis = new DataInputStream(s.getInputStream())) {
-            String type = dis.readUTF();
-            if ("MSG".equals(type)) {
-                String sender = dis.readUTF();
-                String content = dis.readUTF();
-                if (msgCallback != null) msgCallback.onMessage(sender, content);
-            } else if ("FILEG".equals(type)) {
-                String sender = dis.readUTF();
-                String groupId = dis.readUTF();
-                String filename = dis.readUTF();
-                long fileSize = dis.readLong();
-                if (msgCallback != null) msgCallback.onMessage(sender, "GROUP_FILE|" + groupId + "|" + filename);
-                File outFile = new File("received_" + System.currentTimeMillis() + "_" + filename);
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    byte[] buf = new byte[4096];
-                    long received = 0;
-                    int read;
-                    while (received < fileSize && (read = dis.read(buf)) != -1) {
-                        fos.write(buf, 0, read);
-                        received += read;
-                    }
+        InboundSession session = null;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            s.setSoTimeout(ConnectionManager.READ_TIMEOUT_MS);
+            DataOutputStream replyOut = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            session = new InboundSession(selfName, msgCallback, fileCallback, transfers, frame -> {
+                replyOut.writeInt(frame.length);
+                replyOut.write(frame);
+                replyOut.flush();
+            }, (task, bufferedBytes) -> task.run()); // đã ở thread riêng của kết nối: chạy luôn
+            // đọc qua dis để không mất các byte đã nằm trong buffer và vẫn tôn trọng soTimeout
+            ReadableByteChannel rawIn = Channels.newChannel(dis);
+            while (running) {
+                int len;
+                try {
+                    len = dis.readInt();
+                } catch (EOFException eof) {
+                    break;
                 }
-                if (fileCallback != null) fileCallback.onFileReceived(sender, filename, outFile.getAbsolutePath(), fileSize);
-            } else if ("FILE".equals(type)) {
-                String sender = dis.readUTF();
-                String filename = dis.readUTF();
-                long fileSize = dis.readLong();
-
-                File outFile = new File("received_" + System.currentTimeMillis() + "_" + filename);
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    byte[] buf = new byte[4096];
-                    long received = 0;
-                    int read;
-                    while (received < fileSize && (read = dis.read(buf)) != -1) {
-                        fos.write(buf, 0, read);
-                        received += read;
-                    }
+                if (len < 0 || len > ChatConfig.MAX_FRAME_BYTES) throw new IOException("Bad frame length " + len);
+                byte[] body = new byte[len];
+                dis.readFully(body);
+                session.onFrame(body);
+
+                // raw chunk bytes follow a FILE_CHUNK frame on the same connection
+                while (session.rawRemaining() > 0) {
+                    session.transferFrom(rawIn);
                 }
-                if (fileCallback != null) fileCallback.onFileReceived(sender, filename, outFile.getAbsolutePath(), fileSize);
-            } else {
-                System.out.println("[MessageHandler] Unknown type: " + type);
             }
+        } catch (SocketTimeoutException e) {
+            // idle connection, peer will reconnect when needed
         } catch (IOException e) {
-            System.err.println("[MessageHandler error] " + e.getMessage());
+            if (running) System.err.println("[MessageHandler error] " + e.getMessage());
         } catch (LineUnavailableException e) {
             throw new RuntimeException(e);
         } finally {
+            if (session != null) session.close();
             try { s.close(); } catch (IOException ignored) {}
         }
     }
 
     public void sendText(String address, String message) {
-        String[] p = address.split(":", 2);
-        if (p.length != 2) {
-            System.err.println("[sendText] Bad address: " + address);
-            return;
-        }
-        try (Socket socket = new Socket(p[0], Integer.parseInt(p[1]));
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-            dos.writeUTF("MSG");
-            dos.writeUTF(selfName);
-            dos.writeUTF(message);
-            dos.flush();
+        sendFrame(address, FrameCodec.writer(Opcode.CHAT_TEXT, selfName).string(message).toByteArray());
+    }
+
+    /**
+     * Send an already encoded {@link FrameCodec} frame. Frames larger than
+     * {@link ChatConfig#MAX_FRAME_BYTES} go out as consecutive FRAGMENT frames
+     * so the receiver never has to accept one oversized length prefix.
+     */
+    public void sendFrame(String address, byte[] frame) {
+        try {
+            trySendFrame(address, frame);
         } catch (IOException e) {
             System.err.println("[Error sending msg] " + e.getMessage());
         }
     }
 
+    /** Like {@link #sendFrame} but reports failure to the caller instead of logging it. */
+    public void trySendFrame(String address, byte[] frame) throws IOException {
+        send(address, prepare(frame));
+    }
+
+    /** Encode {@code frame} for the wire once, e.g. to send it to a whole group. */
+    OutboundFrame prepare(byte[] frame) throws IOException {
+        return OutboundFrame.of(selfName, frame);
+    }
+
+    void send(String address, OutboundFrame frame) throws IOException {
+        try {
+            connections.exchange(address, conn -> {
+                frame.writeTo(conn);
+                conn.flush();
+                return null;
+            });
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad address: " + address, e);
+        }
+    }
+
     public void sendFile(String address, String filePath) throws IOException {
-        String[] p = address.split(":", 2);
-        if (p.length != 2) throw new IOException("Bad address: " + address);
         File file = new File(filePath);
         if (!file.exists()) throw new IOException("File not found: " + filePath);
 
-        try (Socket socket = new Socket(p[0], Integer.parseInt(p[1]));
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             FileInputStream fis = new FileInputStream(file)) {
+        long size = streamFile(address, null, file);
+        System.out.println("[File sent] " + file.getName() + " (" + size + " bytes)");
+    }
 
-            dos.writeUTF("FILE");
-            dos.writeUTF(selfName);
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
+    public void sendGroupFile(String address, String filePath, String groupId) throws IOException {
+        File file = new File(filePath);
+        if (!file.exists()) throw new IOException("File not found: " + filePath);
 
-            byte[] buffer = new byte[4096];
-            int bytes;
-            while ((bytes = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytes);
-            }
-            dos.flush();
-            System.out.println("[File sent] " + file.getName() + " (" + file.length() + " bytes)");
-        }
+        long size = streamFile(address, groupId, file);
+        System.out.println("[Group file sent] " + file.getName() + " (" + size + " bytes) to group " + groupId);
     }
 
-    public void sendGroupFile(String address, String filePath, String groupId) throws IOException {
-        String[] p = address.split(":", 2);
-        if (p.length != 2) throw new IOException("Bad address: " + address);
+    /**
+     * Send a group file to several members at once. Each chunk is read from
+     * disk and checksummed once and written to every member that needs it
+     * (see {@link FileBroadcast}); members whose connection broke along the
+     * way are then resumed one by one like a normal transfer.
+     *
+     * @return addresses that could not be sent the file
+     */
+    public List<String> sendGroupFile(List<String> addresses, String filePath, String groupId) throws IOException {
         File file = new File(filePath);
         if (!file.exists()) throw new IOException("File not found: " + filePath);
+        return sendGroupFile(addresses, file, file.getName(), groupId, selfName);
+    }
+
+    /**
+     * Like {@link #sendGroupFile(List, String, String)} on behalf of
+     * {@code origin}, who receivers record as the sender; used when this peer
+     * forwards someone else's file (see {@link GroupFileRelay}).
+     */
+    List<String> sendGroupFile(List<String> addresses, File file, String name, String groupId, String origin)
+            throws IOException {
+        long size = file.length();
+        int chunkSize = ChatConfig.FILE_CHUNK_BYTES;
+        String id = contentHash(file, size);
+        byte[] offer = offer(id, groupId, name, size, chunkSize, origin);
+
+        List<String> retry;
+        try {
+            retry = broadcast.send(addresses, file, id, offer, chunkSize);
+        } catch (IOException e) {
+            System.err.println("[File] Broadcast of " + name + " failed: " + e.getMessage());
+            retry = addresses;
+        }
+        List<String> failed = new ArrayList<>();
+        List<Future<?>> resumes = new ArrayList<>(retry.size());
+        for (String address : retry) {
+            Future<?> resume = Workers.tryStart("file-resume-" + address, () -> {
+                try {
+                    streamFile(address, file, offer, id, name);
+                } catch (IOException e) {
+                    System.err.println("[File] " + name + " to " + address + " failed: " + e.getMessage());
+                    synchronized (failed) {
+                        failed.add(address);
+                    }
+                }
+            });
+            if (resume == null) {
+                System.err.println("[File] " + name + " to " + address + " failed: no worker thread free");
+                synchronized (failed) {
+                    failed.add(address);
+                }
+            } else {
+                resumes.add(resume);
+            }
+        }
+        for (Future<?> f : resumes) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending file");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        System.out.println("[Group file sent] " + name + " (" + size + " bytes) to "
+                + (addresses.size() - failed.size()) + "/" + addresses.size() + " members of group " + groupId);
+        return failed;
+    }
+
+    private static byte[] offer(String id, String groupId, String name, long size, int chunkSize, String origin) {
+        return FrameCodec.writer(Opcode.FILE_OFFER, origin)
+                .string(id)
+                .string(groupId)
+                .string(name)
+                .varint(size)
+                .varint(chunkSize)
+                .toByteArray();
+    }
+
+    /** Content id of {@code file} as used by the transfer protocol (its SHA-256). */
+    String fileId(File file) throws IOException {
+        return contentHash(file, file.length());
+    }
 
-        try (Socket socket = new Socket(p[0], Integer.parseInt(p[1]));
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             FileInputStream fis = new FileInputStream(file)) {
+    /** A complete received file by content hash, or null. */
+    File findBlob(String hash) {
+        return blobs.find(hash);
+    }
+
+    /**
+     * Send a file with the chunked protocol described in {@link IncomingTransfers}.
+     * A dropped connection is retried up to {@link ChatConfig#FILE_RESUME_ATTEMPTS}
+     * times; each attempt only sends the chunks the receiver has not verified.
+     * Files of at least {@link ChatConfig#FILE_PARALLEL_MIN_BYTES} are spread
+     * over {@link ChatConfig#FILE_TRANSFER_LANES} parallel connections.
+     *
+     * @return the number of bytes in the file
+     */
+    private long streamFile(String address, String groupId, File file) throws IOException {
+        String id = contentHash(file, file.length());
+        byte[] offer = offer(id, groupId, file.getName(), file.length(), ChatConfig.FILE_CHUNK_BYTES, selfName);
+        return streamFile(address, file, offer, id, file.getName());
+    }
+
+    private long streamFile(String address, File file, byte[] offer, String id, String name) throws IOException {
+        long size = file.length();
+        int chunkSize = ChatConfig.FILE_CHUNK_BYTES;
+        int chunks = FileChunks.count(size, chunkSize);
+        int lanes = size >= ChatConfig.FILE_PARALLEL_MIN_BYTES
+                ? Math.max(1, Math.min(ChatConfig.FILE_TRANSFER_LANES, chunks)) : 1;
+
+        long started = System.nanoTime();
+        IOException last = null;
+        int attempts = Math.max(1, ChatConfig.FILE_RESUME_ATTEMPTS);
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (!sendChunks(address, fc, offer, id, name, size, chunkSize, lanes)) return size;
+                double secs = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+                System.out.printf("[File] %s: %d bytes in %.2f s (%.1f MB/s, %d lane%s)%n", name, size,
+                        secs, size / secs / (1024 * 1024), lanes, lanes == 1 ? "" : "s");
+                return size;
+            } catch (FileRejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+                System.err.println("[File] " + name + " interrupted (attempt " + attempt + "/" + attempts
+                        + "): " + e.getMessage());
+            }
+            if (attempt == attempts)
+                break; // lần cuối: báo lỗi ngay, không chờ thêm
+            try {
+                Thread.sleep(1000L * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw last;
+    }
 
-            dos.writeUTF("FILE");
-            dos.writeUTF(selfName);
-            dos.writeUTF(groupId);
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
+    /** @return false if nothing had to be sent because the receiver already had the content */
+    private boolean sendChunks(String address, FileChannel fc, byte[] offer, String id, String name, long size,
+                               int chunkSize, int lanes) throws IOException {
+        int chunks = FileChunks.count(size, chunkSize);
+        // vòng sau chỉ xảy ra khi có chunk sai checksum hoặc một lane bị đứt
+        for (int round = 0; round < 3; round++) {
+            BitSet have = connections.exchange(address, ConnectionManager.FILE_LANE, conn -> {
+                conn.writeFrame(offer);
+                conn.flush();
+                return readHave(conn, id);
+            });
+            if (have == null) {
+                System.out.println("[File] " + name + " already at receiver, skipped " + size + " bytes");
+                return false;
+            }
+            // bitmap đến từ peer: bỏ các bit ngoài phạm vi chunk
+            have.clear(chunks, Math.max(chunks, have.length()));
+            if (!have.isEmpty()) {
+                System.out.println("[File] Resuming " + name + " at " + have.cardinality() + "/" + chunks + " chunks");
+            }
+            int[] missing = new int[chunks - have.cardinality()];
+            for (int i = have.nextClearBit(0), k = 0; i < chunks; i = have.nextClearBit(i + 1)) {
+                missing[k++] = i;
+            }
+            AtomicInteger cursor = new AtomicInteger();
 
-            byte[] buffer = new byte[4096];
-            int bytes;
-            while ((bytes = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytes);
+            boolean done;
+            if (lanes == 1) {
+                done = sendLane(address, ConnectionManager.FILE_LANE, fc, id, size, chunkSize, missing, cursor);
+            } else {
+                done = sendParallel(address, fc, id, size, chunkSize, missing, cursor, lanes);
             }
-            dos.flush();
-            System.out.println("[Group file sent] " + file.getName() + " (" + file.length() + " bytes) to group " + groupId);
+            if (done) return true;
         }
+        throw new IOException("Transfer of " + name + " kept failing");
+    }
+
+    // mỗi lane một kết nối riêng; lane 0 (kết nối thường) vẫn rảnh cho tin nhắn chat
+    private boolean sendParallel(String address, FileChannel fc, String id, long size, int chunkSize,
+                                 int[] missing, AtomicInteger cursor, int lanes) throws IOException {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Future<?>> running = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            int laneNo = ConnectionManager.FILE_LANE + lane;
+            Future<?> f = Workers.tryStart("file-lane-" + laneNo, () -> {
+                try {
+                    if (sendLane(address, laneNo, fc, id, size, chunkSize, missing, cursor)) done.set(true);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            if (f == null) {
+                // các lane đã chạy vẫn lấy chunk từ cursor; phần còn thiếu gửi lại ở vòng sau
+                failure.compareAndSet(null, new IOException("No worker thread free for lane " + laneNo));
+            } else {
+                running.add(f);
+            }
+        }
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending file");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        if (done.get()) return true;
+        // lane nào đứt thì chunk của nó còn thiếu; vòng sau chỉ gửi lại phần đó
+        if (failure.get() != null) {
+            System.err.println("[File] Lane failed: " + failure.get().getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Send chunks taken from {@code missing} until none are left, then end the
+     * lane with FILE_END. Its reply also proves every chunk of this lane was
+     * processed by the receiver.
+     *
+     * @return true if this lane's FILE_END completed the transfer
+     */
+    private boolean sendLane(String address, int lane, FileChannel fc, String id, long size, int chunkSize,
+                             int[] missing, AtomicInteger cursor) throws IOException {
+        byte[] end = FrameCodec.writer(Opcode.FILE_END, selfName).string(id).toByteArray();
+        return connections.exchange(address, lane, conn -> {
+            int k;
+            while ((k = cursor.getAndIncrement()) < missing.length) {
+                int i = missing[k];
+                long pos = FileChunks.offset(i, chunkSize);
+                int len = FileChunks.length(size, chunkSize, i);
+                long crc = FileChunks.crc32(fc, pos, len);
+                conn.writeFrame(FrameCodec.writer(Opcode.FILE_CHUNK, selfName)
+                        .string(id)
+                        .varint(i)
+                        .varint(crc)
+                        .toByteArray());
+                conn.flush();
+                // byte của chunk đi thẳng từ file ra socket (sendfile trên Linux)
+                long sent = 0;
+                while (sent < len) {
+                    long n = fc.transferTo(pos + sent, len - sent, conn.channel());
+                    if (n <= 0 && pos + sent >= fc.size()) throw new IOException("File shrank while sending");
+                    sent += n;
+                }
+            }
+            conn.writeFrame(end);
+            conn.flush();
+            Frame reply = conn.readFrame();
+            if (reply.opcode() == Opcode.FILE_DONE) return true;
+            if (reply.opcode() != Opcode.FILE_HAVE) throw new IOException("Unexpected reply " + reply.code());
+            return false;
+        });
+    }
+
+    /** @return the receiver's verified chunks, or null if it already holds the whole content */
+    private static BitSet readHave(ConnectionManager.Connection conn, String id) throws IOException {
+        Frame reply = conn.readFrame();
+        if (reply.opcode() == Opcode.FILE_DONE) return null;
+        if (reply.opcode() == Opcode.FILE_REJECT) throw rejected(reply);
+        if (reply.opcode() != Opcode.FILE_HAVE) throw new IOException("Unexpected reply " + reply.code());
+        try {
+            if (!id.equals(reply.string())) throw new IOException("FILE_HAVE for another transfer");
+            return BitSet.valueOf(reply.bytes());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed FILE_HAVE: " + e.getMessage());
+        }
+    }
+
+    // reject := id reason
+    static FileRejectedException rejected(Frame reply) {
+        try {
+            reply.string();
+            return new FileRejectedException(reply.string());
+        } catch (IllegalArgumentException e) {
+            return new FileRejectedException("(no reason)");
+        }
+    }
+
+    // id của transfer là SHA-256 nội dung: gửi lại tiếp tục phần đã có, bên nhận có sẵn thì bỏ qua
+    private String contentHash(File file, long size) throws IOException {
+        String key = file.getAbsolutePath() + "|" + size + "|" + file.lastModified();
+        String hash;
+        synchronized (hashCache) {
+            hash = hashCache.get(key);
+        }
+        if (hash == null) {
+            hash = BlobStore.sha256(file.toPath()); // ngoài lock: hash file lớn không chặn lần gửi khác
+            synchronized (hashCache) {
+                hashCache.put(key, hash);
+            }
+        }
+        return hash;
+    }
+
+    /** Close the pooled connection to a peer that went offline. */
+    public void disconnect(String address) {
+        if (address != null) connections.close(address);
     }
 
     public void stop() {
         running = false;
+        if (nioServer != null) nioServer.stop();
         try { serverSocket.close(); } catch (IOException ignored) {}
+        connections.closeAll();
     }
 }
@@ -0,0 +1,359 @@
+package org.example.peer_chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking inbound transport for {@link MessageHandler}, enabled with
+ * {@code -Dpeerchat.transport=nio}.
+ *
+ * A small fixed set of selector threads accepts and reads every peer
+ * connection; frames are decoded incrementally from each connection's
+ * ByteBuffer by an {@link InboundSession}. Message/file callbacks and all
+ * disk work of file transfers (chunk writes and checksums, transfer state,
+ * final hash and move into the blob store) run on a fixed worker pool, in
+ * order per connection, so a large file never stalls the other connections of
+ * its selector. When a connection has too many tasks or chunk bytes queued,
+ * reading from it is paused until the workers catch up. File transfer replies
+ * are queued per connection and written by the selector thread as the socket
+ * accepts them.
+ */
+class NioMessageServer {
+
+    private static final long IDLE_SCAN_MS = 10_000;
+    // chunk đã đọc nhưng chưa ghi ra đĩa, mỗi kết nối
+    private static final long MAX_QUEUED_FILE_BYTES = 8L * 1024 * 1024;
+
+    private final String selfName;
+    private final ServerSocketChannel server;
+    private final IncomingTransfers transfers;
+    private final MessageHandler.MsgCallback msgCallback;
+    private final MessageHandler.FileCallback fileCallback;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+    private int nextLoop = 0;
+
+    private interface CallbackTask {
+        void run() throws Exception;
+    }
+
+    NioMessageServer(String selfName, ServerSocketChannel server, MessageHandler.MsgCallback msgCallback,
+                     MessageHandler.FileCallback fileCallback, IncomingTransfers transfers) throws IOException {
+        this.selfName = selfName;
+        this.server = server;
+        this.transfers = transfers;
+        this.msgCallback = msgCallback;
+        this.fileCallback = fileCallback;
+
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, ChatConfig.NIO_WORKER_THREADS),
+                r -> new Thread(r, "nio-worker-" + workerId.incrementAndGet()));
+
+        server.configureBlocking(false);
+        loops = new IoLoop[Math.max(1, ChatConfig.NIO_IO_THREADS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+        // loop 0 also accepts new connections
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-io-" + i).start();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+        try { server.close(); } catch (IOException ignored) {}
+    }
+
+    private void accept() {
+        try {
+            SocketChannel ch;
+            while ((ch = server.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[nextLoop++ % loops.length];
+                SocketChannel accepted = ch;
+                loop.submit(() -> loop.register(accepted));
+            }
+        } catch (IOException e) {
+            if (running) System.err.println("[NioMessageServer accept] " + e.getMessage());
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private long lastIdleScan = System.currentTimeMillis();
+
+        IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void submit(Runnable r) {
+            pending.add(r);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                NioConnection conn = new NioConnection(ch, this);
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    System.err.println("[NioMessageServer select] " + e.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (key.isWritable()) conn.onWritable();
+                        if (key.isValid() && key.isReadable()) conn.onReadable();
+                    }
+                }
+                closeIdle();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection conn) conn.close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleScan < IDLE_SCAN_MS) return;
+            lastIdleScan = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection conn
+                        && now - conn.lastRead > ConnectionManager.READ_TIMEOUT_MS
+                        && conn.pending.get() == 0) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private class NioConnection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        final InboundSession session;
+        // direct: socket read và ghi file không phải copy qua heap buffer tạm của JDK
+        final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+        SelectionKey key;
+        long lastRead = System.currentTimeMillis();
+
+        // frame being assembled
+        private byte[] body;
+        private int bodyPos;
+
+        // replies not yet written to the socket, only touched by the selector thread
+        private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+
+        // callbacks waiting to run for this connection, executed one at a time
+        final Queue<CallbackTask> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong queuedBytes = new AtomicLong();
+        final AtomicBoolean draining = new AtomicBoolean(false);
+        final AtomicBoolean paused = new AtomicBoolean(false);
+
+        NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.session = new InboundSession(selfName,
+                    msgCallback == null ? null
+                            : frame -> dispatch(() -> msgCallback.onMessage(frame)),
+                    fileCallback == null ? null
+                            : (sender, groupId, filename, hash, path, size) -> dispatch(
+                                    () -> fileCallback.onFileReceived(sender, groupId, filename, hash, path, size)),
+                    transfers, this::reply, this::dispatchFile);
+        }
+
+        // gọi từ worker: writes chỉ được chạm trên selector thread
+        private void reply(byte[] frame) {
+            ByteBuffer buf = ByteBuffer.allocate(4 + frame.length);
+            buf.putInt(frame.length).put(frame).flip();
+            loop.submit(() -> {
+                writes.add(buf);
+                onWritable();
+            });
+        }
+
+        private void dispatchFile(InboundSession.FileTask task, long bufferedBytes) {
+            queuedBytes.addAndGet(bufferedBytes);
+            dispatch(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    // như transport blocking: lỗi khi nhận file thì đóng kết nối, sender sẽ resume
+                    System.err.println("[NioMessageServer file] " + e.getMessage());
+                    loop.submit(this::close);
+                } finally {
+                    queuedBytes.addAndGet(-bufferedBytes);
+                }
+            });
+        }
+
+        private boolean overloaded() {
+            return pending.get() >= ChatConfig.NIO_MAX_PENDING_FRAMES || queuedBytes.get() >= MAX_QUEUED_FILE_BYTES;
+        }
+
+        private boolean caughtUp() {
+            return pending.get() <= ChatConfig.NIO_MAX_PENDING_FRAMES / 2
+                    && queuedBytes.get() <= MAX_QUEUED_FILE_BYTES / 2;
+        }
+
+        void onWritable() {
+            try {
+                while (!writes.isEmpty()) {
+                    ByteBuffer buf = writes.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) break;
+                    writes.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (key == null || !key.isValid()) return;
+            int ops = paused.get() ? 0 : SelectionKey.OP_READ;
+            if (!writes.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuf);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n == -1) {
+                close();
+                return;
+            }
+            lastRead = System.currentTimeMillis();
+            readBuf.flip();
+            try {
+                decode();
+            } catch (Exception e) {
+                System.err.println("[NioMessageServer] " + e.getMessage());
+                close();
+                return;
+            }
+            readBuf.compact();
+
+            // back-pressure: stop reading until the workers drain this connection
+            if (overloaded() && paused.compareAndSet(false, true)) {
+                updateInterest();
+                if (caughtUp() && paused.compareAndSet(true, false)) {
+                    updateInterest();
+                }
+            }
+        }
+
+        private void decode() throws Exception {
+            while (true) {
+                if (session.rawRemaining() > 0) {
+                    if (!readBuf.hasRemaining()) return;
+                    session.onRaw(readBuf);
+                    continue;
+                }
+                if (body == null) {
+                    if (readBuf.remaining() < 4) return;
+                    int len = readBuf.getInt();
+                    if (len < 0 || len > ChatConfig.MAX_FRAME_BYTES) throw new IOException("Bad frame length " + len);
+                    body = new byte[len];
+                    bodyPos = 0;
+                }
+                int n = Math.min(readBuf.remaining(), body.length - bodyPos);
+                readBuf.get(body, bodyPos, n);
+                bodyPos += n;
+                if (bodyPos < body.length) return;
+
+                byte[] frame = body;
+                body = null;
+                session.onFrame(frame);
+            }
+        }
+
+        private void dispatch(CallbackTask task) {
+            pending.incrementAndGet();
+            tasks.add(task);
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                CallbackTask task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        System.err.println("[NioMessageServer callback] " + e.getMessage());
+                    }
+                    pending.decrementAndGet();
+                    if (caughtUp() && paused.compareAndSet(true, false)) {
+                        loop.submit(this::resumeReading);
+                    }
+                }
+                draining.set(false);
+                // another frame may have been queued after the last poll
+                if (tasks.isEmpty() || !draining.compareAndSet(false, true)) return;
+            }
+        }
+
+        private void resumeReading() {
+            updateInterest();
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            session.close();
+        }
+    }
+}
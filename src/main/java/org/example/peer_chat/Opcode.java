@@ -0,0 +1,66 @@
+package org.example.peer_chat;
+
+/**
+ * Message types of the binary peer protocol (see {@link FrameCodec}).
+ * The byte code is what goes on the wire, so existing codes must never change.
+ * Built-in codes stay below {@link FrameCodec#FIRST_CUSTOM_CODE}.
+ */
+public enum Opcode {
+    CHAT_TEXT(1),
+    FRAGMENT(4),
+
+    // chunked, resumable file transfer (see IncomingTransfers)
+    FILE_OFFER(5),
+    FILE_HAVE(6),
+    FILE_CHUNK(7),
+    FILE_END(8),
+    FILE_DONE(9),
+    // người nhận từ chối offer (size/chunkSize không hợp lệ), sender dừng ngay
+    FILE_REJECT(11),
+
+    SYSTEM_OFFLINE(10),
+
+    CALL_REQUEST(20),
+    CALL_REQUEST_VIDEO(21),
+    CALL_ACCEPT(22),
+    CALL_ACCEPT_VIDEO(23),
+    CALL_END(24),
+    CALL_REJECT(25),
+    CALL_VIDEO_ON(26),
+    CALL_VIDEO_OFF(27),
+
+    GROUP_INVITE(40),
+    GROUP_INVITE_ACCEPT(41),
+    GROUP_INVITE_REJECT(42),
+    GROUP_CREATE(43),
+    GROUP_MSG(44),
+    GROUP_LEAVE(45),
+    GROUP_RENAME(46),
+    GROUP_ADD_MEMBER(47),
+    GROUP_REMOVE_MEMBER(48),
+    // nhờ peer vừa nhận file group chuyển tiếp cho một nhánh thành viên (see GroupFileRelay)
+    GROUP_FILE_RELAY(49);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode op : values()) {
+            BY_CODE[op.code] = op;
+        }
+    }
+
+    private final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /** @return the opcode for a wire code, or null if it is not known. */
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
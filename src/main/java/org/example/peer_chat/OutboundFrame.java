@@ -0,0 +1,55 @@
+package org.example.peer_chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame encoded once into its exact wire bytes: the length prefix and body,
+ * or the whole run of FRAGMENT frames when it is larger than
+ * {@link ChatConfig#MAX_FRAME_BYTES}. Immutable, so a group send writes the
+ * same bytes to every member's connection without encoding anything again.
+ */
+final class OutboundFrame {
+
+    private final byte[] wire;
+
+    private OutboundFrame(byte[] wire) {
+        this.wire = wire;
+    }
+
+    /** Encode an already built {@link FrameCodec} frame of {@code selfName}. */
+    static OutboundFrame of(String selfName, byte[] frame) throws IOException {
+        if (frame.length > ChatConfig.MAX_MESSAGE_BYTES) {
+            throw new IOException("Message too large: " + frame.length + " bytes");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length + 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (frame.length <= ChatConfig.MAX_FRAME_BYTES) {
+            out.writeInt(frame.length);
+            out.write(frame);
+            return new OutboundFrame(bytes.toByteArray());
+        }
+        // chừa chỗ cho header của frame FRAGMENT (version, opcode, sender, 3 varint)
+        int overhead = 2 + 5 + selfName.getBytes(StandardCharsets.UTF_8).length + 3 * 5;
+        int chunk = ChatConfig.MAX_FRAME_BYTES - overhead;
+        if (chunk <= 0) throw new IOException("peerchat.maxFrameBytes too small");
+        for (int off = 0; off < frame.length; off += chunk) {
+            int len = Math.min(chunk, frame.length - off);
+            byte[] fragment = FrameCodec.writer(Opcode.FRAGMENT, selfName)
+                    .varint(frame.length)
+                    .varint(off)
+                    .bytes(frame, off, len)
+                    .toByteArray();
+            out.writeInt(fragment.length);
+            out.write(fragment);
+        }
+        return new OutboundFrame(bytes.toByteArray());
+    }
+
+    /** Write the frame to {@code conn}; the caller flushes. */
+    void writeTo(ConnectionManager.Connection conn) throws IOException {
+        conn.out().write(wire);
+    }
+}
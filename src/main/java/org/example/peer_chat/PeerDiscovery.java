@@ -4,17 +4,39 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * LAN presence over multicast: every peer sends a HELLO each
+ * {@link #HELLO_INTERVAL_MS}. A peer whose HELLOs stop for
+ * {@link ChatConfig#PEER_TIMEOUT_HELLOS} intervals (crash, cable pulled, no
+ * SYSTEM_OFFLINE sent) is reported through {@link DiscoveryCallback#onPeerOffline}.
+ */
 public class PeerDiscovery {
 
     public interface DiscoveryCallback {
+        /** Called for every HELLO received from another peer. */
         void onPeerOnline(String name, String addr);
+
+        /** Called once when a peer has not sent a HELLO for too long. */
+        default void onPeerOffline(String name) {
+        }
     }
 
+    static final long HELLO_INTERVAL_MS = 2000;
+
     private final String selfName;
     private final int listenPort;
     private final DiscoveryCallback callback;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    // peerName -> System.nanoTime() của HELLO gần nhất
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
 
     private final String MCAST_ADDR = "230.0.0.0";
     private final int MCAST_PORT = 9999;
@@ -30,6 +52,14 @@ public class PeerDiscovery {
         initMulticastSocket();
         startBroadcastLoop();
         startListenLoop();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::expireSilentPeers, HELLO_INTERVAL_MS, HELLO_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
     }
 
     private void initMulticastSocket() throws IOException {
@@ -74,7 +104,7 @@ public class PeerDiscovery {
                 while (running.get()) {
                     try {
                         sender.send(packet);
-                        Thread.sleep(2000);
+                        Thread.sleep(HELLO_INTERVAL_MS);
                     } catch (Exception e) {
                         System.err.println("[PeerDiscovery broadcast] " + e.getMessage());
                     }
@@ -102,6 +132,7 @@ public class PeerDiscovery {
                         int port = Integer.parseInt(p[2]);
                         if (!peerName.equals(selfName)) {
                             String addr = packet.getAddress().getHostAddress() + ":" + port;
+                            lastSeen.put(peerName, System.nanoTime());
                             callback.onPeerOnline(peerName, addr);
                         }
                     }
@@ -114,8 +145,27 @@ public class PeerDiscovery {
         t.start();
     }
 
+    /** Báo offline các peer đã lỡ quá PEER_TIMEOUT_HELLOS lần HELLO liên tiếp. */
+    private void expireSilentPeers() {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(HELLO_INTERVAL_MS * Math.max(1, ChatConfig.PEER_TIMEOUT_HELLOS));
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> e : lastSeen.entrySet()) {
+            long seen = e.getValue();
+            // remove(key, value): một HELLO vừa tới thì không xóa nhầm
+            if (now - seen > timeout && lastSeen.remove(e.getKey(), seen)) {
+                System.out.println("[PeerDiscovery] No HELLO from " + e.getKey() + ", marking offline");
+                try {
+                    callback.onPeerOffline(e.getKey());
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
     public void stop() {
         running.set(false);
+        sweeper.shutdownNow();
         try {
             if (mcastSocket != null) mcastSocket.leaveGroup(new InetSocketAddress(group, MCAST_PORT), ni);
             if (mcastSocket != null) mcastSocket.close();
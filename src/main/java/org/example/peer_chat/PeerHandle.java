@@ -1,18 +1,24 @@
 package org.example.peer_chat;
 
 import javax.sound.sampled.LineUnavailableException;
+import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class PeerHandle {
@@ -22,12 +28,21 @@ public class PeerHandle {
     private final ChatDb db;
     private final MessageHandler messageHandler;
     private final PeerDiscovery discovery;
+    private final GroupFanout fanout;
+    private final GroupFileRelay relay;
     private VoiceEngine voiceEngine;
     private VideoEngine videoEngine;
 
     // cache: peerName -> "ip:tcpPort"
     private final Map<String, String> cachedPeers = new ConcurrentHashMap<>();
 
+    // các tin gần nhất của những chat vừa mở, cập nhật mỗi khi ghi vào DB
+    private final ConversationCache conversations = new ConversationCache();
+
+    // groupId -> thành viên hiện tại. Mảng không bao giờ bị sửa: mỗi thay đổi
+    // thay cả mảng, nên đường gửi chỉ đọc map mà không cần khóa hay SQLite
+    private final Map<String, String[]> groupMembers = new ConcurrentHashMap<>();
+
     // pending group invites owned by this peer (keyed by groupId)
     private final Map<String, PendingGroupInvite> pendingGroupInvites = new HashMap<>();
 
@@ -39,7 +54,17 @@ public class PeerHandle {
     // lưu tạm videoPort của caller khi nhận CALL_REQUEST_VIDEO, dùng cho
     // acceptVideoCall()
     private volatile int pendingCallerVideoPort = -1;
-    private final java.util.concurrent.ConcurrentHashMap<String, String> expectedGroupFiles = new java.util.concurrent.ConcurrentHashMap<>();
+
+    // bảng dispatch: wire code -> handler, tra cứu bằng một lần truy cập mảng
+    private volatile FrameHandler[] handlers = new FrameHandler[256];
+
+    /**
+     * Handler for one frame type. Runs on the receiving connection's thread;
+     * fields are read from the frame in the order the sender wrote them.
+     */
+    public interface FrameHandler {
+        void handle(Frame frame) throws SocketException, LineUnavailableException;
+    }
 
     // simple structure to track group invite state on the owner side
     private static class PendingGroupInvite {
@@ -55,33 +80,30 @@ public class PeerHandle {
         this.name = name;
         this.db = db;
 
-        this.serverSocket = new ServerSocket(0);
+        // mở qua ServerSocketChannel để MessageHandler có thể dùng transport NIO
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(0));
+        this.serverSocket = serverChannel.socket();
         this.listenPort = serverSocket.getLocalPort();
 
         localVoicePort = chooseRandomPort();
         localVideoPort = chooseRandomPort();
 
-        this.messageHandler = new MessageHandler(this.name, serverSocket, this::onIncomingMessage,
+        registerHandlers();
+        this.messageHandler = new MessageHandler(this.name, serverSocket, this::onIncomingFrame,
                 this::onIncomingFile);
+        this.fanout = new GroupFanout(this::lookup, messageHandler::send);
+        this.relay = new GroupFileRelay(this.name, messageHandler, this::lookup, ChatConfig.FILE_RELAY_FANOUT);
 
-        this.discovery = new PeerDiscovery(this.name, this.listenPort, (peerName, addr) -> {
-
-            String old = cachedPeers.get(peerName);
-
-            // Nếu chưa có entry cho peer này -> lưu lại và thông báo online
-            if (old == null) {
-                cachedPeers.put(peerName, addr);
-                System.out.println("[Discovered peer] " + peerName + " -> " + addr);
-                if (listener != null)
-                    listener.onMessage("SYSTEM", "Peer online: " + peerName);
-                return;
+        this.discovery = new PeerDiscovery(this.name, this.listenPort, new PeerDiscovery.DiscoveryCallback() {
+            @Override
+            public void onPeerOnline(String peerName, String addr) {
+                onPeerDiscovered(peerName, addr);
             }
 
-            // Nếu đã biết peerName nhưng với địa chỉ khác, bỏ qua để tránh
-            // bị nhảy qua lại giữa nhiều instance trùng tên (ổn định hơn).
-            if (!old.equals(addr)) {
-                // System.out.println("[Discovered peer] duplicate name " + peerName +
-                // " at " + addr + ", keeping existing " + old);
+            @Override
+            public void onPeerOffline(String peerName) {
+                onPeerExpired(peerName);
             }
         });
 
@@ -89,6 +111,38 @@ public class PeerHandle {
                 localVideoPort);
     }
 
+    private void onPeerDiscovered(String peerName, String addr) {
+        String old = cachedPeers.get(peerName);
+
+        // Nếu chưa có entry cho peer này -> lưu lại và thông báo online
+        if (old == null) {
+            cachedPeers.put(peerName, addr);
+            System.out.println("[Discovered peer] " + peerName + " -> " + addr);
+            if (listener != null)
+                listener.onMessage("SYSTEM", "Peer online: " + peerName);
+            return;
+        }
+
+        // Nếu đã biết peerName nhưng với địa chỉ khác, bỏ qua để tránh
+        // bị nhảy qua lại giữa nhiều instance trùng tên (ổn định hơn).
+        if (!old.equals(addr)) {
+            // System.out.println("[Discovered peer] duplicate name " + peerName +
+            // " at " + addr + ", keeping existing " + old);
+        }
+    }
+
+    // Peer không còn gửi HELLO (crash, mất mạng): bỏ khỏi cachedPeers để các lần
+    // gửi sau bỏ qua ngay thay vì chờ connect timeout
+    private void onPeerExpired(String peerName) {
+        String addr = cachedPeers.remove(peerName);
+        if (addr == null)
+            return; // đã offline (SYSTEM_OFFLINE hoặc logout)
+        messageHandler.disconnect(addr);
+        System.out.println("[PeerHandle] Peer timed out: " + peerName);
+        if (listener != null)
+            listener.onMessage("SYSTEM", "Peer offline: " + peerName);
+    }
+
     private VoiceEngine getVoiceEngine() throws LineUnavailableException, SocketException {
         if (voiceEngine == null) {
             voiceEngine = new VoiceEngine(localVoicePort);
@@ -120,6 +174,89 @@ public class PeerHandle {
         return name;
     }
 
+    /** Recent history of opened chats; kept current by the record and send methods below. */
+    public ConversationCache getConversationCache() {
+        return conversations;
+    }
+
+    // ===== HISTORY =====
+    // Mọi tin/file/cuộc gọi đều được lưu qua đây để ConversationCache luôn khớp với DB.
+
+    /** Full-text search over the 1:1 and group messages of this user, best matches first. */
+    public List<SearchResult> searchHistory(String text, int limit) {
+        return db.search(name, text, limit);
+    }
+
+    public void recordMessage(Message msg) {
+        db.insertMessage(msg);
+        conversations.append(ConversationCache.conversationKey(msg.getFromUser(), msg.getToUser()), msg);
+    }
+
+    public void recordCall(CallRecord record) {
+        db.insertCallRecord(record);
+        conversations.append(ConversationCache.conversationKey(record.getFromUser(), record.getToUser()), record);
+    }
+
+    public void recordGroupMessage(String groupId, String fromUser, String content) {
+        Message msg = db.insertGroupMessage(groupId, fromUser, content);
+        conversations.append(ConversationCache.groupKey(groupId), msg);
+    }
+
+    public void recordGroupFile(String groupId, String fromUser, String filename, String filePath, String fileHash) {
+        Message msg = db.insertGroupFile(groupId, fromUser, filename, filePath, fileHash);
+        conversations.append(ConversationCache.groupKey(groupId), msg);
+    }
+
+    /** Gửi tin nhắn 1:1 và lưu lịch sử. */
+    public Message sendChatMessage(String peerName, String text) {
+        Message msg = new Message(name, peerName, text, false, null);
+        msg.setTimestamp(System.currentTimeMillis());
+        // Lưu vào database trước khi gửi
+        recordMessage(msg);
+        sendToByName(peerName, text);
+        return msg;
+    }
+
+    /** Gửi file 1:1 (blocking tới khi gửi xong) rồi lưu lịch sử. */
+    public void sendChatFile(String peerName, String filePath) {
+        sendFileByName(peerName, filePath);
+        Message msg = new Message(name, peerName, new File(filePath).getName(), true, filePath);
+        msg.setTimestamp(System.currentTimeMillis());
+        recordMessage(msg);
+    }
+
+    /**
+     * Gửi file tới mọi thành viên khác đang online của group (file chỉ được đọc
+     * một lần cho tất cả) rồi lưu vào group_files. File lớn đi theo cây relay:
+     * mình chỉ gửi cho vài thành viên, họ chuyển tiếp cho những người còn lại.
+     */
+    public void sendGroupFile(String groupId, String filePath) {
+        File file = new File(filePath);
+        List<String> others = otherMembers(groupId);
+        try {
+            if (ChatConfig.FILE_RELAY_FANOUT > 0 && file.length() >= ChatConfig.FILE_RELAY_MIN_BYTES) {
+                List<String> unreached = relay.distribute(groupId, file, file.getName(), name, others);
+                if (!unreached.isEmpty())
+                    System.out.println("[sendGroupFile] Not delivered to: " + unreached);
+            } else {
+                List<String> addresses = new ArrayList<>();
+                for (String member : others) {
+                    String addr = lookup(member);
+                    if (addr == null) {
+                        System.out.println("[sendGroupFile] Peer not found: " + member);
+                        continue;
+                    }
+                    addresses.add(addr);
+                }
+                if (!addresses.isEmpty())
+                    messageHandler.sendGroupFile(addresses, filePath, groupId);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        recordGroupFile(groupId, name, new File(filePath).getName(), filePath, null);
+    }
+
     public void setListener(MessageListener listener) {
         this.listener = listener;
     }
@@ -129,7 +266,7 @@ public class PeerHandle {
     }
 
     public void removePeer(String peerName) {
-        cachedPeers.remove(peerName);
+        messageHandler.disconnect(cachedPeers.remove(peerName));
         if (listener != null) {
             listener.onMessage("SYSTEM", "Peer offline: " + peerName);
             System.out.println("[removePeer] Peer offline: " + peerName);
@@ -137,8 +274,9 @@ public class PeerHandle {
     }
 
     public void broadcastOffline() {
+        byte[] frame = FrameCodec.writer(Opcode.SYSTEM_OFFLINE, name).toByteArray();
         for (String peerName : cachedPeers.keySet()) {
-            sendToByName(peerName, "SYSTEM|OFFLINE|" + name);
+            sendFrameByName(peerName, frame);
         }
     }
 
@@ -160,6 +298,16 @@ public class PeerHandle {
         messageHandler.sendText(addr, message);
     }
 
+    /** Send an already encoded frame (see {@link FrameCodec}) to a peer. */
+    public void sendFrameByName(String peerName, byte[] frame) {
+        String addr = lookup(peerName);
+        if (addr == null) {
+            System.out.println("[sendToByName] Peer not found: " + peerName);
+            return;
+        }
+        messageHandler.sendFrame(addr, frame);
+    }
+
     public void sendFileByName(String peerName, String filePath) {
         String addr = lookup(peerName);
         if (addr == null) {
@@ -207,10 +355,15 @@ public class PeerHandle {
         pendingGroupInvites.put(groupId, inv);
 
         String membersCsv = String.join(",", members);
-        String payload = "GROUP_INVITE|" + groupId + "|" + groupName + "|" + name + "|" + membersCsv;
+        byte[] payload = FrameCodec.writer(Opcode.GROUP_INVITE, name)
+                .string(groupId)
+                .string(groupName)
+                .string(name)
+                .strings(members)
+                .toByteArray();
 
         for (String m : members) {
-            sendToByName(m, payload);
+            sendFrameByName(m, payload);
         }
 
         // Tạo group local ngay lập tức cho owner để có thể bắt đầu chat/lưu lịch sử
@@ -218,6 +371,7 @@ public class PeerHandle {
         java.util.List<String> initialMembers = new java.util.ArrayList<>();
         initialMembers.add(name); // owner
         db.insertGroupMembers(groupId, initialMembers);
+        groupMembers.put(groupId, initialMembers.toArray(new String[0]));
         if (listener != null) {
             listener.onGroupCreated(groupId, groupName, name, initialMembers);
         }
@@ -227,17 +381,118 @@ public class PeerHandle {
     }
 
     /**
-     * Gửi tin nhắn trong group: broadcast tới tất cả thành viên (trừ chính mình).
+     * Gửi tin nhắn trong group: broadcast song song tới tất cả thành viên (trừ
+     * chính mình). Không chặn; future cho biết ai đã nhận được.
      */
-    public void sendGroupMessage(String groupId, String content) {
-        // Lấy danh sách thành viên từ DB
-        List<String> members = db.getGroupMembers(groupId);
+    public CompletableFuture<GroupFanout.Delivery> sendGroupMessage(String groupId, String content) {
         // Lưu tin nhắn local cho chính mình
-        db.insertGroupMessage(groupId, name, content);
-        for (String member : members) {
-            if (member.equals(name))
-                continue; // không gửi lại cho chính mình
-            sendToByName(member, "GROUP_MSG|" + groupId + "|" + name + "|" + content);
+        recordGroupMessage(groupId, name, content);
+        byte[] frame = FrameCodec.writer(Opcode.GROUP_MSG, name).string(groupId).string(content).toByteArray();
+        return sendToGroup(groupId, frame);
+    }
+
+    /** Trả lời lời mời vào group cho owner. */
+    public void sendGroupInviteResponse(String owner, String groupId, boolean accepted) {
+        Opcode op = accepted ? Opcode.GROUP_INVITE_ACCEPT : Opcode.GROUP_INVITE_REJECT;
+        sendFrameByName(owner, FrameCodec.writer(op, name).string(groupId).toByteArray());
+    }
+
+    /** Báo cho các thành viên còn lại rằng mình rời group. */
+    public void announceGroupLeave(String groupId) {
+        sendToGroup(groupId, FrameCodec.writer(Opcode.GROUP_LEAVE, name).string(groupId).toByteArray());
+    }
+
+    public void announceGroupRename(String groupId, String newName) {
+        sendToGroup(groupId, FrameCodec.writer(Opcode.GROUP_RENAME, name).string(groupId).string(newName).toByteArray());
+    }
+
+    public void announceGroupMembersAdded(String groupId, List<String> added) {
+        sendToGroup(groupId, FrameCodec.writer(Opcode.GROUP_ADD_MEMBER, name).string(groupId).strings(added).toByteArray());
+    }
+
+    public void announceGroupMembersRemoved(String groupId, List<String> removed) {
+        sendToGroup(groupId,
+                FrameCodec.writer(Opcode.GROUP_REMOVE_MEMBER, name).string(groupId).strings(removed).toByteArray());
+    }
+
+    /** Rời group: báo cho các thành viên còn lại rồi xóa mình khỏi group local. */
+    public void leaveGroup(String groupId) {
+        announceGroupLeave(groupId);
+        db.removeGroupMember(groupId, name);
+        db.deleteGroupIfEmpty(groupId);
+        updateGroupMembers(groupId, List.of(), List.of(name));
+    }
+
+    /** Owner thêm thành viên: lưu local rồi báo cho cả group (kể cả người mới). */
+    public void addGroupMembers(String groupId, List<String> added) {
+        db.insertGroupMembers(groupId, added);
+        updateGroupMembers(groupId, added, List.of());
+        announceGroupMembersAdded(groupId, added);
+    }
+
+    /** Owner xóa thành viên: xóa local rồi báo cho những người còn lại. */
+    public void removeGroupMembers(String groupId, List<String> removed) {
+        for (String m : removed) {
+            db.removeGroupMember(groupId, m);
+        }
+        db.deleteGroupIfEmpty(groupId);
+        updateGroupMembers(groupId, List.of(), removed);
+        announceGroupMembersRemoved(groupId, removed);
+    }
+
+    /**
+     * Các group mà mình tham gia, đọc từ DB khi đăng nhập; đồng thời nạp thành
+     * viên của chúng vào cache để việc gửi sau đó không phải query SQLite.
+     */
+    public List<GroupInfo> loadGroups() {
+        List<GroupInfo> groups = db.loadGroupsForUser(name);
+        Map<String, List<String>> members = db.loadGroupMembersForUser(name);
+        for (GroupInfo g : groups) {
+            groupMembers.put(g.getId(), members.getOrDefault(g.getId(), List.of()).toArray(new String[0]));
+        }
+        return groups;
+    }
+
+    /** Thành viên hiện tại của group (kể cả mình), từ cache. */
+    public List<String> getGroupMembers(String groupId) {
+        return List.of(members(groupId));
+    }
+
+    private String[] members(String groupId) {
+        // group chưa có trong cache (vd. chưa gọi loadGroups): đọc DB một lần
+        return groupMembers.computeIfAbsent(groupId, id -> db.getGroupMembers(id).toArray(new String[0]));
+    }
+
+    private List<String> otherMembers(String groupId) {
+        List<String> others = new ArrayList<>();
+        for (String member : members(groupId)) {
+            if (!member.equals(name)) // không gửi lại cho chính mình
+                others.add(member);
+        }
+        return others;
+    }
+
+    /** Thay mảng thành viên của group sau khi DB đã được cập nhật tương ứng. */
+    private void updateGroupMembers(String groupId, Collection<String> added, Collection<String> removed) {
+        groupMembers.compute(groupId, (id, old) -> {
+            if (old == null)
+                return db.getGroupMembers(id).toArray(new String[0]);
+            Set<String> next = new LinkedHashSet<>(List.of(old));
+            next.addAll(added);
+            next.removeAll(removed);
+            return next.toArray(new String[0]);
+        });
+    }
+
+    /** Gửi frame tới các thành viên hiện tại trừ chính mình, qua {@link GroupFanout}. */
+    private CompletableFuture<GroupFanout.Delivery> sendToGroup(String groupId, byte[] frame) {
+        List<String> others = otherMembers(groupId);
+        try {
+            // mã hóa một lần, cùng một buffer được ghi cho mọi thành viên
+            return fanout.send(others, messageHandler.prepare(frame));
+        } catch (IOException e) {
+            System.err.println("[Group] " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -275,9 +530,12 @@ public class PeerHandle {
         // addr = ip:tcpPort
         // send CALL_REQUEST|callerName|callerIp|callerVoicePort
         String myIp = getLocalAddress();
-        String msg = "CALL_REQUEST|" + name + "|" + myIp + "|" + getVoiceEngine().getLocalPort();
+        byte[] msg = FrameCodec.writer(Opcode.CALL_REQUEST, name)
+                .string(myIp)
+                .varint(getVoiceEngine().getLocalPort())
+                .toByteArray();
 
-        messageHandler.sendText(addr, msg);
+        messageHandler.sendFrame(addr, msg);
         System.out.println("[Call] requested call to " + peerName + " via " + addr);
     }
 
@@ -299,9 +557,12 @@ public class PeerHandle {
 
         // send CALL_REQUEST_VIDEO|callerName|callerIp|callerVoicePort|callerVideoPort
         String myIp = getLocalAddress();
-        String msg = "CALL_REQUEST_VIDEO|" + name + "|" + myIp + "|" + getVoiceEngine().getLocalPort() + "|"
-                + getVideoEngine().getLocalPort();
-        messageHandler.sendText(addr, msg);
+        byte[] msg = FrameCodec.writer(Opcode.CALL_REQUEST_VIDEO, name)
+                .string(myIp)
+                .varint(getVoiceEngine().getLocalPort())
+                .varint(getVideoEngine().getLocalPort())
+                .toByteArray();
+        messageHandler.sendFrame(addr, msg);
         System.out.println("[VideoCall] requested video call to " + peerName + " via " + addr);
     }
 
@@ -318,8 +579,11 @@ public class PeerHandle {
 
         if (addr != null) {
             String myIp = getLocalAddress();
-            String resp = "CALL_ACCEPT|" + name + "|" + myIp + "|" + getVoiceEngine().getLocalPort();
-            messageHandler.sendText(addr, resp);
+            byte[] resp = FrameCodec.writer(Opcode.CALL_ACCEPT, name)
+                    .string(myIp)
+                    .varint(getVoiceEngine().getLocalPort())
+                    .toByteArray();
+            messageHandler.sendFrame(addr, resp);
         }
         // start local voice engine to send/receive to caller
         getVoiceEngine().start(callerIp, callerVoicePort);
@@ -344,9 +608,12 @@ public class PeerHandle {
 
         if (addr != null) {
             String myIp = getLocalAddress();
-            String resp = "CALL_ACCEPT_VIDEO|" + name + "|" + myIp + "|" + getVoiceEngine().getLocalPort() + "|"
-                    + getVideoEngine().getLocalPort();
-            messageHandler.sendText(addr, resp);
+            byte[] resp = FrameCodec.writer(Opcode.CALL_ACCEPT_VIDEO, name)
+                    .string(myIp)
+                    .varint(getVoiceEngine().getLocalPort())
+                    .varint(getVideoEngine().getLocalPort())
+                    .toByteArray();
+            messageHandler.sendFrame(addr, resp);
         }
 
         // callerVoicePort là cổng voice của caller, pendingCallerVideoPort là cổng
@@ -378,7 +645,7 @@ public class PeerHandle {
             String addr = lookup(peer);
             if (addr != null) {
                 System.out.println("[Peer] sending CALL_END to " + peer);
-                messageHandler.sendText(addr, "CALL_END|" + name);
+                messageHandler.sendFrame(addr, FrameCodec.writer(Opcode.CALL_END, name).toByteArray());
             }
         }
         inCall = false;
@@ -393,312 +660,331 @@ public class PeerHandle {
     public void sendVideoOn(String peerName) {
         String addr = lookup(peerName);
         if (addr != null) {
-            messageHandler.sendText(addr, "CALL_VIDEO_ON|" + name);
+            messageHandler.sendFrame(addr, FrameCodec.writer(Opcode.CALL_VIDEO_ON, name).toByteArray());
         }
     }
 
     public void sendVideoOff(String peerName) {
         String addr = lookup(peerName);
         if (addr != null) {
-            messageHandler.sendText(addr, "CALL_VIDEO_OFF|" + name);
+            messageHandler.sendFrame(addr, FrameCodec.writer(Opcode.CALL_VIDEO_OFF, name).toByteArray());
         }
     }
 
-    private void onIncomingMessage(String sender, String message) throws SocketException, LineUnavailableException {
-        // signaling: CALL_REQUEST|caller|ip|voicePort
-        if (message != null && message.startsWith("SYSTEM|OFFLINE|")) {
-            String offlineUser = message.split("\\|")[2];
-            cachedPeers.remove(offlineUser);
+    private void registerHandlers() {
+        registerHandler(Opcode.CHAT_TEXT, this::onChatText);
+        registerHandler(Opcode.SYSTEM_OFFLINE, this::onSystemOffline);
+
+        registerHandler(Opcode.CALL_REQUEST, this::onCallRequest);
+        registerHandler(Opcode.CALL_REQUEST_VIDEO, this::onCallRequestVideo);
+        registerHandler(Opcode.CALL_ACCEPT, this::onCallAccept);
+        registerHandler(Opcode.CALL_ACCEPT_VIDEO, this::onCallAcceptVideo);
+        registerHandler(Opcode.CALL_END, this::onCallEnd);
+        registerHandler(Opcode.CALL_REJECT, this::onCallReject);
+        registerHandler(Opcode.CALL_VIDEO_ON, f -> {
+            if (listener != null) listener.onRemoteVideoOn(f.sender());
+        });
+        registerHandler(Opcode.CALL_VIDEO_OFF, f -> {
+            if (listener != null) listener.onRemoteVideoOff(f.sender());
+        });
 
-            if (listener != null) {
-                listener.onMessage("SYSTEM", "Peer offline:" + offlineUser);
-            }
-            return;
-        }
+        registerHandler(Opcode.GROUP_INVITE, this::onGroupInvite);
+        registerHandler(Opcode.GROUP_INVITE_ACCEPT, f -> onGroupInviteResponse(f, true));
+        registerHandler(Opcode.GROUP_INVITE_REJECT, f -> onGroupInviteResponse(f, false));
+        registerHandler(Opcode.GROUP_CREATE, this::onGroupCreate);
+        registerHandler(Opcode.GROUP_MSG, this::onGroupMsg);
+        registerHandler(Opcode.GROUP_LEAVE, this::onGroupLeave);
+        registerHandler(Opcode.GROUP_RENAME, this::onGroupRename);
+        registerHandler(Opcode.GROUP_ADD_MEMBER, this::onGroupAddMember);
+        registerHandler(Opcode.GROUP_REMOVE_MEMBER, this::onGroupRemoveMember);
+        registerHandler(Opcode.GROUP_FILE_RELAY, this::onGroupFileRelay);
+    }
 
-        // 5) Tin nhắn trong group
-        if (message != null && message.startsWith("GROUP_MSG|")) {
-            String[] p = message.split("\\|", 4);
-            if (p.length >= 4 && listener != null) {
-                String groupId = p[1];
-                String from = p[2];
-                String content = p[3];
+    public FrameHandler registerHandler(Opcode opcode, FrameHandler handler) {
+        return registerHandler(opcode.code(), handler);
+    }
 
-                // Lưu lịch sử group
-                db.insertGroupMessage(groupId, from, content);
+    /**
+     * Register (or with {@code null} remove) the handler for a wire code.
+     * Codes {@value FrameCodec#FIRST_CUSTOM_CODE}..255 are free for new frame
+     * types that have no {@link Opcode} constant yet, e.g. typing indicators
+     * or read receipts; build them with {@link FrameCodec#writer(int, String)}
+     * and send with {@link #sendFrameByName(String, byte[])}.
+     *
+     * @return the handler previously registered for the code, or null
+     */
+    public synchronized FrameHandler registerHandler(int code, FrameHandler handler) {
+        if (code < 0 || code > 255) throw new IllegalArgumentException("Opcode out of range: " + code);
+        // copy-on-write: dispatch đọc mảng không cần khóa
+        FrameHandler[] next = handlers.clone();
+        FrameHandler previous = next[code];
+        next[code] = handler;
+        handlers = next;
+        return previous;
+    }
 
-                listener.onGroupMessage(groupId, from, content);
-            }
-            return;
-        }
-        // ==== GROUP MANAGEMENT ====
-        if (message != null && message.startsWith("GROUP_FILE|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String filename = p[2];
-                expectedGroupFiles.put(sender + "|" + filename, groupId);
-            }
-            return;
-        }
-        if (message != null && message.startsWith("GROUP_LEAVE|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String member = p[2];
-                db.removeGroupMember(groupId, member);
-                db.deleteGroupIfEmpty(groupId);
-                if (listener != null) {
-                    listener.onGroupMemberLeft(groupId, member);
-                }
-            }
-            return;
-        }
-        if (message != null && message.startsWith("GROUP_RENAME|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String newName = p[2];
-                db.renameGroup(groupId, newName);
-                if (listener != null) {
-                    listener.onGroupRenamed(groupId, newName);
-                }
-            }
+    private void onIncomingFrame(Frame frame) throws SocketException, LineUnavailableException {
+        FrameHandler handler = handlers[frame.code()];
+        if (handler == null) {
+            System.out.println("[PeerHandle] No handler for opcode " + frame.code() + " from " + frame.sender());
             return;
         }
-        if (message != null && message.startsWith("GROUP_ADD_MEMBER|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String membersCsv = p[2];
-                java.util.List<String> members = java.util.Arrays.asList(membersCsv.split(","));
-                db.insertGroupMembers(groupId, members);
-                if (listener != null)
-                    listener.onGroupMembersChanged(groupId);
-            }
-            return;
-        }
-        if (message != null && message.startsWith("GROUP_REMOVE_MEMBER|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String membersCsv = p[2];
-                for (String m : membersCsv.split(",")) {
-                    db.removeGroupMember(groupId, m);
-                }
-                db.deleteGroupIfEmpty(groupId);
-                if (listener != null)
-                    listener.onGroupMembersChanged(groupId);
-            }
-            return;
+        try {
+            handler.handle(frame);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[PeerHandle] Malformed frame " + frame.code() + " from " + frame.sender() + ": "
+                    + e.getMessage());
         }
-        if (message != null && message.startsWith("CALL_REQUEST|")) {
-            String[] p = message.split("\\|");
-            if (p.length == 4) {
-                String caller = p[1];
-                String ip = p[2];
-                int voicePort = Integer.parseInt(p[3]);
-
-                // notify UI
-                if (listener != null)
-                    listener.onIncomingCall(caller, ip, voicePort);
-                return;
-            }
+    }
+
+    // normal chat message
+    private void onChatText(Frame f) {
+        String sender = f.sender();
+        String message = f.string();
+        Message msg = new Message(sender, name, message, false, null);
+        msg.setTimestamp(System.currentTimeMillis()); // Set timestamp
+        recordMessage(msg);
+        if (listener != null)
+            listener.onMessage(sender, message);
+    }
+
+    private void onSystemOffline(Frame f) {
+        String offlineUser = f.sender();
+        messageHandler.disconnect(cachedPeers.remove(offlineUser));
+
+        if (listener != null) {
+            listener.onMessage("SYSTEM", "Peer offline:" + offlineUser);
         }
+    }
+
+    // signaling: CALL_REQUEST caller ip voicePort
+    private void onCallRequest(Frame f) {
+        String caller = f.sender();
+        String ip = f.string();
+        int voicePort = f.varintInt();
 
-        // signaling: CALL_REQUEST_VIDEO|caller|ip|voicePort|videoPort
-        if (message != null && message.startsWith("CALL_REQUEST_VIDEO|")) {
-            String[] p = message.split("\\|");
-            if (p.length == 5) {
-                String caller = p[1];
-                String ip = p[2];
-                int voicePort = Integer.parseInt(p[3]);
-                int videoPort = Integer.parseInt(p[4]);
+        // notify UI
+        if (listener != null)
+            listener.onIncomingCall(caller, ip, voicePort);
+    }
 
-                // Lưu lại cổng video của caller để acceptVideoCall() dùng khi start VideoEngine
-                pendingCallerVideoPort = videoPort;
+    // signaling: CALL_REQUEST_VIDEO caller ip voicePort videoPort
+    private void onCallRequestVideo(Frame f) {
+        String caller = f.sender();
+        String ip = f.string();
+        int voicePort = f.varintInt();
+        int videoPort = f.varintInt();
 
-                System.out.println("[VideoCall] incoming request from " + caller + " voicePort=" + voicePort
-                        + " videoPort=" + videoPort);
+        // Lưu lại cổng video của caller để acceptVideoCall() dùng khi start VideoEngine
+        pendingCallerVideoPort = videoPort;
 
-                if (listener != null)
-                    listener.onIncomingVideoCall(caller, ip, voicePort);
-                return;
-            }
-        }
+        System.out.println("[VideoCall] incoming request from " + caller + " voicePort=" + voicePort
+                + " videoPort=" + videoPort);
 
-        if (message != null && message.startsWith("CALL_ACCEPT|")) {
-            String[] p = message.split("\\|");
-            if (p.length == 4) {
-                String accepter = p[1];
-                String ip = p[2];
-                int voicePort = Integer.parseInt(p[3]);
-                // other side accepted — start voice engine towards accepter
-                currentCallPeer = accepter;
-                inCall = true;
-                getVoiceEngine().start(ip, voicePort);
-                System.out
-                        .println("[Call] remote accepted. starting voice to " + accepter + "@" + ip + ":" + voicePort);
-
-                // notify UI so caller side can transition from Calling.fxml to VoiceCall UI
-                if (listener != null)
-                    listener.onVoiceCallStarted(accepter);
-                return;
-            }
+        if (listener != null)
+            listener.onIncomingVideoCall(caller, ip, voicePort);
+    }
+
+    private void onCallAccept(Frame f) throws SocketException, LineUnavailableException {
+        String accepter = f.sender();
+        String ip = f.string();
+        int voicePort = f.varintInt();
+        // other side accepted — start voice engine towards accepter
+        currentCallPeer = accepter;
+        inCall = true;
+        getVoiceEngine().start(ip, voicePort);
+        System.out.println("[Call] remote accepted. starting voice to " + accepter + "@" + ip + ":" + voicePort);
+
+        // notify UI so caller side can transition from Calling.fxml to VoiceCall UI
+        if (listener != null)
+            listener.onVoiceCallStarted(accepter);
+    }
+
+    private void onCallAcceptVideo(Frame f) throws SocketException, LineUnavailableException {
+        String accepter = f.sender();
+        String ip = f.string();
+        int voicePort = f.varintInt();
+        int videoPort = f.varintInt();
+        // other side accepted video call — start engines towards accepter
+        currentCallPeer = accepter;
+        inCall = true;
+        getVoiceEngine().start(ip, voicePort);
+        getVideoEngine().start(ip, videoPort);
+        System.out.println("[VideoCall] remote accepted. starting video call to " + accepter + "@" + ip + ":"
+                + voicePort + " videoPort=" + videoPort);
+
+        // notify UI so caller side can transition from "Đang gọi..." to VideoCallModal
+        // UI
+        if (listener != null)
+            listener.onVideoCallStarted(accepter);
+    }
+
+    private void onCallEnd(Frame f) throws SocketException, LineUnavailableException {
+        String ender = f.sender();
+        System.out.println("[Peer] Received CALL_END from " + ender);
+
+        // Stop voice/video engines and clean up
+        getVoiceEngine().stop();
+        if (videoEngine != null) {
+            videoEngine.stop();
         }
 
-        if (message != null && message.startsWith("CALL_ACCEPT_VIDEO|")) {
-            String[] p = message.split("\\|");
-            if (p.length == 5) {
-                String accepter = p[1];
-                String ip = p[2];
-                int voicePort = Integer.parseInt(p[3]);
-                int videoPort = Integer.parseInt(p[4]);
-                // other side accepted video call — start engines towards accepter
-                currentCallPeer = accepter;
-                inCall = true;
-                getVoiceEngine().start(ip, voicePort);
-                getVideoEngine().start(ip, videoPort);
-                System.out.println("[VideoCall] remote accepted. starting video call to " + accepter + "@" + ip + ":"
-                        + voicePort + " videoPort=" + videoPort);
-
-                // notify UI so caller side can transition from "Đang gọi..." to VideoCallModal
-                // UI
-                if (listener != null)
-                    listener.onVideoCallStarted(accepter);
-                return;
-            }
+        inCall = false;
+        currentCallPeer = null;
+
+        // Notify UI
+        if (listener != null) {
+            listener.onCallEnded(ender);
         }
+    }
 
-        if (message != null && message.startsWith("CALL_END|")) {
-            String[] p = message.split("\\|");
-            if (p.length >= 2) { // Add length check for safety
-                String ender = p[1];
-                System.out.println("[Peer] Received CALL_END from " + ender);
+    private void onCallReject(Frame f) {
+        String rejecter = f.sender();
 
-                // Stop voice/video engines and clean up
-                getVoiceEngine().stop();
-                if (videoEngine != null) {
-                    videoEngine.stop();
-                }
+        System.out.println("[Call] rejected by " + rejecter);
 
-                inCall = false;
-                currentCallPeer = null;
+        inCall = false;
+        currentCallPeer = null;
 
-                // Notify UI
-                if (listener != null) {
-                    listener.onCallEnded(ender);
-                }
-            }
-            return; // Important: return after handling CALL_END
+        if (listener != null) {
+            listener.onCallRejected(rejecter);
         }
+    }
 
-        if (message != null && message.startsWith("CALL_REJECT|")) {
-            String[] p = message.split("\\|");
-            String rejecter = p[1];
+    // ==== GROUP CHAT SIGNALING ====
 
-            System.out.println("[Call] rejected by " + rejecter);
+    // 1) Mình nhận lời mời tham gia group
+    private void onGroupInvite(Frame f) {
+        String groupId = f.string();
+        String groupName = f.string();
+        String owner = f.string();
+        List<String> members = f.strings();
 
-            inCall = false;
-            currentCallPeer = null;
+        if (listener != null)
+            listener.onGroupInviteReceived(groupId, groupName, owner, members);
+    }
 
-            if (listener != null) {
-                listener.onCallRejected(rejecter);
+    // 2) + 3) Owner nhận ACCEPT / REJECT
+    private void onGroupInviteResponse(Frame f, boolean accepted) {
+        String groupId = f.string();
+        String member = f.sender();
+        PendingGroupInvite inv = pendingGroupInvites.get(groupId);
+        if (inv != null) {
+            if (accepted) {
+                inv.accepted.add(member);
+            } else {
+                inv.rejected.add(member);
             }
-            return;
+            maybeFinalizeGroup(inv);
         }
+    }
 
-        if (message != null && message.startsWith("CALL_VIDEO_ON|")) {
-            String[] p = message.split("\\|", 2);
-            if (p.length >= 2 && listener != null) {
-                String peerName = p[1];
-                listener.onRemoteVideoOn(peerName);
-            }
-            return;
-        }
+    // 4) Group đã được tạo xong (mọi máy tạo bản copy local)
+    private void onGroupCreate(Frame f) {
+        String groupId = f.string();
+        String groupName = f.string();
+        String owner = f.string();
+        List<String> members = f.strings();
 
-        if (message != null && message.startsWith("CALL_VIDEO_OFF|")) {
-            String[] p = message.split("\\|", 2);
-            if (p.length >= 2 && listener != null) {
-                String peerName = p[1];
-                listener.onRemoteVideoOff(peerName);
-            }
-            return;
+        db.insertGroup(groupId, groupName, owner);
+        db.insertGroupMembers(groupId, members);
+        groupMembers.put(groupId, new LinkedHashSet<>(members).toArray(new String[0]));
+
+        if (listener != null) {
+            listener.onGroupCreated(groupId, groupName, owner, members);
         }
+    }
 
-        // ==== GROUP CHAT SIGNALING ====
+    // 5) Tin nhắn trong group
+    private void onGroupMsg(Frame f) {
+        String groupId = f.string();
+        String from = f.sender();
+        String content = f.string();
 
-        // 1) Mình nhận lời mời tham gia group
-        if (message != null && message.startsWith("GROUP_INVITE|")) {
-            String[] p = message.split("\\|", 5);
-            if (p.length >= 5 && listener != null) {
-                String groupId = p[1];
-                String groupName = p[2];
-                String owner = p[3];
-                String membersCsv = p[4];
-                List<String> members = java.util.Arrays.asList(membersCsv.split(","));
+        // Lưu lịch sử group
+        recordGroupMessage(groupId, from, content);
 
-                listener.onGroupInviteReceived(groupId, groupName, owner, members);
-            }
-            return;
-        }
+        if (listener != null)
+            listener.onGroupMessage(groupId, from, content);
+    }
 
-        // 2) Owner nhận ACCEPT
-        if (message != null && message.startsWith("GROUP_INVITE_ACCEPT|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String member = p[2];
-                PendingGroupInvite inv = pendingGroupInvites.get(groupId);
-                if (inv != null) {
-                    inv.accepted.add(member);
-                    maybeFinalizeGroup(inv);
-                }
-            }
-            return;
+    // ==== GROUP MANAGEMENT ====
+    private void onGroupLeave(Frame f) {
+        String groupId = f.string();
+        String member = f.sender();
+        db.removeGroupMember(groupId, member);
+        db.deleteGroupIfEmpty(groupId);
+        updateGroupMembers(groupId, List.of(), List.of(member));
+        if (listener != null) {
+            listener.onGroupMemberLeft(groupId, member);
         }
+    }
 
-        // 3) Owner nhận REJECT
-        if (message != null && message.startsWith("GROUP_INVITE_REJECT|")) {
-            String[] p = message.split("\\|", 3);
-            if (p.length >= 3) {
-                String groupId = p[1];
-                String member = p[2];
-                PendingGroupInvite inv = pendingGroupInvites.get(groupId);
-                if (inv != null) {
-                    inv.rejected.add(member);
-                    maybeFinalizeGroup(inv);
-                }
-            }
-            return;
+    private void onGroupRename(Frame f) {
+        String groupId = f.string();
+        String newName = f.string();
+        db.renameGroup(groupId, newName);
+        if (listener != null) {
+            listener.onGroupRenamed(groupId, newName);
         }
+    }
 
-        // 4) Group đã được tạo xong (mọi máy tạo bản copy local)
-        if (message != null && message.startsWith("GROUP_CREATE|")) {
-            String[] p = message.split("\\|", 5);
-            if (p.length >= 5) {
-                String groupId = p[1];
-                String groupName = p[2];
-                String owner = p[3];
-                String membersCsv = p[4];
-                List<String> members = java.util.Arrays.asList(membersCsv.split(","));
+    private void onGroupAddMember(Frame f) {
+        String groupId = f.string();
+        List<String> members = f.strings();
+        db.insertGroupMembers(groupId, members);
+        updateGroupMembers(groupId, members, List.of());
+        if (listener != null)
+            listener.onGroupMembersChanged(groupId);
+    }
 
-                db.insertGroup(groupId, groupName, owner);
-                db.insertGroupMembers(groupId, members);
+    private void onGroupRemoveMember(Frame f) {
+        String groupId = f.string();
+        List<String> removed = f.strings();
+        for (String m : removed) {
+            db.removeGroupMember(groupId, m);
+        }
+        db.deleteGroupIfEmpty(groupId);
+        updateGroupMembers(groupId, List.of(), removed);
+        if (listener != null)
+            listener.onGroupMembersChanged(groupId);
+    }
 
-                if (listener != null) {
-                    listener.onGroupCreated(groupId, groupName, owner, members);
-                }
-            }
+    // Một thành viên vừa gửi file group cho mình và nhờ chuyển tiếp cho một nhánh
+    private void onGroupFileRelay(Frame f) {
+        String groupId = f.string();
+        String hash = f.string();
+        String filename = f.string();
+        String origin = f.string();
+        List<String> branch = f.strings();
+
+        // chỉ chuyển tiếp trong nhóm mà cả mình và người nhờ đều là thành viên
+        List<String> members = getGroupMembers(groupId);
+        if (!members.contains(name) || !members.contains(f.sender())) {
+            System.err.println("[Relay] Ignoring relay request from " + f.sender() + " for group " + groupId);
             return;
         }
-
-        // normal chat message
-        Message msg = new Message(sender, name, message, false, null);
-        msg.setTimestamp(System.currentTimeMillis()); // Set timestamp
-        db.insertMessage(msg);
-        if (listener != null)
-            listener.onMessage(sender, message);
+        List<String> targets = new ArrayList<>();
+        for (String m : branch) {
+            if (members.contains(m))
+                targets.add(m);
+        }
+        File file = messageHandler.findBlob(hash);
+        if (file == null) {
+            System.err.println("[Relay] File " + filename + " not found, cannot forward to " + targets);
+            return;
+        }
+        Future<?> started = Workers.tryStart("group-file-relay", () -> {
+            try {
+                List<String> unreached = relay.distribute(groupId, file, filename, origin, targets);
+                if (!unreached.isEmpty())
+                    System.out.println("[Relay] " + filename + " not delivered to: " + unreached);
+            } catch (IOException e) {
+                System.err.println("[Relay] " + filename + ": " + e.getMessage());
+            }
+        });
+        if (started == null)
+            System.err.println("[Relay] Too busy, " + filename + " not forwarded to " + targets);
     }
 
     // Owner side: sau khi nhận đủ ACCEPT/REJECT cho một groupId, quyết định có tạo
@@ -714,11 +1000,17 @@ public class PeerHandle {
         finalMembers.add(name); // owner
         db.insertGroupMembers(inv.groupId,
                 finalMembers.stream().filter(m -> !m.equals(name)).collect(Collectors.toList()));
+        updateGroupMembers(inv.groupId, finalMembers, List.of());
 
         String membersCsv = String.join(",", finalMembers);
-        String payload = "GROUP_CREATE|" + inv.groupId + "|" + inv.groupName + "|" + inv.owner + "|" + membersCsv;
+        byte[] payload = FrameCodec.writer(Opcode.GROUP_CREATE, name)
+                .string(inv.groupId)
+                .string(inv.groupName)
+                .string(inv.owner)
+                .strings(finalMembers)
+                .toByteArray();
         for (String m : inv.accepted) {
-            sendToByName(m, payload);
+            sendFrameByName(m, payload);
         }
 
         if (listener != null) {
@@ -730,11 +1022,10 @@ public class PeerHandle {
         pendingGroupInvites.remove(inv.groupId);
     }
 
-    private void onIncomingFile(String sender, String filename, String absPath, long size) {
-        String key = sender + "|" + filename;
-        String groupId = expectedGroupFiles.remove(key);
+    private void onIncomingFile(String sender, String groupId, String filename, String hash, String absPath,
+                                long size) {
         if (groupId != null) {
-            db.insertGroupFile(groupId, sender, filename, absPath);
+            recordGroupFile(groupId, sender, filename, absPath, hash);
             if (listener != null) {
                 listener.onGroupFileReceived(groupId, sender, filename, absPath, size);
             }
@@ -742,7 +1033,8 @@ public class PeerHandle {
         }
         Message fileMsg = new Message(sender, name, filename, true, absPath);
         fileMsg.setTimestamp(System.currentTimeMillis()); // Set timestamp
-        db.insertMessage(fileMsg);
+        fileMsg.setFileHash(hash);
+        recordMessage(fileMsg);
         if (listener != null) {
             listener.onFileReceived(sender, filename, absPath, size);
         }
@@ -751,13 +1043,15 @@ public class PeerHandle {
     public void rejectCall(String callerName) {
         String addr = lookup(callerName);
         if (addr != null) {
-            messageHandler.sendText(addr, "CALL_REJECT|" + name);
+            messageHandler.sendFrame(addr, FrameCodec.writer(Opcode.CALL_REJECT, name).toByteArray());
         }
     }
 
     public void shutdown() throws SocketException, LineUnavailableException {
         discovery.stop();
         messageHandler.stop();
+        // không còn tin đến nữa: ghi nốt những gì đang chờ trong hàng đợi DB
+        db.flush();
         try {
             serverSocket.close();
         } catch (IOException ignored) {
@@ -0,0 +1,41 @@
+package org.example.peer_chat;
+
+/**
+ * Một kết quả của {@link ChatDb#search}: tin nhắn 1:1 (groupId = null) hoặc
+ * tin nhắn group, kèm đoạn trích có từ khóa được đánh dấu.
+ */
+public class SearchResult {
+    private final long id;
+    private final String groupId;
+    private final String fromUser;
+    private final String toUser;
+    private final long ts;
+    private final String snippet;
+    private final double rank;
+
+    public SearchResult(long id, String groupId, String fromUser, String toUser, long ts, String snippet,
+                        double rank) {
+        this.id = id;
+        this.groupId = groupId;
+        this.fromUser = fromUser;
+        this.toUser = toUser;
+        this.ts = ts;
+        this.snippet = snippet;
+        this.rank = rank;
+    }
+
+    /** Row id in messages, or in group_messages when {@link #isGroup()}. */
+    public long getId() { return id; }
+    public String getGroupId() { return groupId; }
+    public boolean isGroup() { return groupId != null; }
+    public String getFromUser() { return fromUser; }
+    /** Null for group messages. */
+    public String getToUser() { return toUser; }
+    public long getTimestamp() { return ts; }
+
+    /** Matched text around the hit, terms wrapped in [ and ]. */
+    public String getSnippet() { return snippet; }
+
+    /** bm25 score; lower is a better match. */
+    public double getRank() { return rank; }
+}
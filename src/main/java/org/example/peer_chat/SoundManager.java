@@ -4,12 +4,13 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
+import java.util.concurrent.Future;
 
 
 public class SoundManager {
     private static SoundManager instance;
     private volatile boolean ringing = false;
-    private Thread ringThread;
+    private Future<?> ringTask;
 
     public static synchronized SoundManager getInstance() {
         if (instance == null) {
@@ -20,13 +21,14 @@ public class SoundManager {
 
    
     public void playMessageSound() {
-        new Thread(() -> {
+        // pool đầy thì bỏ qua tiếng báo, tin nhắn vẫn hiện bình thường
+        Workers.tryStart("sound-msg", () -> {
             try {
                 generateTone(800, 150, 0.5); // 800Hz, 150ms, low volume
             } catch (Exception e) {
                 System.err.println("[Sound] Msg tone error: " + e.getMessage());
             }
-        }, "sound-msg").start();
+        });
     }
 
    
@@ -34,7 +36,7 @@ public class SoundManager {
         if (ringing) return; // already ringing
         ringing = true;
 
-        ringThread = new Thread(() -> {
+        ringTask = Workers.startDedicated("sound-ring", () -> {
             while (ringing) {
                 try {
                     // Play a sequence: Ring... Ring...
@@ -51,8 +53,7 @@ public class SoundManager {
                     break;
                 }
             }
-        }, "sound-ring");
-        ringThread.start();
+        });
     }
 
     /**
@@ -60,9 +61,9 @@ public class SoundManager {
      */
     public synchronized void stopIncomingCallSound() {
         ringing = false;
-        if (ringThread != null) {
-            ringThread.interrupt();
-            ringThread = null;
+        if (ringTask != null) {
+            ringTask.cancel(true);
+            ringTask = null;
         }
     }
 
@@ -0,0 +1,157 @@
+package org.example.peer_chat;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived SQLite connections for {@link ChatDb}: one writer, guarded by a
+ * reentrant lock, and up to {@link ChatConfig#DB_READERS} read-only readers.
+ * The database runs in WAL mode, so readers never wait for the writer.
+ *
+ * Use a lease in try-with-resources; closing it gives the connection back.
+ * Statements from {@link Lease#prepare(String)} are cached per connection and
+ * must not be closed by the caller.
+ */
+final class SqlitePool implements AutoCloseable {
+
+    private final String url;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Lease writer;
+    private final BlockingQueue<Lease> idleReaders;
+    private final AtomicInteger readersOpened = new AtomicInteger();
+    private final int maxReaders;
+    private volatile boolean closed = false;
+
+    SqlitePool(String url) throws SQLException {
+        this.url = url;
+        this.maxReaders = Math.max(1, ChatConfig.DB_READERS);
+        this.idleReaders = new ArrayBlockingQueue<>(maxReaders);
+        this.writer = new Lease(open(false), true);
+    }
+
+    /** Exclusive use of the writer connection. Nested calls on one thread are fine. */
+    Lease write() {
+        writeLock.lock();
+        return writer;
+    }
+
+    /** A reader connection; waits if all of them are in use. */
+    Lease read() throws SQLException {
+        Lease lease = idleReaders.poll();
+        if (lease != null) return lease;
+        if (readersOpened.incrementAndGet() <= maxReaders) {
+            try {
+                return new Lease(open(true), false);
+            } catch (SQLException e) {
+                readersOpened.decrementAndGet();
+                throw e;
+            }
+        }
+        readersOpened.decrementAndGet();
+        try {
+            return idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a DB connection", e);
+        }
+    }
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Connection c = DriverManager.getConnection(url);
+        try (Statement s = c.createStatement()) {
+            s.execute("PRAGMA busy_timeout=5000");
+            if (!readOnly) {
+                // WAL được lưu trong file db, chỉ cần đặt một lần từ writer
+                s.execute("PRAGMA journal_mode=WAL");
+            }
+            // WAL + NORMAL: không fsync mỗi commit, vẫn an toàn khi app crash
+            s.execute("PRAGMA synchronous=NORMAL");
+            s.execute("PRAGMA cache_size=-8192");
+            s.execute("PRAGMA mmap_size=268435456");
+            s.execute("PRAGMA temp_store=MEMORY");
+            if (readOnly) s.execute("PRAGMA query_only=1");
+        } catch (SQLException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    private void release(Lease lease) {
+        if (lease.writer) {
+            writeLock.unlock();
+        } else if (closed || !idleReaders.offer(lease)) {
+            lease.closeConnection();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Lease lease;
+        while ((lease = idleReaders.poll()) != null) {
+            lease.closeConnection();
+        }
+        writeLock.lock();
+        try {
+            writer.closeConnection();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    final class Lease implements AutoCloseable {
+        private final Connection conn;
+        private final boolean writer;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Lease(Connection conn, boolean writer) {
+            this.conn = conn;
+            this.writer = writer;
+        }
+
+        /** Cached statement for {@code sql}, with parameters and batch cleared. */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement p = statements.get(sql);
+            if (p == null) {
+                p = conn.prepareStatement(sql);
+                statements.put(sql, p);
+            } else {
+                p.clearParameters();
+                p.clearBatch();
+            }
+            return p;
+        }
+
+        /** A plain statement for one-off SQL; the caller closes it. */
+        Statement createStatement() throws SQLException {
+            return conn.createStatement();
+        }
+
+        Connection connection() {
+            return conn;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void closeConnection() {
+            for (PreparedStatement p : statements.values()) {
+                try { p.close(); } catch (SQLException ignored) {}
+            }
+            statements.clear();
+            try { conn.close(); } catch (SQLException ignored) {}
+        }
+    }
+}
@@ -69,9 +69,7 @@ public class VideoEngine {
         }
 
         running.set(true);
-        Thread t = new Thread(this::receiveLoop, "video-engine-" + localPort);
-        t.setDaemon(true);
-        t.start();
+        Workers.startDedicated("video-engine-" + localPort, this::receiveLoop);
 
         System.out.println("[VideoEngine] started on port " + localPort + " -> remote " + remoteIp + ":" + remoteVideoPort);
     }
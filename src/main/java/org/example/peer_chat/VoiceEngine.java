@@ -77,7 +77,7 @@ public class VoiceEngine {
         }
 
         // sender
-        new Thread(() -> {
+        Workers.startDedicated("voice-send", () -> {
             byte[] buf = new byte[2048];
             try {
                 while (running) {
@@ -90,10 +90,10 @@ public class VoiceEngine {
             } catch (Exception e) {
                 if (running) e.printStackTrace();
             }
-        }, "voice-send").start();
+        });
 
         // receiver
-        new Thread(() -> {
+        Workers.startDedicated("voice-recv", () -> {
             byte[] buf = new byte[2048];
             DatagramPacket p = new DatagramPacket(buf, buf.length);
             try {
@@ -104,7 +104,7 @@ public class VoiceEngine {
             } catch (Exception e) {
                 if (running) e.printStackTrace();
             }
-        }, "voice-recv").start();
+        });
     }
 
     public void stop() {
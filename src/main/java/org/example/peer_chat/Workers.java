@@ -0,0 +1,103 @@
+package org.example.peer_chat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Central place to run blocking background work: per-connection handlers,
+ * voice/video loops, file transfers, sounds.
+ *
+ * Tasks run on virtual threads by default, so thousands of concurrent
+ * transfers do not cost a platform thread each. With
+ * {@code -Dpeerchat.virtualThreads=false} they run on a bounded platform pool
+ * of {@code peerchat.platformPoolSize} threads instead. Tasks beyond that wait
+ * in a queue of {@code peerchat.platformQueueSize}; when the queue is full too,
+ * {@link #tryStart} refuses the task and the caller decides what to do.
+ * Loops that live as long as a call or the app (accept loop, audio, video,
+ * ring tone) use {@link #startDedicated} and never take a pool thread.
+ */
+public final class Workers {
+
+    private static final ExecutorService PLATFORM_POOL = ChatConfig.VIRTUAL_THREADS ? null : createPlatformPool();
+
+    private Workers() {
+    }
+
+    /**
+     * Start {@code task} in the background under the given thread name.
+     * Cancelling the returned future with {@code mayInterruptIfRunning}
+     * interrupts the task.
+     *
+     * @return the running task, or null if the platform pool is saturated;
+     *         the task is then not run at all
+     */
+    public static Future<?> tryStart(String name, Runnable task) {
+        FutureTask<Void> future = future(name, task);
+        if (PLATFORM_POOL == null) {
+            Thread.ofVirtual().name(name).start(future);
+            return future;
+        }
+        Runnable named = () -> {
+            Thread t = Thread.currentThread();
+            String poolName = t.getName();
+            t.setName(name);
+            try {
+                future.run();
+            } finally {
+                t.setName(poolName);
+            }
+        };
+        try {
+            PLATFORM_POOL.execute(named);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Start a long-lived loop on a thread of its own, outside the pool, so it
+     * can neither be refused nor hold a pool thread for its whole life.
+     */
+    public static Future<?> startDedicated(String name, Runnable task) {
+        FutureTask<Void> future = future(name, task);
+        if (PLATFORM_POOL == null) {
+            Thread.ofVirtual().name(name).start(future);
+        } else {
+            Thread.ofPlatform().name(name).daemon(true).start(future);
+        }
+        return future;
+    }
+
+    private static FutureTask<Void> future(String name, Runnable task) {
+        return new FutureTask<>(task, null) {
+            @Override
+            protected void setException(Throwable t) {
+                super.setException(t);
+                // giữ hành vi như Thread thường: lỗi không bị nuốt im lặng
+                System.err.println("[Workers] " + name + " failed:");
+                t.printStackTrace();
+            }
+        };
+    }
+
+    private static ExecutorService createPlatformPool() {
+        AtomicInteger id = new AtomicInteger();
+        int max = Math.max(1, ChatConfig.PLATFORM_POOL_SIZE);
+        // core = max để task xếp hàng chỉ khi mọi thread đều bận; thread rảnh vẫn tự tắt
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(max, max, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, ChatConfig.PLATFORM_QUEUE_SIZE)), r -> {
+                    Thread t = new Thread(r, "worker-" + id.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,145 @@
+package org.example.peer_chat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persistence for {@link ChatDb}: inserts are queued and a
+ * single "db-writer" thread commits them in batches of up to
+ * {@link ChatConfig#DB_WRITE_BATCH} rows, one transaction per batch, waiting
+ * at most {@link ChatConfig#DB_WRITE_FLUSH_MS} for a batch to fill.
+ *
+ * The queue is bounded: when the writer falls behind, {@link #submit} blocks
+ * the producer instead of growing without limit.
+ */
+final class WriteBehindQueue implements AutoCloseable {
+
+    interface Write {
+        void apply(SqlitePool.Lease c) throws SQLException;
+    }
+
+    private final SqlitePool pool;
+    private final BlockingQueue<Write> queue;
+    private final Thread writer;
+    private final Object progress = new Object();
+    // số write đã nhận / đã xử lý xong (commit hoặc lỗi), dùng cho flush()
+    private long submitted;
+    private long done;
+    private volatile boolean running = true;
+
+    WriteBehindQueue(SqlitePool pool) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, ChatConfig.DB_WRITE_QUEUE_CAPACITY));
+        this.writer = new Thread(this::run, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queue a write; blocks while the queue is full. */
+    void submit(Write w) {
+        if (!running) throw new IllegalStateException("ChatDb closed");
+        synchronized (progress) {
+            submitted++;
+        }
+        try {
+            queue.put(w);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (progress) {
+                submitted--;
+            }
+            throw new IllegalStateException("Interrupted while queueing DB write", e);
+        }
+    }
+
+    /** Wait until every write submitted before this call is committed. */
+    void flush() {
+        synchronized (progress) {
+            long target = submitted;
+            while (done < target && writer.isAlive()) {
+                try {
+                    progress.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void run() {
+        int maxBatch = Math.max(1, ChatConfig.DB_WRITE_BATCH);
+        List<Write> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                // gom thêm trong vài ms để commit nhiều dòng một lần
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ChatConfig.DB_WRITE_FLUSH_MS);
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || left <= 0) break;
+                    Write next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // close() đánh thức để xả nốt hàng đợi
+            }
+            if (batch.isEmpty()) continue;
+            commit(batch);
+            synchronized (progress) {
+                done += batch.size();
+                progress.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        try (SqlitePool.Lease c = pool.write()) {
+            Connection conn = c.connection();
+            try {
+                conn.setAutoCommit(false);
+                for (Write w : batch) {
+                    w.apply(c);
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                try { conn.rollback(); } catch (SQLException ignored) {}
+                // một dòng lỗi không được làm mất cả batch: ghi lại từng dòng
+                conn.setAutoCommit(true);
+                for (Write w : batch) {
+                    try {
+                        w.apply(c);
+                    } catch (SQLException | RuntimeException rowError) {
+                        rowError.printStackTrace();
+                    }
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Commit everything still queued and stop the writer thread. */
+    @Override
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
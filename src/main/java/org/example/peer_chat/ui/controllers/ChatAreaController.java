@@ -3,8 +3,6 @@ package org.example.peer_chat.ui.controllers;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 import javax.sound.sampled.LineUnavailableException;
@@ -14,21 +12,23 @@ import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 import org.example.peer_chat.CallRecord;
 import org.example.peer_chat.ChatDb;
-import org.example.peer_chat.ChatItem;
+import org.example.peer_chat.GroupFanout;
 import org.example.peer_chat.Message;
 import org.example.peer_chat.PeerHandle;
+import org.example.peer_chat.Workers;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Pos;
+import javafx.geometry.Orientation;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyEvent;
-import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
@@ -40,7 +40,7 @@ public class ChatAreaController {
     @FXML
     private TextField messageField;
     @FXML
-    private VBox messagesBox;
+    private ListView<ChatEntry> messageList;
     @FXML
     private Label contactName;
     @FXML
@@ -48,8 +48,6 @@ public class ChatAreaController {
     @FXML
     private Label contactAvatar;
     @FXML
-    private javafx.scene.control.ScrollPane messageScrollPane;
-    @FXML
     private Button renameButton;
     @FXML
     private Button manageMembersButton;
@@ -83,6 +81,46 @@ public class ChatAreaController {
     private Stage activeVideoCallStage;
     private VideoCallModalController activeVideoCallController;
     private boolean isCurrentCallVideo = false; // Track loại call hiện tại
+
+    // lịch sử của chat đang mở, nạp nền theo page (xem HistoryLoader)
+    private HistoryLoader history;
+    private final ThumbnailService thumbnails = new ThumbnailService();
+
+    @FXML
+    private void initialize() {
+        messageList.setCellFactory(list -> new ChatEntryCell(new ChatEntryCell.Actions() {
+            @Override
+            public void openFile(String absolutePath) {
+                ChatAreaController.this.openFile(absolutePath);
+            }
+
+            @Override
+            public void playVoice(String filePath, Label playIcon) {
+                playVoiceMessage(filePath, playIcon);
+            }
+        }, thumbnails));
+        // thanh cuộn dọc chỉ có sau khi skin được tạo
+        messageList.skinProperty().addListener((obs, oldSkin, skin) -> {
+            ScrollBar bar = verticalScrollBar();
+            if (bar == null)
+                return;
+            // kéo lên đầu thì nạp thêm page cũ hơn
+            bar.valueProperty().addListener((o, oldV, newV) -> {
+                if (newV.doubleValue() <= bar.getMin() && oldV.doubleValue() > newV.doubleValue()) {
+                    loadOlderMessages();
+                }
+            });
+        });
+    }
+
+    private ScrollBar verticalScrollBar() {
+        for (javafx.scene.Node node : messageList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL)
+                return bar;
+        }
+        return null;
+    }
+
     private void updateGroupActionButtons(boolean isGroup, boolean isOwner) {
 
         // Rename + Manage Members: chỉ owner mới thấy
@@ -175,165 +213,109 @@ public class ChatAreaController {
         updateGroupActionButtons(true, isOwner);
 
 
-        messagesBox.getChildren().clear();
-        if (chatDb != null) {
-            loadGroupHistory(groupId);
-        }
+        loadHistory();
     }
 
     private void loadMessages() {
-        messagesBox.getChildren().clear();
-
-        if (chatDb == null || currentUser == null)
-            return;
         if (currentGroupId != null) {
             // lịch sử group đã được load trong initGroup()
             return;
         }
-        if (selectedContact == null)
+        loadHistory();
+    }
+
+    /**
+     * Mở chat: chỉ nạp page mới nhất, trên worker thread; các page cũ hơn nạp khi
+     * kéo lên đầu (xem {@link #loadOlderMessages()}). Load của chat trước bị hủy.
+     */
+    private void loadHistory() {
+        if (history != null) {
+            history.cancel();
+            history = null;
+        }
+        messageList.getItems().clear();
+        if (chatDb == null || currentUser == null)
+            return;
+        if (currentGroupId == null && selectedContact == null)
             return;
 
-        List<ChatItem> items = new ArrayList<>();
-
-        // Load tin nhắn
-        items.addAll(chatDb.loadConversationAsc(currentUser, selectedContact, 500));
-
-        // Load lịch sử cuộc gọi
-        items.addAll(chatDb.loadCallHistory(currentUser, selectedContact, 100));
-
-        // Sắp xếp theo timestamp
-        items.sort(Comparator.comparingLong(ChatItem::getTimestamp));
-
-        // Render
-        for (ChatItem item : items) {
-            if (item instanceof Message msg) {
-                if (msg.isFile()) {
-                    // Đây là file message - cần hiển thị như file/voice bubble
-                    String filename = msg.getContent(); // content chứa tên file
-                    String filePath = msg.getFilePath();
-                    long size = 0;
-                    if (filePath != null) {
-                        File f = new File(filePath);
-                        if (f.exists())
-                            size = f.length();
-                    }
-                    // Sử dụng onIncomingFile để hiển thị đúng dạng (tự động phân biệt
-                    // voice/image/file)
-                    displayFileMessage(msg.getFromUser(), filename, filePath, size);
-                } else {
-                    // Tin nhắn text thường
-                    appendMessage(msg);
-                }
-            } else if (item instanceof CallRecord cr) {
-                appendCallRecord(cr);
+        history = new HistoryLoader(chatDb, peer.getConversationCache(), currentUser, selectedContact, currentGroupId);
+        // page đầu: giữ màn hình ở cuối; nếu page chưa lấp đầy khung thì nạp thêm
+        boolean[] newestBatch = {true};
+        history.loadOlder(batch -> {
+            List<ChatEntry> rows = newestBatch[0] ? withoutShownLive(batch) : batch;
+            newestBatch[0] = false;
+            messageList.getItems().addAll(0, rows);
+            messageList.scrollTo(messageList.getItems().size() - 1);
+        }, this::fillViewport);
+    }
+
+    /**
+     * Tin đến trực tiếp trong lúc page đầu đang nạp đã được addEntry hiển thị,
+     * và có thể cũng nằm trong page nếu được ghi vào DB trước khi page được đọc.
+     * Lúc batch mới nhất về, danh sách chỉ có các dòng trực tiếp đó: bỏ phần cuối
+     * của batch trùng với phần đầu của chúng.
+     */
+    private List<ChatEntry> withoutShownLive(List<ChatEntry> newestBatch) {
+        List<ChatEntry> live = messageList.getItems();
+        for (int k = Math.min(newestBatch.size(), live.size()); k > 0; k--) {
+            boolean overlap = true;
+            for (int i = 0; i < k && overlap; i++) {
+                overlap = newestBatch.get(newestBatch.size() - k + i).sameAs(live.get(i));
             }
+            if (overlap)
+                return newestBatch.subList(0, newestBatch.size() - k);
+        }
+        return newestBatch;
+    }
+
+    private void fillViewport() {
+        messageList.applyCss();
+        messageList.layout();
+        ScrollBar bar = verticalScrollBar();
+        // chưa có thanh cuộn nghĩa là toàn bộ các dòng đang vừa khung, chưa thể kéo lên để nạp thêm
+        if (bar != null && !bar.isVisible()) {
+            loadOlderMessages();
         }
+    }
 
-        // Scroll xuống cuối sau khi load xong
-        scrollToBottom();
+    /** Chèn page cũ hơn lên đầu, giữ nguyên dòng đang ở đầu màn hình. */
+    private void loadOlderMessages() {
+        HistoryLoader loader = history;
+        if (loader == null || !loader.canLoadMore())
+            return;
+        loader.loadOlder(batch -> {
+            messageList.getItems().addAll(0, batch);
+            messageList.scrollTo(batch.size());
+        }, this::fillViewport);
     }
 
     /**
      * Scroll xuống cuối danh sách tin nhắn
      */
     private void scrollToBottom() {
-        if (messageScrollPane != null) {
+        if (messageList != null) {
             // Delay nhỏ để đảm bảo layout đã được tính toán
             Platform.runLater(() -> {
-                messageScrollPane.setVvalue(1.0);
+                if (!messageList.getItems().isEmpty())
+                    messageList.scrollTo(messageList.getItems().size() - 1);
             });
         }
     }
 
-    /**
-     * Hiển thị file message khi load từ database (không gửi lại qua network)
-     */
-    private void displayFileMessage(String sender, String filename, String filePath, long size) {
-        // Kiểm tra nếu là voice message
-        if (isVoiceFile(filename)) {
-            int estimatedDuration = (int) Math.max(1, size / 88200);
-            displayVoiceBubble(sender, filename, filePath, estimatedDuration);
+    /** Thêm một dòng vào cuối danh sách chat; gọi được từ mọi thread. */
+    private void addEntry(ChatEntry entry) {
+        if (!Platform.isFxApplicationThread()) {
+            Platform.runLater(() -> addEntry(entry));
             return;
         }
-
-        boolean isSent = sender.equals(currentUser);
-        boolean isImage = isImageFile(filename);
-
-        // Tạo file bubble container
-        VBox fileBubble = new VBox(6);
-        fileBubble.getStyleClass().add(isSent ? "file-bubble-sent" : "file-bubble-received");
-
-        if (isImage && filePath != null && new File(filePath).exists()) {
-            // Hiển thị ảnh preview
-            try {
-                javafx.scene.image.Image img = new javafx.scene.image.Image(new File(filePath).toURI().toString(), 200,
-                        200, true, true);
-                if (!img.isError()) {
-                    javafx.scene.image.ImageView imageView = new javafx.scene.image.ImageView(img);
-                    imageView.setPreserveRatio(true);
-                    imageView.setFitWidth(200);
-                    imageView.getStyleClass().add("file-image-preview");
-                    imageView.setOnMouseClicked(e -> openFile(filePath));
-                    imageView.setCursor(javafx.scene.Cursor.HAND);
-                    fileBubble.getChildren().add(imageView);
-                } else {
-                    addFileInfo(fileBubble, filename, size, filePath);
-                }
-            } catch (Exception ex) {
-                addFileInfo(fileBubble, filename, size, filePath);
-            }
-        } else {
-            addFileInfo(fileBubble, filename, size, filePath);
-        }
-
-        HBox row = new HBox(fileBubble);
-        row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.getStyleClass().add("chat-row");
-        messagesBox.getChildren().add(row);
+        messageList.getItems().add(entry);
         scrollToBottom();
     }
 
-    /**
-     * Hiển thị voice bubble khi load từ database
-     */
-    private void displayVoiceBubble(String sender, String filename, String filePath, int durationSeconds) {
-        boolean isSent = sender.equals(currentUser);
-
-        VBox voiceBubble = new VBox(8);
-        voiceBubble.getStyleClass().add(isSent ? "voice-bubble-sent" : "voice-bubble-received");
-
-        HBox waveformRow = new HBox(8);
-        waveformRow.setAlignment(Pos.CENTER_LEFT);
-
-        Label playIcon = new Label("▶️");
-        playIcon.getStyleClass().add("voice-play-icon");
-        playIcon.setCursor(javafx.scene.Cursor.HAND);
-        playIcon.setOnMouseClicked(e -> playVoiceMessage(filePath, playIcon));
-
-        HBox waveform = new HBox(2);
-        waveform.setAlignment(Pos.CENTER);
-        for (int i = 0; i < 20; i++) {
-            javafx.scene.shape.Rectangle bar = new javafx.scene.shape.Rectangle(3, 5 + Math.random() * 15);
-            bar.getStyleClass().add("voice-wave-bar");
-            bar.setArcWidth(2);
-            bar.setArcHeight(2);
-            waveform.getChildren().add(bar);
-        }
-
-        waveformRow.getChildren().addAll(playIcon, waveform);
-
-        int mins = durationSeconds / 60;
-        int secs = durationSeconds % 60;
-        Label durationLabel = new Label(String.format("%02d:%02d", mins, secs));
-        durationLabel.getStyleClass().add("voice-duration");
-
-        voiceBubble.getChildren().addAll(waveformRow, durationLabel);
-
-        HBox row = new HBox(voiceBubble);
-        row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.getStyleClass().add("chat-row");
-        messagesBox.getChildren().add(row);
-        scrollToBottom();
+    private ChatEntry lastEntry() {
+        List<ChatEntry> items = messageList.getItems();
+        return items.isEmpty() ? null : items.get(items.size() - 1);
     }
 
     @FXML
@@ -349,17 +331,15 @@ public class ChatAreaController {
         if (currentGroupId != null) {
             handleGroupFileSend(f, null);
         } else if (selectedContact != null) {
-            new Thread(() -> {
+            inBackground("send-file-thread", () -> {
                 try {
-                    peer.sendFileByName(selectedContact, f.getAbsolutePath());
-                    chatDb.insertMessage(
-                            new Message(currentUser, selectedContact, f.getName(), true, f.getAbsolutePath()));
+                    peer.sendChatFile(selectedContact, f.getAbsolutePath());
                     long size = f.length();
                     Platform.runLater(() -> onIncomingFile(currentUser, f.getName(), f.getAbsolutePath(), size));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-            }, "send-file-thread").start();
+            });
         }
     }
 
@@ -378,69 +358,30 @@ public class ChatAreaController {
         if (currentGroupId != null) {
             handleGroupFileSend(f, null);
         } else if (selectedContact != null) {
-            new Thread(() -> {
+            inBackground("send-image-thread", () -> {
                 try {
-                    peer.sendFileByName(selectedContact, f.getAbsolutePath());
-                    chatDb.insertMessage(
-                            new Message(currentUser, selectedContact, f.getName(), true, f.getAbsolutePath()));
+                    peer.sendChatFile(selectedContact, f.getAbsolutePath());
                     long size = f.length();
                     Platform.runLater(() -> onIncomingFile(currentUser, f.getName(), f.getAbsolutePath(), size));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-            }, "send-image-thread").start();
+            });
         }
     }
 
-    private void appendCallRecord(CallRecord cr) {
-        String label = cr.isVideo() ? "📹 Cuộc gọi video" : "📞 Cuộc gọi thoại";
-        label += cr.isSuccess() ? " thành công" : " bị từ chối";
-        label += " (" + cr.getDuration() + " giây)";
-
-        Label bubble = new Label(label);
-        bubble.setWrapText(true);
-        bubble.getStyleClass().add("bubble-call");
-
-        HBox row = new HBox(bubble);
-        row.setAlignment(Pos.CENTER);
-        row.getStyleClass().add("chat-row");
-
-        messagesBox.getChildren().add(row);
-        scrollToBottom();
-    }
     private void appendMessage(Message msg) {
         boolean isSent = msg.getFromUser().equals(currentUser);
         appendPlainTextBubble(msg.getFromUser(), msg.getContent(), isSent);
     }
 
     private void appendPlainTextBubble(String sender, String content, boolean isSent) {
-        // Trong group: hiển thị tên người gửi trước nội dung nếu không phải mình
-        String display = content;
-        if (currentGroupId != null && !isSent) {
-            display = sender + ": " + content;
-        }
-
-        if (!messagesBox.getChildren().isEmpty()) {
-            javafx.scene.Node last = messagesBox.getChildren().get(messagesBox.getChildren().size() - 1);
-            if (last instanceof HBox h && !h.getChildren().isEmpty() && h.getChildren().get(0) instanceof Label l) {
-                String lastText = l.getText();
-                if (lastText.equals(display)) {
-                    return;
-                }
-            }
+        String display = HistoryLoader.displayText(sender, content, isSent, currentGroupId != null);
+        ChatEntry last = lastEntry();
+        if (last != null && display.equals(last.text)) {
+            return;
         }
-
-        Label bubble = new Label(display);
-        bubble.setWrapText(true);
-        bubble.getStyleClass().add(isSent ? "bubble-sent" : "bubble-received");
-
-        HBox row = new HBox(bubble);
-        row.setFillHeight(false);
-        row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.getStyleClass().add("chat-row");
-
-        messagesBox.getChildren().add(row);
-        scrollToBottom();
+        addEntry(ChatEntry.text(sender, display, isSent));
     }
 
     @FXML
@@ -452,23 +393,22 @@ public class ChatAreaController {
             if (currentGroupId != null) {
                 // Gửi message trong group
                 if (peer != null) {
-                    peer.sendGroupMessage(currentGroupId, messageText);
+                    String groupId = currentGroupId;
+                    peer.sendGroupMessage(groupId, messageText).thenAccept(delivery -> {
+                        // thành viên offline là bình thường, chỉ báo những người gửi lỗi
+                        List<String> failed = delivery.members(GroupFanout.Status.FAILED);
+                        if (!failed.isEmpty()) {
+                            Platform.runLater(() -> onGroupSystemMessage(groupId,
+                                    "Không gửi được tới: " + String.join(", ", failed)));
+                        }
+                    });
                 }
                 // Hiển thị local luôn
                 appendPlainTextBubble(currentUser, messageText, true);
             } else if (selectedContact != null) {
-                // peer-to-peer như cũ
-                Message msg = new Message(currentUser, selectedContact, messageText, false, null);
-                msg.setTimestamp(System.currentTimeMillis()); // Set timestamp
-
-                // Lưu vào database trước khi gửi
-                if (chatDb != null) {
-                    chatDb.insertMessage(msg);
-                }
-
-                appendMessage(msg);
+                // peer-to-peer như cũ; PeerHandle lưu DB trước khi gửi
                 if (peer != null) {
-                    peer.sendToByName(selectedContact, messageText);
+                    appendMessage(peer.sendChatMessage(selectedContact, messageText));
                 }
             }
         }
@@ -504,18 +444,11 @@ public class ChatAreaController {
 
                 @Override
                 public void onTextSend(String text) {
-                    // Lưu text vào DB
-                    Message textMsg = new Message(currentUser, selectedContact, text, false, null);
-                    textMsg.setTimestamp(System.currentTimeMillis());
-                    chatDb.insertMessage(textMsg);
+                    // Lưu text vào DB và gửi P2P
+                    Message textMsg = peer.sendChatMessage(selectedContact, text);
 
                     // Hiển thị local
                     Platform.runLater(() -> appendMessage(textMsg));
-
-                    // Gửi P2P
-                    if (peer != null) {
-                        peer.sendToByName(selectedContact, text);
-                    }
                 }
             });
 
@@ -541,13 +474,10 @@ public class ChatAreaController {
         if (currentGroupId != null) {
             handleGroupFileSend(voiceFile, durationSeconds);
         } else if (selectedContact != null) {
-            new Thread(() -> {
+            inBackground("send-voice-thread", () -> {
                 try {
-                    peer.sendFileByName(selectedContact, filePath);
-
-                    // Lưu vào DB với metadata thời gian
-                    String message = voiceFile.getName();
-                    chatDb.insertMessage(new Message(currentUser, selectedContact, message, true, filePath));
+                    // gửi rồi lưu vào DB
+                    peer.sendChatFile(selectedContact, filePath);
 
                     long size = voiceFile.length();
                     Platform.runLater(
@@ -555,10 +485,19 @@ public class ChatAreaController {
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-            }, "send-voice-thread").start();
+            });
         }
     }
 
+    /** Chạy việc gửi/phát ở background; pool đầy thì báo người dùng thay vì chạy trên FX thread. */
+    private static void inBackground(String name, Runnable task) {
+        if (Workers.tryStart(name, task) != null)
+            return;
+        System.err.println("[ChatArea] Too busy, " + name + " not started");
+        Platform.runLater(() -> new javafx.scene.control.Alert(javafx.scene.control.Alert.AlertType.WARNING,
+                "Ứng dụng đang bận, vui lòng thử lại sau.").show());
+    }
+
     /**
      * Gửi file/ảnh/voice tới tất cả thành viên trong group hiện tại và lưu lịch sử
      * group_files.
@@ -569,20 +508,13 @@ public class ChatAreaController {
         if (file == null || !file.exists())
             return;
 
-        new Thread(() -> {
+        inBackground("send-group-file-thread", () -> {
             try {
                 String absPath = file.getAbsolutePath();
                 String filename = file.getName();
 
-                List<String> members = chatDb.getGroupMembers(currentGroupId);
-                for (String member : members) {
-                    if (member.equals(currentUser))
-                        continue;
-                    peer.sendGroupFileByName(member, absPath, currentGroupId);
-                }
-
-                // lưu vào bảng group_files
-                chatDb.insertGroupFile(currentGroupId, currentUser, filename, absPath);
+                // gửi tới các thành viên rồi lưu vào bảng group_files
+                peer.sendGroupFile(currentGroupId, absPath);
 
                 long size = file.length();
                 Platform.runLater(() -> {
@@ -595,48 +527,13 @@ public class ChatAreaController {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }, "send-group-file-thread").start();
+        });
     }
 
     public void onIncomingGroupFile(String groupId, String sender, String filename, String absolutePath, long size) {
         if (currentGroupId == null || !currentGroupId.equals(groupId))
             return;
-        if (isVoiceFile(filename)) {
-            int estimatedDuration = (int) Math.max(1, size / 88200);
-            onIncomingVoice(sender, filename, absolutePath, size, estimatedDuration);
-        } else {
-            boolean isSent = sender.equals(currentUser);
-            boolean isImage = isImageFile(filename);
-            VBox fileBubble = new VBox(6);
-            fileBubble.getStyleClass().add(isSent ? "file-bubble-sent" : "file-bubble-received");
-            if (isImage && absolutePath != null && new File(absolutePath).exists()) {
-                try {
-                    javafx.scene.image.Image img = new javafx.scene.image.Image(
-                            new File(absolutePath).toURI().toString(),
-                            200, 200, true, true);
-                    if (img.isError()) {
-                        addFileInfo(fileBubble, filename, size, absolutePath);
-                    } else {
-                        javafx.scene.image.ImageView imageView = new javafx.scene.image.ImageView(img);
-                        imageView.setPreserveRatio(true);
-                        imageView.setFitWidth(200);
-                        imageView.getStyleClass().add("file-image-preview");
-                        imageView.setOnMouseClicked(e -> openFile(absolutePath));
-                        imageView.setCursor(javafx.scene.Cursor.HAND);
-                        fileBubble.getChildren().add(imageView);
-                    }
-                } catch (Exception ex) {
-                    addFileInfo(fileBubble, filename, size, absolutePath);
-                }
-            } else {
-                addFileInfo(fileBubble, filename, size, absolutePath);
-            }
-            HBox row = new HBox(fileBubble);
-            row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-            row.getStyleClass().add("chat-row");
-            messagesBox.getChildren().add(row);
-            scrollToBottom();
-        }
+        addEntry(ChatEntry.file(sender, filename, absolutePath, size, sender.equals(currentUser)));
     }
 
     public void onIncomingVoice(String sender, String filename, String absolutePath, long size, int durationSeconds) {
@@ -654,51 +551,13 @@ public class ChatAreaController {
 
 
     private void appendVoiceBubble(String sender, String filePath, int durationSeconds) {
-        boolean isSent = sender.equals(currentUser);
-
-        VBox voiceBubble = new VBox(8);
-        voiceBubble.getStyleClass().add(isSent ? "voice-bubble-sent" : "voice-bubble-received");
-
-        HBox waveformRow = new HBox(8);
-        waveformRow.setAlignment(Pos.CENTER_LEFT);
-
-        Label playIcon = new Label("▶️");
-        playIcon.getStyleClass().add("voice-play-icon");
-        playIcon.setCursor(javafx.scene.Cursor.HAND);
-        playIcon.setOnMouseClicked(e -> playVoiceMessage(filePath, playIcon));
-
-        HBox waveform = new HBox(2);
-        waveform.setAlignment(Pos.CENTER);
-        for (int i = 0; i < 20; i++) {
-            javafx.scene.shape.Rectangle bar = new javafx.scene.shape.Rectangle(3, 5 + Math.random() * 15);
-            bar.getStyleClass().add("voice-wave-bar");
-            bar.setArcWidth(2);
-            bar.setArcHeight(2);
-            waveform.getChildren().add(bar);
-        }
-
-        waveformRow.getChildren().addAll(playIcon, waveform);
-
-        int mins = durationSeconds / 60;
-        int secs = durationSeconds % 60;
-        Label durationLabel = new Label(String.format("%02d:%02d", mins, secs));
-        durationLabel.getStyleClass().add("voice-duration");
-
-        voiceBubble.getChildren().addAll(waveformRow, durationLabel);
-
-        HBox row = new HBox(voiceBubble);
-        row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.getStyleClass().add("chat-row");
-
-        Platform.runLater(() -> {
-            messagesBox.getChildren().add(row);
-            scrollToBottom();
-        });
+        String filename = filePath != null ? new File(filePath).getName() : "";
+        addEntry(ChatEntry.voice(sender, filename, filePath, durationSeconds, sender.equals(currentUser)));
     }
 
 
     private void playVoiceMessage(String filePath, Label playIcon) {
-        new Thread(() -> {
+        inBackground("play-voice-thread", () -> {
             try {
                 File audioFile = new File(filePath);
                 if (!audioFile.exists())
@@ -724,7 +583,7 @@ public class ChatAreaController {
                 Platform.runLater(() -> playIcon.setText("❌"));
                 e.printStackTrace();
             }
-        }, "play-voice-thread").start();
+        });
     }
 
     public VoiceCallController getActiveVoiceCallController() {
@@ -798,126 +657,11 @@ public class ChatAreaController {
             }
         }
 
-        // Kiểm tra nếu là voice message (file voice_*.wav)
-        if (isVoiceFile(filename)) {
-            // Ước tính duration từ file size (44100Hz, 16bit, mono = ~88KB/giây)
-            int estimatedDuration = (int) Math.max(1, size / 88200);
-            onIncomingVoice(sender, filename, absolutePath, size, estimatedDuration);
-            return;
-        }
-
         boolean isSent = sender.equals(currentUser);
-        boolean isImage = isImageFile(filename);
-        System.out.println("[ChatArea] isSent=" + isSent + ", isImage=" + isImage);
-
-        // Tạo file bubble container
-        VBox fileBubble = new VBox(6);
-        fileBubble.getStyleClass().add(isSent ? "file-bubble-sent" : "file-bubble-received");
-
-        if (isImage && absolutePath != null && new File(absolutePath).exists()) {
-            // Hiển thị ảnh preview
-            try {
-                javafx.scene.image.Image img = new javafx.scene.image.Image(new File(absolutePath).toURI().toString(),
-                        200, 200, true, true);
-                if (img.isError()) {
-                    System.out.println("[ChatArea] Image load error, falling back to file info");
-                    addFileInfo(fileBubble, filename, size, absolutePath);
-                } else {
-                    javafx.scene.image.ImageView imageView = new javafx.scene.image.ImageView(img);
-                    imageView.setPreserveRatio(true);
-                    imageView.setFitWidth(200);
-                    imageView.getStyleClass().add("file-image-preview");
-                    imageView.setOnMouseClicked(e -> openFile(absolutePath));
-                    imageView.setCursor(javafx.scene.Cursor.HAND);
-                    fileBubble.getChildren().add(imageView);
-                }
-            } catch (Exception ex) {
-                System.out.println("[ChatArea] Exception loading image: " + ex.getMessage());
-                // Fallback to file icon if image can't be loaded
-                addFileInfo(fileBubble, filename, size, absolutePath);
-            }
-        } else {
-            // Hiển thị file với icon
-            addFileInfo(fileBubble, filename, size, absolutePath);
-        }
-
-        // Wrap trong HBox để căn lề
-        HBox row = new HBox(fileBubble);
-        row.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        row.getStyleClass().add("chat-row");
-        messagesBox.getChildren().add(row);
-        System.out.println("[ChatArea] File bubble added to messagesBox");
-        scrollToBottom();
-    }
-
-    private void addFileInfo(VBox container, String filename, long size, String absolutePath) {
-        // Icon và tên file
-        String fileIcon = getFileIcon(filename);
-        Label iconLabel = new Label(fileIcon);
-        iconLabel.getStyleClass().add("file-icon");
-
-        Label nameLabel = new Label(filename);
-        nameLabel.getStyleClass().add("file-name");
-        nameLabel.setWrapText(true);
-        nameLabel.setMaxWidth(180);
-
-        HBox fileHeader = new HBox(8, iconLabel, nameLabel);
-        fileHeader.setAlignment(Pos.CENTER_LEFT);
-
-        // Size file
-        Label sizeLabel = new Label(formatFileSize(size));
-        sizeLabel.getStyleClass().add("file-size");
-
-        // Nút mở file
-        Button openBtn = new Button("Mở 📂");
-        openBtn.getStyleClass().add("file-open-btn");
-        openBtn.setOnAction(e -> openFile(absolutePath));
-
-        container.getChildren().addAll(fileHeader, sizeLabel, openBtn);
-    }
-
-    private boolean isImageFile(String filename) {
-        String lower = filename.toLowerCase();
-        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg")
-                || lower.endsWith(".gif") || lower.endsWith(".bmp") || lower.endsWith(".webp");
-    }
-
-    private boolean isVoiceFile(String filename) {
-        String lower = filename.toLowerCase();
-        return lower.startsWith("voice_") && lower.endsWith(".wav");
-    }
-
-    private String getFileIcon(String filename) {
-        String lower = filename.toLowerCase();
-        if (lower.endsWith(".pdf"))
-            return "📕";
-        if (lower.endsWith(".doc") || lower.endsWith(".docx"))
-            return "📘";
-        if (lower.endsWith(".xls") || lower.endsWith(".xlsx"))
-            return "📗";
-        if (lower.endsWith(".ppt") || lower.endsWith(".pptx"))
-            return "📙";
-        if (lower.endsWith(".zip") || lower.endsWith(".rar") || lower.endsWith(".7z"))
-            return "🗜️";
-        if (lower.endsWith(".mp3") || lower.endsWith(".wav") || lower.endsWith(".flac"))
-            return "🎵";
-        if (lower.endsWith(".mp4") || lower.endsWith(".avi") || lower.endsWith(".mkv"))
-            return "🎬";
-        if (lower.endsWith(".txt"))
-            return "📝";
-        if (lower.endsWith(".java") || lower.endsWith(".py") || lower.endsWith(".js"))
-            return "💻";
-        return "📄";
-    }
-
-    private String formatFileSize(long bytes) {
-        if (bytes < 1024)
-            return bytes + " B";
-        if (bytes < 1024 * 1024)
-            return String.format("%.1f KB", bytes / 1024.0);
-        if (bytes < 1024 * 1024 * 1024)
-            return String.format("%.1f MB", bytes / (1024.0 * 1024));
-        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+        System.out.println("[ChatArea] isSent=" + isSent + ", isImage=" + ChatEntry.isImageFile(filename));
+        // voice / image / file được phân biệt theo tên file
+        addEntry(ChatEntry.file(sender, filename, absolutePath, size, isSent));
+        System.out.println("[ChatArea] File entry added to messageList");
     }
 
     private void openFile(String absolutePath) {
@@ -974,8 +718,8 @@ public class ChatAreaController {
     @FXML
     private void onOpenInfoPanel() {
         // Nếu đang ở group, hiển thị danh sách thành viên nhóm
-        if (currentGroupId != null && chatDb != null) {
-            List<String> members = chatDb.getGroupMembers(currentGroupId);
+        if (currentGroupId != null && peer != null) {
+            List<String> members = peer.getGroupMembers(currentGroupId);
             String text = String.join(", ", members);
             javafx.scene.control.Alert alert = new javafx.scene.control.Alert(
                     javafx.scene.control.Alert.AlertType.INFORMATION);
@@ -1086,14 +830,7 @@ public class ChatAreaController {
         if (peer == null || currentGroupId == null || chatDb == null)
             return;
         String leavingGroupId = currentGroupId;
-        List<String> members = chatDb.getGroupMembers(currentGroupId);
-        for (String m : members) {
-            if (!m.equals(currentUser)) {
-                peer.sendToByName(m, "GROUP_LEAVE|" + currentGroupId + "|" + currentUser);
-            }
-        }
-        chatDb.removeGroupMember(currentGroupId, currentUser);
-        chatDb.deleteGroupIfEmpty(currentGroupId);
+        peer.leaveGroup(currentGroupId);
         if (peer != null) {
             peer.notifyLocalGroupLeft(leavingGroupId, currentUser);
         }
@@ -1128,16 +865,11 @@ public class ChatAreaController {
         if (newName.isEmpty())
             return;
         chatDb.renameGroup(currentGroupId, newName);
-        List<String> members = chatDb.getGroupMembers(currentGroupId);
-        for (String m : members) {
-            if (!m.equals(currentUser)) {
-                peer.sendToByName(m, "GROUP_RENAME|" + currentGroupId + "|" + newName);
-            }
-        }
+        peer.announceGroupRename(currentGroupId, newName);
         currentGroupName = newName;
         contactName.setText(newName);
         if (chatDb != null) {
-            chatDb.insertGroupMessage(currentGroupId, "SYSTEM", "Tên nhóm đã đổi thành \"" + newName + "\"");
+            peer.recordGroupMessage(currentGroupId, "SYSTEM", "Tên nhóm đã đổi thành \"" + newName + "\"");
         }
         onGroupSystemMessage(currentGroupId, "Tên nhóm đã đổi thành \"" + newName + "\"");
         if (peer != null) {
@@ -1153,7 +885,7 @@ public class ChatAreaController {
         if (!currentUser.equals(owner))
             return;
         java.util.List<String> allUsers = chatDb.getAllUsers();
-        java.util.List<String> currentMembers = chatDb.getGroupMembers(currentGroupId);
+        java.util.List<String> currentMembers = peer.getGroupMembers(currentGroupId);
         allUsers.remove(currentUser);
         javafx.scene.control.Dialog<ManageResult> dialog = new javafx.scene.control.Dialog<>();
         dialog.setTitle("Quản lý thành viên nhóm");
@@ -1204,7 +936,7 @@ public class ChatAreaController {
                 handleRemoveMembers(r.toRemove);
             if ((r.toAdd != null && !r.toAdd.isEmpty()) || (r.toRemove != null && !r.toRemove.isEmpty())) {
                 if (chatDb != null) {
-                    chatDb.insertGroupMessage(currentGroupId, "SYSTEM", "Danh sách thành viên nhóm đã được cập nhật");
+                    peer.recordGroupMessage(currentGroupId, "SYSTEM", "Danh sách thành viên nhóm đã được cập nhật");
                 }
                 onGroupSystemMessage(currentGroupId, "Danh sách thành viên nhóm đã được cập nhật");
             }
@@ -1215,60 +947,11 @@ public class ChatAreaController {
         if (currentGroupId == null || !currentGroupId.equals(groupId)) {
             return;
         }
-        if (!messagesBox.getChildren().isEmpty()) {
-            javafx.scene.Node last = messagesBox.getChildren().get(messagesBox.getChildren().size() - 1);
-            if (last instanceof HBox h && !h.getChildren().isEmpty() && h.getChildren().get(0) instanceof Label l) {
-                String lastText = l.getText();
-                if (lastText.equals(content)) {
-                    return;
-                }
-            }
-        }
-        Label bubble = new Label(content);
-        bubble.setWrapText(true);
-        bubble.getStyleClass().add("bubble-system");
-        HBox row = new HBox(bubble);
-        row.setAlignment(Pos.CENTER);
-        row.getStyleClass().add("chat-row");
-        messagesBox.getChildren().add(row);
-        scrollToBottom();
-    }
-
-    private void loadGroupHistory(String groupId) {
-        List<Message> timeline = new ArrayList<>();
-        List<Message> msgs = chatDb.loadGroupMessagesAsc(groupId, 1000);
-        if (msgs != null)
-            timeline.addAll(msgs);
-        List<Message> files = chatDb.loadGroupFilesAsc(groupId, 1000);
-        if (files != null)
-            timeline.addAll(files);
-        timeline.sort(Comparator.comparingLong(Message::getTimestamp));
-
-        for (Message item : timeline) {
-            if (item.isFile()) {
-                String filename = item.getContent();
-                String path = item.getFilePath();
-                long size = 0;
-                if (path != null) {
-                    File f = new File(path);
-                    if (f.exists())
-                        size = f.length();
-                }
-                if (isVoiceFile(filename)) {
-                    int estimatedDuration = (int) Math.max(1, size / 88200);
-                    onIncomingVoice(item.getFromUser(), filename, path, size, estimatedDuration);
-                } else {
-                    onIncomingFile(item.getFromUser(), filename, path, size);
-                }
-            } else {
-                if ("SYSTEM".equals(item.getFromUser())) {
-                    onGroupSystemMessage(groupId, item.getContent());
-                } else {
-                    boolean isSent = item.getFromUser().equals(currentUser);
-                    appendPlainTextBubble(item.getFromUser(), item.getContent(), isSent);
-                }
-            }
+        ChatEntry last = lastEntry();
+        if (last != null && content.equals(last.text)) {
+            return;
         }
+        addEntry(ChatEntry.system(content));
     }
 
     private void handleAddMembers(List<String> members) {
@@ -1282,14 +965,7 @@ public class ChatAreaController {
         }
         if (normalized.isEmpty())
             return;
-        chatDb.insertGroupMembers(currentGroupId, normalized);
-        String csv = String.join(",", normalized);
-        List<String> existing = chatDb.getGroupMembers(currentGroupId);
-        for (String m : existing) {
-            if (m.equals(currentUser))
-                continue;
-            peer.sendToByName(m, "GROUP_ADD_MEMBER|" + currentGroupId + "|" + csv);
-        }
+        peer.addGroupMembers(currentGroupId, normalized);
     }
 
     private void handleRemoveMembers(List<String> members) {
@@ -1303,17 +979,7 @@ public class ChatAreaController {
         }
         if (normalized.isEmpty())
             return;
-        for (String m : normalized) {
-            chatDb.removeGroupMember(currentGroupId, m);
-        }
-        chatDb.deleteGroupIfEmpty(currentGroupId);
-        String csv = String.join(",", normalized);
-        List<String> existing = chatDb.getGroupMembers(currentGroupId);
-        for (String m : existing) {
-            if (m.equals(currentUser))
-                continue;
-            peer.sendToByName(m, "GROUP_REMOVE_MEMBER|" + currentGroupId + "|" + csv);
-        }
+        peer.removeGroupMembers(currentGroupId, normalized);
     }
 
     private static class ManageResult {
@@ -0,0 +1,115 @@
+package org.example.peer_chat.ui.controllers;
+
+import java.util.Objects;
+
+import org.example.peer_chat.CallRecord;
+
+/**
+ * One row of the chat list. Rows are plain data; {@link ChatEntryCell} turns
+ * them into nodes and reuses those nodes while scrolling, so the scene graph
+ * stays the same size however long the history is.
+ */
+final class ChatEntry {
+
+    enum Kind { TEXT, SYSTEM, CALL, FILE, IMAGE, VOICE }
+
+    final Kind kind;
+    final String sender;
+    final boolean sent;
+    final String text; // nội dung hiển thị của TEXT / SYSTEM / CALL
+    final String filename;
+    final String filePath;
+    final long size;
+    final int durationSeconds; // VOICE
+
+    private ChatEntry(Kind kind, String sender, boolean sent, String text, String filename, String filePath,
+                      long size, int durationSeconds) {
+        this.kind = kind;
+        this.sender = sender;
+        this.sent = sent;
+        this.text = text;
+        this.filename = filename;
+        this.filePath = filePath;
+        this.size = size;
+        this.durationSeconds = durationSeconds;
+    }
+
+    /** Same row content; the live and the history path build equal rows for the same item. */
+    boolean sameAs(ChatEntry o) {
+        return kind == o.kind && sent == o.sent && Objects.equals(sender, o.sender) && Objects.equals(text, o.text)
+                && Objects.equals(filename, o.filename) && Objects.equals(filePath, o.filePath);
+    }
+
+    static ChatEntry text(String sender, String display, boolean sent) {
+        return new ChatEntry(Kind.TEXT, sender, sent, display, null, null, 0, 0);
+    }
+
+    static ChatEntry system(String content) {
+        return new ChatEntry(Kind.SYSTEM, "SYSTEM", false, content, null, null, 0, 0);
+    }
+
+    static ChatEntry call(CallRecord cr) {
+        String label = cr.isVideo() ? "📹 Cuộc gọi video" : "📞 Cuộc gọi thoại";
+        label += cr.isSuccess() ? " thành công" : " bị từ chối";
+        label += " (" + cr.getDuration() + " giây)";
+        return new ChatEntry(Kind.CALL, cr.getFromUser(), false, label, null, null, 0, 0);
+    }
+
+    /** File, image or voice message depending on the file name. */
+    static ChatEntry file(String sender, String filename, String filePath, long size, boolean sent) {
+        if (isVoiceFile(filename)) {
+            // Ước tính duration từ file size (44100Hz, 16bit, mono = ~88KB/giây)
+            return voice(sender, filename, filePath, (int) Math.max(1, size / 88200), sent);
+        }
+        Kind kind = isImageFile(filename) && filePath != null ? Kind.IMAGE : Kind.FILE;
+        return new ChatEntry(kind, sender, sent, null, filename, filePath, size, 0);
+    }
+
+    static ChatEntry voice(String sender, String filename, String filePath, int durationSeconds, boolean sent) {
+        return new ChatEntry(Kind.VOICE, sender, sent, null, filename, filePath, 0, durationSeconds);
+    }
+
+    static boolean isImageFile(String filename) {
+        String lower = filename.toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg")
+                || lower.endsWith(".gif") || lower.endsWith(".bmp") || lower.endsWith(".webp");
+    }
+
+    static boolean isVoiceFile(String filename) {
+        String lower = filename.toLowerCase();
+        return lower.startsWith("voice_") && lower.endsWith(".wav");
+    }
+
+    static String fileIcon(String filename) {
+        String lower = filename.toLowerCase();
+        if (lower.endsWith(".pdf"))
+            return "📕";
+        if (lower.endsWith(".doc") || lower.endsWith(".docx"))
+            return "📘";
+        if (lower.endsWith(".xls") || lower.endsWith(".xlsx"))
+            return "📗";
+        if (lower.endsWith(".ppt") || lower.endsWith(".pptx"))
+            return "📙";
+        if (lower.endsWith(".zip") || lower.endsWith(".rar") || lower.endsWith(".7z"))
+            return "🗜️";
+        if (lower.endsWith(".mp3") || lower.endsWith(".wav") || lower.endsWith(".flac"))
+            return "🎵";
+        if (lower.endsWith(".mp4") || lower.endsWith(".avi") || lower.endsWith(".mkv"))
+            return "🎬";
+        if (lower.endsWith(".txt"))
+            return "📝";
+        if (lower.endsWith(".java") || lower.endsWith(".py") || lower.endsWith(".js"))
+            return "💻";
+        return "📄";
+    }
+
+    static String formatFileSize(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024 * 1024 * 1024)
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
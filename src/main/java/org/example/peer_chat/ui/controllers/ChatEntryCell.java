@@ -0,0 +1,184 @@
+package org.example.peer_chat.ui.controllers;
+
+import java.util.Objects;
+import java.util.Random;
+
+import javafx.geometry.Pos;
+import javafx.scene.Cursor;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Cell of the chat list. Each cell builds the nodes of every row kind once
+ * and only swaps texts, style classes and the image when it is reused for
+ * another {@link ChatEntry}.
+ */
+class ChatEntryCell extends ListCell<ChatEntry> {
+
+    /** What clicking inside a row does; implemented by {@link ChatAreaController}. */
+    interface Actions {
+        void openFile(String absolutePath);
+
+        void playVoice(String filePath, Label playIcon);
+    }
+
+    private static final int WAVE_BARS = 20;
+
+    // text / system / call
+    private final Label bubble = new Label();
+    private final HBox textRow = new HBox(bubble);
+
+    // file / image
+    private final ImageView preview = new ImageView();
+    private final Label fileIcon = new Label();
+    private final Label fileName = new Label();
+    private final Label fileSize = new Label();
+    private final Button openButton = new Button("Mở 📂");
+    private final HBox fileHeader = new HBox(8, fileIcon, fileName);
+    private final VBox fileBubble = new VBox(6);
+    private final HBox fileRow = new HBox(fileBubble);
+
+    // voice
+    private final Label playIcon = new Label("▶️");
+    private final HBox waveform = new HBox(2);
+    private final Label voiceDuration = new Label();
+    private final VBox voiceBubble = new VBox(8);
+    private final HBox voiceRow = new HBox(voiceBubble);
+
+    private final ThumbnailService thumbnails;
+
+    ChatEntryCell(Actions actions, ThumbnailService thumbnails) {
+        this.thumbnails = thumbnails;
+        // cell rộng bằng ListView, bubble tự xuống dòng thay vì kéo ngang
+        setPrefWidth(0);
+
+        bubble.setWrapText(true);
+        bubble.maxWidthProperty().bind(widthProperty().multiply(0.75));
+        textRow.setFillHeight(false);
+        textRow.getStyleClass().add("chat-row");
+
+        preview.setPreserveRatio(true);
+        preview.setFitWidth(ThumbnailService.SIZE);
+        preview.getStyleClass().add("file-image-preview");
+        preview.setCursor(Cursor.HAND);
+        preview.setOnMouseClicked(e -> {
+            ChatEntry entry = getItem();
+            if (entry != null) actions.openFile(entry.filePath);
+        });
+        fileIcon.getStyleClass().add("file-icon");
+        fileName.getStyleClass().add("file-name");
+        fileName.setWrapText(true);
+        fileName.setMaxWidth(180);
+        fileHeader.setAlignment(Pos.CENTER_LEFT);
+        fileSize.getStyleClass().add("file-size");
+        openButton.getStyleClass().add("file-open-btn");
+        openButton.setOnAction(e -> {
+            ChatEntry entry = getItem();
+            if (entry != null) actions.openFile(entry.filePath);
+        });
+        fileRow.getStyleClass().add("chat-row");
+
+        playIcon.getStyleClass().add("voice-play-icon");
+        playIcon.setCursor(Cursor.HAND);
+        playIcon.setOnMouseClicked(e -> {
+            ChatEntry entry = getItem();
+            if (entry != null) actions.playVoice(entry.filePath, playIcon);
+        });
+        waveform.setAlignment(Pos.CENTER);
+        for (int i = 0; i < WAVE_BARS; i++) {
+            Rectangle bar = new Rectangle(3, 5);
+            bar.getStyleClass().add("voice-wave-bar");
+            bar.setArcWidth(2);
+            bar.setArcHeight(2);
+            waveform.getChildren().add(bar);
+        }
+        HBox waveformRow = new HBox(8, playIcon, waveform);
+        waveformRow.setAlignment(Pos.CENTER_LEFT);
+        voiceDuration.getStyleClass().add("voice-duration");
+        voiceBubble.getChildren().addAll(waveformRow, voiceDuration);
+        voiceRow.getStyleClass().add("chat-row");
+    }
+
+    @Override
+    protected void updateItem(ChatEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        setText(null);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        switch (entry.kind) {
+            case TEXT -> showText(entry.text, entry.sent ? "bubble-sent" : "bubble-received",
+                    entry.sent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+            case SYSTEM -> showText(entry.text, "bubble-system", Pos.CENTER);
+            case CALL -> showText(entry.text, "bubble-call", Pos.CENTER);
+            case FILE, IMAGE -> showFile(entry);
+            case VOICE -> showVoice(entry);
+        }
+    }
+
+    private void showText(String text, String styleClass, Pos alignment) {
+        bubble.setText(text);
+        bubble.getStyleClass().setAll("label", styleClass);
+        textRow.setAlignment(alignment);
+        setGraphic(textRow);
+    }
+
+    private void showFile(ChatEntry entry) {
+        fileBubble.getStyleClass().setAll(entry.sent ? "file-bubble-sent" : "file-bubble-received");
+        fileIcon.setText(ChatEntry.fileIcon(entry.filename));
+        fileName.setText(entry.filename);
+        fileSize.setText(ChatEntry.formatFileSize(entry.size));
+        fileRow.setAlignment(entry.sent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+
+        if (entry.kind == ChatEntry.Kind.IMAGE) {
+            Image cached = thumbnails.cached(entry.filePath);
+            if (cached != null) {
+                showPreview(cached);
+            } else {
+                // preview được decode ở background; tạm hiển thị như file thường
+                showFileInfo();
+                thumbnails.load(entry.filePath, image -> {
+                    if (getItem() != entry)
+                        return; // cell đã được dùng cho dòng khác
+                    if (image != null)
+                        showPreview(image);
+                });
+            }
+        } else {
+            showFileInfo();
+        }
+        setGraphic(fileRow);
+    }
+
+    private void showPreview(Image image) {
+        preview.setImage(image);
+        fileBubble.getChildren().setAll(preview);
+    }
+
+    private void showFileInfo() {
+        preview.setImage(null);
+        fileBubble.getChildren().setAll(fileHeader, fileSize, openButton);
+    }
+
+    private void showVoice(ChatEntry entry) {
+        voiceBubble.getStyleClass().setAll(entry.sent ? "voice-bubble-sent" : "voice-bubble-received");
+        playIcon.setText("▶️");
+        // chiều cao sóng cố định theo file để không đổi khi cell được tái sử dụng
+        Random random = new Random(Objects.hashCode(entry.filePath));
+        for (int i = 0; i < WAVE_BARS; i++) {
+            ((Rectangle) waveform.getChildren().get(i)).setHeight(5 + random.nextDouble() * 15);
+        }
+        int mins = entry.durationSeconds / 60;
+        int secs = entry.durationSeconds % 60;
+        voiceDuration.setText(String.format("%02d:%02d", mins, secs));
+        voiceRow.setAlignment(entry.sent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+        setGraphic(voiceRow);
+    }
+}
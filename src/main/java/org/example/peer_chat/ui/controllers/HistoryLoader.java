@@ -0,0 +1,200 @@
+package org.example.peer_chat.ui.controllers;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import org.example.peer_chat.CallRecord;
+import org.example.peer_chat.ChatConfig;
+import org.example.peer_chat.ChatDb;
+import org.example.peer_chat.ChatItem;
+import org.example.peer_chat.ConversationCache;
+import org.example.peer_chat.Message;
+import org.example.peer_chat.Workers;
+
+/**
+ * Loads the history of one conversation page by page on a worker thread:
+ * DB queries, file sizes and {@link ChatEntry} building all happen off the FX
+ * thread, and the result is handed to the UI in small batches, newest first.
+ *
+ * The first page comes from the {@link ConversationCache} when the chat was
+ * opened recently; otherwise it is read from the DB and put in the cache.
+ *
+ * One loader belongs to one opened chat. Switching chats {@link #cancel()}s
+ * it, after which pending batches are dropped instead of shown.
+ */
+final class HistoryLoader {
+
+    // số dòng mỗi lần đưa lên FX thread, để một page lớn không chặn UI một lúc lâu
+    private static final int UI_BATCH = 20;
+
+    private final ChatDb db;
+    private final ConversationCache cache;
+    private final String me;
+    private final String peer; // chat 1:1, null khi là group
+    private final String groupId; // group chat, null khi là chat 1:1
+
+    // Keyset paging: mục cũ nhất đã đọc, null = chưa đọc page nào;
+    // chỉ worker đang chạy (tối đa một) đọc/ghi
+    private ChatItem oldest;
+    private volatile boolean exhausted = false;
+
+    private volatile boolean cancelled = false;
+    private boolean loading = false; // FX thread
+
+    HistoryLoader(ChatDb db, ConversationCache cache, String me, String peer, String groupId) {
+        this.db = db;
+        this.cache = cache;
+        this.me = me;
+        this.peer = peer;
+        this.groupId = groupId;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    /** False while a page is loading or when the whole history is shown. Call on the FX thread. */
+    boolean canLoadMore() {
+        return !cancelled && !loading && !exhausted;
+    }
+
+    /**
+     * Load the next older page. {@code onBatch} receives the rows on the FX
+     * thread in chronological order, newest batch first, each batch to be put
+     * above the previous one; {@code onDone} runs once the page is delivered.
+     * Neither is called after {@link #cancel()}. Call on the FX thread.
+     */
+    void loadOlder(Consumer<List<ChatEntry>> onBatch, Runnable onDone) {
+        if (!canLoadMore())
+            return;
+        loading = true;
+        Future<?> started = Workers.tryStart("history-loader", () -> {
+            try {
+                if (!cancelled)
+                    streamPage(onBatch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            Platform.runLater(() -> {
+                loading = false;
+                if (!cancelled)
+                    onDone.run();
+            });
+        });
+        if (started == null) {
+            // pool đầy: không đọc DB trên FX thread; lần cuộn sau thử lại
+            System.err.println("[History] Too busy, page not loaded");
+            loading = false;
+        }
+    }
+
+    /**
+     * Đọc page tiếp theo (cũ hơn) từ timeline của ChatDb, mới nhất trước, và đưa
+     * từng batch lên UI ngay khi đủ dòng thay vì chờ cả page.
+     */
+    private void streamPage(Consumer<List<ChatEntry>> onBatch) {
+        int size = Math.max(1, ChatConfig.HISTORY_PAGE_SIZE);
+        List<ChatEntry> batch = new ArrayList<>(UI_BATCH);
+        ChatEntry[] newer = new ChatEntry[1];
+        Consumer<ChatItem> sink = item -> {
+            oldest = item;
+            if (cancelled)
+                return;
+            ChatEntry entry = toEntry(item);
+            // như khi hiển thị trực tiếp: bỏ dòng text lặp lại y hệt dòng ngay cạnh
+            if (entry.text != null && newer[0] != null && entry.text.equals(newer[0].text))
+                return;
+            newer[0] = entry;
+            batch.add(entry);
+            if (batch.size() == UI_BATCH) {
+                deliver(batch, onBatch);
+                batch.clear();
+            }
+        };
+        if (oldest == null && cache != null) {
+            firstPage(size, sink);
+        } else if (read(oldest, size, sink) < size) {
+            exhausted = true;
+        }
+        if (!batch.isEmpty())
+            deliver(batch, onBatch);
+    }
+
+    /** Page mới nhất: lấy từ cache nếu chat vừa mở gần đây, không thì đọc DB rồi cache lại. */
+    private void firstPage(int size, Consumer<ChatItem> sink) {
+        String key = groupId != null ? ConversationCache.groupKey(groupId) : ConversationCache.conversationKey(me, peer);
+        ConversationCache.Page cached = cache.get(key);
+        if (cached != null) {
+            List<ChatItem> items = cached.items();
+            for (int i = items.size() - 1; i >= 0; i--) {
+                sink.accept(items.get(i));
+            }
+            if (cached.complete())
+                exhausted = true;
+            return;
+        }
+        long version = cache.version(key);
+        List<ChatItem> newestFirst = new ArrayList<>(size);
+        int read = read(null, Math.max(size, cache.depth()), item -> {
+            newestFirst.add(item);
+            if (newestFirst.size() <= size)
+                sink.accept(item);
+        });
+        if (read < size)
+            exhausted = true;
+        cache.put(key, newestFirst, read < Math.max(size, cache.depth()), version);
+    }
+
+    private int read(ChatItem before, int limit, Consumer<ChatItem> sink) {
+        return groupId != null
+                ? db.streamGroupTimeline(groupId, before, limit, sink)
+                : db.streamConversationTimeline(me, peer, before, limit, sink);
+    }
+
+    /** Batch đến theo thứ tự mới nhất trước; UI nhận theo thứ tự thời gian. */
+    private void deliver(List<ChatEntry> newestFirst, Consumer<List<ChatEntry>> onBatch) {
+        List<ChatEntry> chronological = new ArrayList<>(newestFirst);
+        Collections.reverse(chronological);
+        Platform.runLater(() -> {
+            if (!cancelled)
+                onBatch.accept(chronological);
+        });
+    }
+
+    private ChatEntry toEntry(ChatItem item) {
+        if (item instanceof CallRecord cr)
+            return ChatEntry.call(cr);
+        Message msg = (Message) item;
+        boolean isSent = me.equals(msg.getFromUser());
+        if (msg.isFile()) {
+            // content chứa tên file
+            String filePath = msg.getFilePath();
+            long size = 0;
+            if (filePath != null) {
+                File f = new File(filePath);
+                if (f.exists())
+                    size = f.length();
+            }
+            return ChatEntry.file(msg.getFromUser(), msg.getContent(), filePath, size, isSent);
+        }
+        if (groupId != null && "SYSTEM".equals(msg.getFromUser()))
+            return ChatEntry.system(msg.getContent());
+        return ChatEntry.text(msg.getFromUser(), displayText(msg.getFromUser(), msg.getContent(), isSent), isSent);
+    }
+
+    /** Trong group: hiển thị tên người gửi trước nội dung nếu không phải mình. */
+    static String displayText(String sender, String content, boolean isSent, boolean group) {
+        if (group && !isSent)
+            return sender + ": " + content;
+        return content;
+    }
+
+    private String displayText(String sender, String content, boolean isSent) {
+        return displayText(sender, content, isSent, groupId != null);
+    }
+}
@@ -70,6 +70,7 @@ public class MainController implements MessageListener {
             sidebarRootController.setPeer(peer);
             sidebarRootController.setOnContactSelected(this::onContactSelected);
             sidebarRootController.setOnGroupSelected(this::onGroupSelected);
+            sidebarRootController.setOnSearchResultSelected(this::onSearchResultSelected);
             sidebarRootController.setOnLogout(() -> {
                 // Xóa user khỏi peer list
                 if (peer != null) {
@@ -95,8 +96,8 @@ public class MainController implements MessageListener {
 
         // Sau khi sidebar được init, load các group đã tham gia từ DB để hiển thị ngay
         // khi online
-        if (chatDb != null && sidebarRootController != null) {
-            List<org.example.peer_chat.GroupInfo> groups = chatDb.loadGroupsForUser(currentUser);
+        if (peer != null && sidebarRootController != null) {
+            List<org.example.peer_chat.GroupInfo> groups = peer.loadGroups();
             groupNameToId.clear();
             for (org.example.peer_chat.GroupInfo g : groups) {
                 groupNameToId.put(g.getName(), g.getId());
@@ -124,6 +125,23 @@ public class MainController implements MessageListener {
         }
     }
 
+    /**
+     * Mở cuộc trò chuyện chứa tin nhắn tìm được ở sidebar.
+     */
+    private void onSearchResultSelected(org.example.peer_chat.SearchResult result) {
+        if (!result.isGroup()) {
+            String other = currentUser.equals(result.getFromUser()) ? result.getToUser() : result.getFromUser();
+            onContactSelected(other);
+            return;
+        }
+        for (Map.Entry<String, String> e : groupNameToId.entrySet()) {
+            if (e.getValue().equals(result.getGroupId())) {
+                onGroupSelected(e.getKey());
+                return;
+            }
+        }
+    }
+
     /**
      * Được gọi khi người dùng chọn một group ở sidebar.
      */
@@ -243,7 +261,7 @@ public class MainController implements MessageListener {
         Platform.runLater(() -> {
             long startTs = callStartTimes.getOrDefault(peerName, System.currentTimeMillis());
             long duration = (System.currentTimeMillis() - startTs) / 1000; // giây
-            if (chatDb != null) {
+            if (peer != null) {
                 // success = true vì đây là cuộc gọi kết thúc bình thường
                 CallRecord record = new CallRecord(
                         currentUser,
@@ -253,7 +271,7 @@ public class MainController implements MessageListener {
                         true, // success
                         callIsVideo.getOrDefault(peerName, false) // voice/video
                 );
-                chatDb.insertCallRecord(record);
+                peer.recordCall(record);
             }
 
             callStartTimes.remove(peerName); // cleanup
@@ -274,7 +292,7 @@ public class MainController implements MessageListener {
         Platform.runLater(() -> {
             long startTs = callStartTimes.getOrDefault(peerName, System.currentTimeMillis());
 
-            if (chatDb != null) {
+            if (peer != null) {
                 CallRecord record = new CallRecord(
                         currentUser,
                         peerName,
@@ -282,7 +300,7 @@ public class MainController implements MessageListener {
                         0, // duration 0 giây vì bị từ chối
                         false, // success = false
                         callIsVideo.getOrDefault(peerName, false));
-                chatDb.insertCallRecord(record);
+                peer.recordCall(record);
             }
 
             callStartTimes.remove(peerName);
@@ -330,11 +348,7 @@ public class MainController implements MessageListener {
             alert.showAndWait().ifPresent(result -> {
                 if (peer == null)
                     return;
-                if (result == ButtonType.OK) {
-                    peer.sendToByName(owner, "GROUP_INVITE_ACCEPT|" + groupId + "|" + currentUser);
-                } else {
-                    peer.sendToByName(owner, "GROUP_INVITE_REJECT|" + groupId + "|" + currentUser);
-                }
+                peer.sendGroupInviteResponse(owner, groupId, result == ButtonType.OK);
             });
         });
     }
@@ -369,8 +383,8 @@ public class MainController implements MessageListener {
     @Override
     public void onGroupMemberLeft(String groupId, String member) {
         Platform.runLater(() -> {
-            if (chatDb != null) {
-                chatDb.insertGroupMessage(groupId, "SYSTEM", member + " đã rời nhóm");
+            if (peer != null) {
+                peer.recordGroupMessage(groupId, "SYSTEM", member + " đã rời nhóm");
             }
             if (member.equals(currentUser)) {
                 String oldName = null;
@@ -396,8 +410,8 @@ public class MainController implements MessageListener {
     @Override
     public void onGroupRenamed(String groupId, String newName) {
         Platform.runLater(() -> {
-            if (chatDb != null) {
-                chatDb.insertGroupMessage(groupId, "SYSTEM", "Tên nhóm đã đổi thành \"" + newName + "\"");
+            if (peer != null) {
+                peer.recordGroupMessage(groupId, "SYSTEM", "Tên nhóm đã đổi thành \"" + newName + "\"");
             }
             String oldName = null;
             for (Map.Entry<String, String> e : groupNameToId.entrySet()) {
@@ -425,9 +439,9 @@ public class MainController implements MessageListener {
     @Override
     public void onGroupMembersChanged(String groupId) {
         Platform.runLater(() -> {
-            if (chatDb == null)
+            if (peer == null)
                 return;
-            List<String> members = chatDb.getGroupMembers(groupId);
+            List<String> members = peer.getGroupMembers(groupId);
             if (!members.contains(currentUser)) {
                 String oldName = null;
                 for (Map.Entry<String, String> e : groupNameToId.entrySet()) {
@@ -444,7 +458,7 @@ public class MainController implements MessageListener {
                 }
                 return;
             }
-            chatDb.insertGroupMessage(groupId, "SYSTEM", "Danh sách thành viên nhóm đã được cập nhật");
+            peer.recordGroupMessage(groupId, "SYSTEM", "Danh sách thành viên nhóm đã được cập nhật");
             if (chatAreaRootController != null) {
                 chatAreaRootController.onGroupSystemMessage(groupId, "Danh sách thành viên nhóm đã được cập nhật");
             }
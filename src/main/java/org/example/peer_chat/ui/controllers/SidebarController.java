@@ -17,11 +17,16 @@ import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import org.example.peer_chat.ChatConfig;
 import org.example.peer_chat.ChatDb;
 import org.example.peer_chat.PeerHandle;
+import org.example.peer_chat.SearchResult;
+import org.example.peer_chat.Workers;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 public class SidebarController {
@@ -38,6 +43,10 @@ public class SidebarController {
     private ListView<String> groupsListView;
     @FXML
     private TextField searchField;
+    @FXML
+    private Label messageResultsTitle;
+    @FXML
+    private ListView<SearchResult> messageResultsView;
 
     private final ObservableList<String> allUsers = FXCollections.observableArrayList();
 
@@ -59,6 +68,9 @@ public class SidebarController {
     private Runnable onLogout;
     private Consumer<String> onContactSelected;
     private Consumer<String> onGroupSelected;
+    private Consumer<SearchResult> onSearchResultSelected;
+    // chỉ kết quả của lần gõ mới nhất được hiển thị
+    private final AtomicInteger searchSeq = new AtomicInteger();
     private final Map<String, HBox> userRows = new HashMap<>();
     private final Map<String, Boolean> userOnlineStatus = new HashMap<>();
 
@@ -104,7 +116,27 @@ public class SidebarController {
         searchField.textProperty().addListener((obs, oldVal, newVal) -> {
             String kw = newVal == null ? "" : newVal.toLowerCase();
             contactsListView.setItems(allUsers.filtered(u -> u.toLowerCase().contains(kw)));
+            searchMessages(newVal);
+        });
+        messageResultsView.setCellFactory(lv -> new ListCell<SearchResult>() {
+            @Override
+            protected void updateItem(SearchResult item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null) {
+                    setText(null);
+                } else {
+                    String where = item.isGroup() ? "[group] " : "";
+                    setText(where + item.getFromUser() + ": " + item.getSnippet());
+                }
+            }
+        });
+        messageResultsView.setOnMouseClicked(e -> {
+            SearchResult selected = messageResultsView.getSelectionModel().getSelectedItem();
+            if (selected != null && onSearchResultSelected != null) {
+                onSearchResultSelected.accept(selected);
+            }
         });
+        showMessageResults(List.of());
 
         // Nhóm: đơn giản hiển thị tên group dạng String, sẽ được MainController cập nhật
         if (groupsListView != null) {
@@ -116,6 +148,36 @@ public class SidebarController {
         this.peer = peer;
     }
 
+    /** Tìm trong lịch sử chat ở background; từ 2 ký tự trở lên. */
+    private void searchMessages(String text) {
+        int seq = searchSeq.incrementAndGet();
+        String query = text == null ? "" : text.trim();
+        if (peer == null || query.length() < 2) {
+            showMessageResults(List.of());
+            return;
+        }
+        Future<?> started = Workers.tryStart("message-search", () -> {
+            List<SearchResult> results = peer.searchHistory(query, ChatConfig.SEARCH_RESULTS);
+            Platform.runLater(() -> {
+                if (seq == searchSeq.get()) showMessageResults(results);
+            });
+        });
+        if (started == null) {
+            // pool đầy: không chạy query trên FX thread, lần gõ tiếp theo sẽ tìm lại
+            System.err.println("[Search] Too busy, skipped search for \"" + query + "\"");
+            showMessageResults(List.of());
+        }
+    }
+
+    private void showMessageResults(List<SearchResult> results) {
+        messageResultsView.getItems().setAll(results);
+        boolean show = !results.isEmpty();
+        messageResultsTitle.setVisible(show);
+        messageResultsTitle.setManaged(show);
+        messageResultsView.setVisible(show);
+        messageResultsView.setManaged(show);
+    }
+
     private void filterContacts(String keyword) {
         if (keyword == null) keyword = "";
         String lower = keyword.toLowerCase();
@@ -174,6 +236,11 @@ public class SidebarController {
         this.onGroupSelected = onGroupSelected;
     }
 
+    /** Called when the user clicks a message found by the sidebar search. */
+    public void setOnSearchResultSelected(Consumer<SearchResult> onSearchResultSelected) {
+        this.onSearchResultSelected = onSearchResultSelected;
+    }
+
     @FXML
     private void onSearchChanged() {
         String keyword = searchField.getText() == null ? "" : searchField.getText().toLowerCase();
@@ -0,0 +1,285 @@
+package org.example.peer_chat.ui.controllers;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import org.example.peer_chat.BlobStore;
+import org.example.peer_chat.ChatConfig;
+import org.example.peer_chat.Workers;
+
+/**
+ * Image previews for the chat list.
+ *
+ * A preview is decoded once per file content on a worker thread and saved as
+ * a small PNG under {@link ChatConfig#THUMB_DIR}, named by the content's
+ * SHA-256, so reopening a chat reads a few KB instead of the full picture.
+ * The directory is trimmed to {@link ChatConfig#THUMB_CACHE_BYTES}, oldest
+ * used first. Decoded previews are also kept in an in-memory LRU of
+ * {@link ChatConfig#THUMB_MEMORY_ENTRIES} images.
+ */
+final class ThumbnailService {
+
+    static final int SIZE = 200;
+
+    // tối đa số ảnh gốc được decode cùng lúc, tránh mở chat nhiều ảnh làm tràn heap
+    private static final int DECODERS = 2;
+    // ảnh gốc không nằm trong blob store (tên không phải hash) được nhớ hash tối đa bấy nhiêu file
+    private static final int HASHES_KEPT = 256;
+
+    private final Path dir;
+    private final long maxDiskBytes;
+    private final Map<String, Image> memory;
+    // path|size|mtime -> sha256; guarded by itself
+    private final Map<String, String> hashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HASHES_KEPT;
+        }
+    };
+    // path -> callbacks chờ cùng một preview (FX thread)
+    private final Map<String, List<Consumer<Image>>> pending = new HashMap<>();
+    private final Semaphore decoders = new Semaphore(DECODERS);
+    private long diskBytes = -1; // -1 = chưa đếm; guarded by this
+
+    ThumbnailService() {
+        this(Paths.get(ChatConfig.THUMB_DIR), ChatConfig.THUMB_CACHE_BYTES, ChatConfig.THUMB_MEMORY_ENTRIES);
+    }
+
+    ThumbnailService(Path dir, long maxDiskBytes, int memoryEntries) {
+        this.dir = dir;
+        this.maxDiskBytes = maxDiskBytes;
+        int limit = Math.max(1, memoryEntries);
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    /** The preview if it is already in memory, else null. No I/O. */
+    Image cached(String path) {
+        synchronized (memory) {
+            return memory.get(path);
+        }
+    }
+
+    /**
+     * Get the preview of {@code path} and pass it to {@code onReady} on the FX
+     * thread, or null if the file is not a readable image. Call on the FX thread.
+     */
+    void load(String path, Consumer<Image> onReady) {
+        Image hit = cached(path);
+        if (hit != null) {
+            onReady.accept(hit);
+            return;
+        }
+        List<Consumer<Image>> waiting = pending.get(path);
+        if (waiting != null) {
+            waiting.add(onReady);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(onReady);
+        pending.put(path, waiting);
+        Future<?> started = Workers.tryStart("thumbnail", () -> {
+            Image image = null;
+            try {
+                image = thumbnail(Paths.get(path));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[Thumbnail] " + path + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Image done = image;
+            if (done != null) {
+                synchronized (memory) {
+                    memory.put(path, done);
+                }
+            }
+            Platform.runLater(() -> {
+                for (Consumer<Image> callback : pending.remove(path)) {
+                    callback.accept(done);
+                }
+            });
+        });
+        if (started == null) {
+            // pool đầy: chưa có preview, lần hiển thị sau sẽ thử lại
+            System.err.println("[Thumbnail] Too busy, " + path + " not loaded");
+            pending.remove(path);
+        }
+    }
+
+    private Image thumbnail(Path file) throws IOException, InterruptedException {
+        if (!Files.isRegularFile(file))
+            return null;
+        String hash = contentHash(file);
+        Path thumb = dir.resolve(hash + ".png");
+        if (Files.isRegularFile(thumb)) {
+            // dùng lại preview trên đĩa; mtime là thời điểm dùng gần nhất cho việc dọn cache
+            Files.setLastModifiedTime(thumb, FileTime.fromMillis(System.currentTimeMillis()));
+            return load(thumb);
+        }
+
+        BufferedImage scaled;
+        decoders.acquire();
+        try {
+            scaled = decodeScaled(file);
+        } finally {
+            decoders.release();
+        }
+        if (scaled == null) {
+            // ImageIO không đọc được định dạng này (vd. webp): để JavaFX decode, không lưu đĩa
+            Image image = new Image(file.toUri().toString(), SIZE, SIZE, true, true);
+            return image.isError() ? null : image;
+        }
+
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, hash, ".tmp");
+        try {
+            ImageIO.write(scaled, "png", tmp.toFile());
+            try {
+                Files.move(tmp, thumb, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, thumb, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        added(Files.size(thumb));
+        return load(thumb);
+    }
+
+    private static Image load(Path thumb) {
+        Image image = new Image(thumb.toUri().toString());
+        return image.isError() ? null : image;
+    }
+
+    /** File trong BlobStore đã mang hash trong tên; file khác được hash một lần mỗi phiên bản. */
+    private String contentHash(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        if (BlobStore.isHash(stem))
+            return stem;
+        String key = file.toAbsolutePath() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis();
+        String hash;
+        synchronized (hashes) {
+            hash = hashes.get(key);
+        }
+        if (hash == null) {
+            hash = BlobStore.sha256(file);
+            synchronized (hashes) {
+                hashes.put(key, hash);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Decode {@code file} to at most SIZE x SIZE, keeping the aspect ratio.
+     * Large pictures are read with subsampling so the full-size bitmap never
+     * sits in memory. Returns null if no ImageIO reader handles the format.
+     */
+    private static BufferedImage decodeScaled(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            if (in == null)
+                return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // chỉ cần khoảng gấp đôi kích thước preview để thu nhỏ vẫn mịn
+                int step = Math.max(1, Math.max(w, h) / (SIZE * 2));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return scale(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage src) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        double k = Math.min(1.0, (double) SIZE / Math.max(w, h));
+        int tw = Math.max(1, (int) Math.round(w * k));
+        int th = Math.max(1, (int) Math.round(h * k));
+        BufferedImage out = new BufferedImage(tw, th, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, tw, th, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /** Count a new preview and trim the directory when it grows past the limit. */
+    private synchronized void added(long bytes) throws IOException {
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            for (Path p : list()) {
+                diskBytes += Files.size(p);
+            }
+        } else {
+            diskBytes += bytes;
+        }
+        if (diskBytes <= maxDiskBytes)
+            return;
+        List<Path> files = list();
+        files.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+        // xóa bớt xuống 90% để không phải dọn lại sau mỗi preview mới
+        long target = maxDiskBytes * 9 / 10;
+        for (Path p : files) {
+            if (diskBytes <= target)
+                break;
+            long size = Files.size(p);
+            if (Files.deleteIfExists(p))
+                diskBytes -= size;
+        }
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.png")) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private Path write(String name, byte[] content) throws IOException {
+        return Files.write(dir.resolve(name), content);
+    }
+
+    private long storedFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("blobs"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    void sameContentIsStoredOnce() throws IOException {
+        BlobStore store = new BlobStore(dir.resolve("blobs"));
+        byte[] content = "ảnh chụp màn hình".getBytes();
+        Path first = write("Photo.PNG", content);
+        Path second = write("copy of photo.jpg", content);
+        String hash = BlobStore.sha256(first);
+        assertEquals(hash, BlobStore.sha256(second));
+
+        File stored = store.put(first, hash, "Photo.PNG");
+        assertEquals(hash + ".png", stored.getName());
+        assertEquals(stored, store.find(hash));
+        assertFalse(Files.exists(first), "source is moved into the store");
+
+        // bản thứ hai cùng nội dung: giữ blob cũ, bỏ file tạm
+        File again = store.put(second, hash, "copy of photo.jpg");
+        assertEquals(stored, again);
+        assertFalse(Files.exists(second));
+        assertEquals(1, storedFiles());
+        assertArrayEquals(content, Files.readAllBytes(stored.toPath()));
+    }
+
+    @Test
+    void differentContentGetsItsOwnBlob() throws IOException {
+        BlobStore store = new BlobStore(dir.resolve("blobs"));
+        Path a = write("a.txt", "một".getBytes());
+        Path b = write("b.txt", "hai".getBytes());
+        File blobA = store.put(a, BlobStore.sha256(a), "a.txt");
+        File blobB = store.put(b, BlobStore.sha256(b), "b.txt");
+        assertNotEquals(blobA, blobB);
+        assertEquals(2, storedFiles());
+    }
+
+    @Test
+    void lookupsAndBadInput() throws IOException {
+        BlobStore store = new BlobStore(dir.resolve("blobs"));
+        Path f = write("script", "x".getBytes());
+        String hash = BlobStore.sha256(f);
+        assertTrue(BlobStore.isHash(hash));
+        assertNull(store.find(hash));
+        assertNull(store.find("../../etc/passwd"));
+        assertThrows(IllegalArgumentException.class, () -> store.put(f, "not-a-hash", "script"));
+
+        // đuôi lạ không được dùng làm tên file
+        File stored = store.put(f, hash, "evil.sh; rm -rf");
+        assertEquals(hash, stored.getName());
+        assertEquals(stored, store.find(hash));
+    }
+}
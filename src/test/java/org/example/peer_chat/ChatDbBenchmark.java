@@ -0,0 +1,106 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Inserts and reads per second of {@link ChatDb} against the way it worked
+ * before the connection pool: a new DriverManager connection per call, in
+ * the default rollback-journal mode, one autocommit transaction per insert.
+ * Not part of the normal test run (surefire only picks up *Test classes):
+ *
+ * <pre>mvn test -Dtest=ChatDbBenchmark -Dbench.inserts=20000</pre>
+ */
+class ChatDbBenchmark {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void insertsAndReads() throws Exception {
+        int inserts = Integer.getInteger("bench.inserts", 20_000);
+        int reads = 2_000;
+
+        String oldUrl = "jdbc:sqlite:" + dir.resolve("old.db");
+        try (Connection c = DriverManager.getConnection(oldUrl); Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE messages (id INTEGER PRIMARY KEY AUTOINCREMENT, from_user TEXT, to_user TEXT, "
+                    + "content TEXT, is_file INTEGER, file_path TEXT, ts INTEGER)");
+            s.execute("CREATE TABLE group_members (group_id TEXT NOT NULL, member_name TEXT NOT NULL, "
+                    + "PRIMARY KEY (group_id, member_name))");
+            s.execute("INSERT INTO group_members VALUES ('g1', 'alice'), ('g1', 'bob'), ('g1', 'carol')");
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < inserts; i++) {
+            try (Connection c = DriverManager.getConnection(oldUrl);
+                 PreparedStatement p = c.prepareStatement("INSERT INTO messages (from_user,to_user,content,is_file,"
+                         + "file_path,ts) VALUES (?,?,?,?,?,?)")) {
+                p.setString(1, "alice");
+                p.setString(2, "bob");
+                p.setString(3, "tin nhắn số " + i);
+                p.setInt(4, 0);
+                p.setString(5, null);
+                p.setLong(6, i);
+                p.executeUpdate();
+            }
+        }
+        double oldInserts = perSecond(inserts, System.nanoTime() - t0);
+        t0 = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            assertEquals(3, oldGroupMembers(oldUrl, "g1").size());
+        }
+        double oldReads = perSecond(reads, System.nanoTime() - t0);
+
+        ChatDb db = new ChatDb(dir.resolve("new.db").toString());
+        try {
+            db.insertGroupMembers("g1", List.of("alice", "bob", "carol"));
+            t0 = System.nanoTime();
+            for (int i = 0; i < inserts; i++) {
+                Message m = new Message("alice", "bob", "tin nhắn số " + i, false, null);
+                m.setTimestamp(i);
+                db.insertMessage(m);
+            }
+            db.flush(); // tính cả thời gian commit
+            double newInserts = perSecond(inserts, System.nanoTime() - t0);
+            t0 = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                assertEquals(3, db.getGroupMembers("g1").size());
+            }
+            double newReads = perSecond(reads, System.nanoTime() - t0);
+
+            System.out.printf("[Bench] insertMessage     connection per call %9.0f/s   pooled + WAL %9.0f/s%n",
+                    oldInserts, newInserts);
+            System.out.printf("[Bench] getGroupMembers   connection per call %9.0f/s   pooled + WAL %9.0f/s%n",
+                    oldReads, newReads);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static List<String> oldGroupMembers(String url, String groupId) throws SQLException {
+        List<String> out = new ArrayList<>();
+        try (Connection c = DriverManager.getConnection(url);
+             PreparedStatement p = c.prepareStatement("SELECT member_name FROM group_members WHERE group_id=?")) {
+            p.setString(1, groupId);
+            try (ResultSet rs = p.executeQuery()) {
+                while (rs.next()) out.add(rs.getString(1));
+            }
+        }
+        return out;
+    }
+
+    private static double perSecond(int ops, long nanos) {
+        return ops / (nanos / 1e9);
+    }
+}
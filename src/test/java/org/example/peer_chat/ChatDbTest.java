@@ -0,0 +1,156 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatDbTest {
+
+    @TempDir
+    Path dir;
+
+    private String dbPath;
+    private ChatDb db;
+
+    @BeforeEach
+    void open() {
+        dbPath = dir.resolve("chat.db").toString();
+    }
+
+    @AfterEach
+    void close() {
+        if (db != null) db.close();
+    }
+
+    @Test
+    void migrationsReachCurrentSchema() throws SQLException {
+        db = new ChatDb(dbPath);
+        try (Connection c = connect(); Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA user_version")) {
+            assertTrue(rs.next());
+            assertEquals(3, rs.getInt(1));
+        }
+    }
+
+    @Test
+    void timelineQueriesUseKeyIndexes() throws SQLException {
+        db = new ChatDb(dbPath);
+
+        List<String> conversation = plan(ChatDb.CONVERSATION_TIMELINE);
+        assertUsesIndex(conversation, "messages", "idx_messages_conv_ts");
+        assertUsesIndex(conversation, "call_history", "idx_calls_conv_ts");
+        // hai nhánh đã sắp xếp theo ts nhờ index được trộn; chỉ các dòng cùng ts được sắp lại theo (src, id)
+        assertNoFullSort(conversation);
+
+        List<String> group = plan(ChatDb.GROUP_TIMELINE);
+        assertUsesIndex(group, "group_messages", "idx_group_messages_group_ts");
+        assertUsesIndex(group, "group_files", "idx_group_files_group_ts");
+        assertNoFullSort(group);
+    }
+
+    @Test
+    void legacyRowsGetConversationKey() throws SQLException {
+        // database từ trước migration 2: chưa có conv_key
+        try (Connection c = connect(); Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE messages (id INTEGER PRIMARY KEY AUTOINCREMENT, from_user TEXT, to_user TEXT, "
+                    + "content TEXT, is_file INTEGER, file_path TEXT, ts INTEGER)");
+            s.execute("INSERT INTO messages (from_user, to_user, content, is_file, ts) VALUES "
+                    + "('alice', 'bob', 'one', 0, 1), ('bob', 'alice', 'two', 0, 2), ('alice', 'carol', 'x', 0, 3)");
+        }
+        db = new ChatDb(dbPath);
+
+        List<ChatItem> loaded = new ArrayList<>();
+        db.streamConversationTimeline("bob", "alice", null, 10, loaded::add);
+        assertEquals(2, loaded.size());
+        assertEquals("two", ((Message) loaded.get(0)).getContent());
+        assertEquals("one", ((Message) loaded.get(1)).getContent());
+    }
+
+    @Test
+    void newMessagesAreSearchableThroughTrigger() {
+        db = new ChatDb(dbPath);
+        db.insertMessage(new Message("alice", "bob", "hẹn gặp ở quán cà phê nhé", false, null));
+        db.insertMessage(new Message("alice", "carol", "cà phê không?", false, null));
+        db.insertMessage(new Message("bob", "alice", "photo.png", true, "/tmp/photo.png"));
+        db.insertGroup("g1", "team", "alice");
+        db.insertGroupMembers("g1", List.of("alice", "bob"));
+        db.insertGroupMessage("g1", "alice", "họp lúc 3 giờ, mang cà phê");
+        db.insertGroupMessage("g2", "carol", "cà phê nhóm khác");
+
+        List<SearchResult> hits = db.search("bob", "ca phe", 10);
+        assertEquals(2, hits.size(), "bob sees his 1:1 message and his group's, not carol's: " + hits);
+        assertTrue(hits.stream().anyMatch(r -> !r.isGroup() && r.getSnippet().contains("[cà]")));
+        assertTrue(hits.stream().anyMatch(r -> "g1".equals(r.getGroupId())));
+
+        // từ cuối khớp theo tiền tố; file không được index
+        assertEquals(1, db.search("bob", "quá", 10).size());
+        assertTrue(db.search("bob", "photo", 10).isEmpty());
+        assertTrue(db.search("bob", "   ", 10).isEmpty());
+    }
+
+    @Test
+    void historyBeforeSearchIndexIsBackfilled() throws Exception {
+        // database từ trước migration 3: có lịch sử nhưng chưa có index FTS
+        try (Connection c = connect(); Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE messages (id INTEGER PRIMARY KEY AUTOINCREMENT, from_user TEXT, to_user TEXT, "
+                    + "content TEXT, is_file INTEGER, file_path TEXT, ts INTEGER)");
+            for (int i = 0; i < 50; i++) {
+                s.execute("INSERT INTO messages (from_user, to_user, content, is_file, ts) VALUES "
+                        + "('alice', 'bob', 'tin cũ số " + i + "', 0, " + i + ")");
+            }
+        }
+        db = new ChatDb(dbPath);
+        db.insertMessage(new Message("bob", "alice", "tin mới", false, null));
+
+        // index dần ở background
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<SearchResult> hits = db.search("alice", "tin", 100);
+        while (hits.size() < 51 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            hits = db.search("alice", "tin", 100);
+        }
+        assertEquals(51, hits.size());
+        assertEquals(50, db.search("alice", "cũ", 100).size());
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    }
+
+    /** Detail lines of EXPLAIN QUERY PLAN; unbound parameters are planned as NULL. */
+    private List<String> plan(String sql) throws SQLException {
+        List<String> out = new ArrayList<>();
+        try (Connection c = connect(); PreparedStatement p = c.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+             ResultSet rs = p.executeQuery()) {
+            while (rs.next()) {
+                out.add(rs.getString(rs.getMetaData().getColumnCount()));
+            }
+        }
+        return out;
+    }
+
+    private static void assertUsesIndex(List<String> plan, String table, String index) {
+        assertTrue(plan.stream().anyMatch(line -> line.startsWith("SEARCH " + table + " USING INDEX " + index)),
+                table + " should be searched with " + index + ": " + plan);
+    }
+
+    private static void assertNoFullSort(List<String> plan) {
+        assertFalse(plan.stream().anyMatch(line -> line.equals("USE TEMP B-TREE FOR ORDER BY")),
+                "unexpected full sort: " + plan);
+    }
+}
@@ -0,0 +1,72 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ConversationCacheTest {
+
+    private static Message message(String content) {
+        return new Message("alice", "bob", content, false, null);
+    }
+
+    private static List<ChatItem> newestFirst(String... contents) {
+        List<ChatItem> out = new ArrayList<>();
+        for (String c : contents) out.add(message(c));
+        return out;
+    }
+
+    @Test
+    void appendsKeepTheNewestItems() {
+        ConversationCache cache = new ConversationCache(2, 100);
+        cache.put("a", newestFirst("2", "1"), true, cache.version("a"));
+        cache.append("a", message("3"));
+
+        ConversationCache.Page page = cache.get("a");
+        assertNotNull(page);
+        assertEquals(List.of("2", "3"), page.items().stream().map(i -> ((Message) i).getContent()).toList());
+        assertFalse(page.complete());
+    }
+
+    @Test
+    void putIsIgnoredAfterAnAppend() {
+        ConversationCache cache = new ConversationCache(10, 100);
+        long token = cache.version("a");
+        cache.append("a", message("new")); // chưa cache: chỉ đổi version
+        cache.put("a", newestFirst("old"), true, token);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void putIsIgnoredWhenTheVersionWasForgotten() {
+        ConversationCache cache = new ConversationCache(10, 100);
+        long token = cache.version("a");
+        cache.append("a", message("new"));
+        // đủ conversation khác để version của "a" bị bỏ khỏi bộ nhớ
+        for (int i = 0; i < 5_000; i++) {
+            cache.append("other-" + i, message("x"));
+        }
+        cache.put("a", newestFirst("old"), true, token);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void evictedConversationIsReadAgain() {
+        ConversationCache cache = new ConversationCache(2, 4);
+        cache.put("a", newestFirst("2", "1"), true, cache.version("a"));
+        cache.append("a", message("3"));
+        cache.put("b", newestFirst("2", "1"), true, cache.version("b"));
+        cache.put("c", newestFirst("2", "1"), true, cache.version("c")); // "a" là LRU, bị bỏ
+        assertNull(cache.get("a"));
+
+        long token = cache.version("a");
+        cache.put("a", newestFirst("3", "2"), false, token);
+        assertNotNull(cache.get("a"));
+    }
+}
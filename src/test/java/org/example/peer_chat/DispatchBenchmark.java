@@ -0,0 +1,94 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Per-message dispatch cost: the old text protocol, where PeerHandle tried
+ * each "TYPE|" prefix in turn and split the line on '|', against a binary
+ * frame decoded with {@link FrameCodec} and resolved by one array lookup as
+ * in {@link PeerHandle#registerHandler(int, PeerHandle.FrameHandler)}.
+ * Not part of the normal test run (surefire only picks up *Test classes):
+ *
+ * <pre>mvn test -Dtest=DispatchBenchmark</pre>
+ */
+class DispatchBenchmark {
+
+    // thứ tự kiểm tra của PeerHandle.onIncomingMessage trước khi có opcode; chat thường đi qua hết
+    private static final String[] OLD_PREFIXES = {
+            "SYSTEM|OFFLINE|", "GROUP_MSG|", "GROUP_FILE|", "GROUP_LEAVE|", "GROUP_RENAME|", "GROUP_ADD_MEMBER|",
+            "GROUP_REMOVE_MEMBER|", "CALL_REQUEST|", "CALL_REQUEST_VIDEO|", "CALL_ACCEPT|", "CALL_ACCEPT_VIDEO|",
+            "CALL_END|", "CALL_REJECT|", "CALL_VIDEO_ON|", "CALL_VIDEO_OFF|", "GROUP_INVITE|", "GROUP_INVITE_ACCEPT|",
+            "GROUP_INVITE_REJECT|", "GROUP_CREATE|"};
+
+    private static final int MESSAGES = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    interface Handler {
+        int handle(Frame frame);
+    }
+
+    @Test
+    void dispatchCost() {
+        String[] oldMessages = {
+                "hẹn gặp lúc 3 giờ nhé",
+                "GROUP_MSG|g-42|alice|hẹn gặp lúc 3 giờ nhé",
+                "CALL_END|alice",
+                "GROUP_CREATE|g-42|team|alice,bob,carol"};
+        byte[][] frames = {
+                FrameCodec.writer(Opcode.CHAT_TEXT, "alice").string("hẹn gặp lúc 3 giờ nhé").toByteArray(),
+                FrameCodec.writer(Opcode.GROUP_MSG, "alice").string("g-42").string("hẹn gặp lúc 3 giờ nhé")
+                        .toByteArray(),
+                FrameCodec.writer(Opcode.CALL_END, "alice").toByteArray(),
+                FrameCodec.writer(Opcode.GROUP_CREATE, "alice").string("g-42").string("team")
+                        .strings(List.of("alice", "bob", "carol")).toByteArray()};
+        String[] labels = {"chat text", "GROUP_MSG", "CALL_END", "GROUP_CREATE"};
+
+        // handler đọc các field như handler thật của PeerHandle
+        Handler[] handlers = new Handler[256];
+        handlers[Opcode.CHAT_TEXT.code()] = f -> f.string().length();
+        handlers[Opcode.GROUP_MSG.code()] = f -> f.string().length() + f.string().length();
+        handlers[Opcode.CALL_END.code()] = f -> f.sender().length();
+        handlers[Opcode.GROUP_CREATE.code()] = f -> f.string().length() + f.string().length() + f.strings().size();
+
+        for (int m = 0; m < labels.length; m++) {
+            String line = oldMessages[m];
+            byte[] wire = line.getBytes(StandardCharsets.UTF_8);
+            byte[] frame = frames[m];
+            long before = Long.MAX_VALUE;
+            long after = Long.MAX_VALUE;
+            long sink = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < MESSAGES; i++) {
+                    sink += dispatchOld(new String(wire, StandardCharsets.UTF_8));
+                }
+                before = Math.min(before, System.nanoTime() - t0);
+
+                t0 = System.nanoTime();
+                for (int i = 0; i < MESSAGES; i++) {
+                    Frame f = FrameCodec.decode(frame);
+                    sink += handlers[f.code()].handle(f);
+                }
+                after = Math.min(after, System.nanoTime() - t0);
+            }
+            assertTrue(sink != 0);
+            System.out.printf("[Bench] %-13s prefix chain %6.1f ns/msg   opcode table %6.1f ns/msg%n", labels[m],
+                    (double) before / MESSAGES, (double) after / MESSAGES);
+        }
+    }
+
+    /** The old path: find the type by prefix, then split the fields. */
+    private static int dispatchOld(String message) {
+        for (int i = 0; i < OLD_PREFIXES.length; i++) {
+            if (message.startsWith(OLD_PREFIXES[i])) {
+                return i + message.split("\\|").length;
+            }
+        }
+        return message.length(); // chat thường
+    }
+}
@@ -0,0 +1,95 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameCodecTest {
+
+    @Test
+    void fieldsRoundTrip() {
+        byte[] payload = {0, 1, (byte) 0xFF, 42};
+        byte[] body = FrameCodec.writer(Opcode.GROUP_CREATE, "Đông")
+                .string("g-42")
+                .string(null)
+                .strings(List.of("alice", "bob", "chị Hà"))
+                .bytes(payload, 1, 2)
+                .varint(300)
+                .toByteArray();
+
+        Frame f = FrameCodec.decode(body);
+        assertEquals(Opcode.GROUP_CREATE, f.opcode());
+        assertEquals("Đông", f.sender());
+        assertEquals("g-42", f.string());
+        assertEquals("", f.string());
+        assertEquals(List.of("alice", "bob", "chị Hà"), f.strings());
+        assertArrayEquals(new byte[]{1, (byte) 0xFF}, f.bytes());
+        assertEquals(300, f.varint());
+        assertThrows(IllegalArgumentException.class, f::varint, "read past the end");
+    }
+
+    @Test
+    void varintsAtTheirLimits() {
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Integer.MAX_VALUE + 1L,
+                Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        int[] lengths = {1, 1, 1, 2, 2, 3, 5, 5, 9, 9};
+        int header = FrameCodec.writer(Opcode.CHAT_TEXT, "a").toByteArray().length;
+        for (int i = 0; i < values.length; i++) {
+            byte[] body = FrameCodec.writer(Opcode.CHAT_TEXT, "a").varint(values[i]).toByteArray();
+            assertEquals(lengths[i], body.length - header, "encoded length of " + values[i]);
+            assertEquals(values[i], FrameCodec.decode(body).varint());
+        }
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.writer(Opcode.CHAT_TEXT, "a").varint(-1));
+
+        byte[] intMax = FrameCodec.writer(Opcode.CHAT_TEXT, "a").varint(Integer.MAX_VALUE).toByteArray();
+        assertEquals(Integer.MAX_VALUE, FrameCodec.decode(intMax).varintInt());
+        byte[] overInt = FrameCodec.writer(Opcode.CHAT_TEXT, "a").varint(Integer.MAX_VALUE + 1L).toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(overInt).varintInt());
+    }
+
+    @Test
+    void overlongVarintIsRejected() {
+        byte[] header = FrameCodec.writer(Opcode.CHAT_TEXT, "a").toByteArray();
+        // 10 byte: giá trị vượt quá Long.MAX_VALUE
+        byte[] tooLong = Arrays.copyOf(header, header.length + 10);
+        Arrays.fill(tooLong, header.length, tooLong.length - 1, (byte) 0xFF);
+        tooLong[tooLong.length - 1] = 1;
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(tooLong).varint());
+
+        byte[] unterminated = Arrays.copyOf(header, header.length + 2);
+        unterminated[header.length] = (byte) 0x80;
+        unterminated[header.length + 1] = (byte) 0x80;
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(unterminated).varint());
+    }
+
+    @Test
+    void malformedHeadersAndFields() {
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(new byte[]{1}));
+        byte[] body = FrameCodec.writer(Opcode.CHAT_TEXT, "alice").string("hi").toByteArray();
+        byte[] otherVersion = body.clone();
+        otherVersion[0] = (byte) (FrameCodec.VERSION + 1);
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(otherVersion));
+        // độ dài string lớn hơn phần còn lại của frame
+        byte[] truncated = Arrays.copyOf(body, body.length - 1);
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(truncated).string());
+        byte[] truncatedSender = Arrays.copyOf(body, 4);
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(truncatedSender));
+    }
+
+    @Test
+    void unknownCodeIsKept() {
+        byte[] body = FrameCodec.writer(FrameCodec.FIRST_CUSTOM_CODE + 5, "bob").string("x").toByteArray();
+        Frame f = FrameCodec.decode(body);
+        assertNull(f.opcode());
+        assertEquals(FrameCodec.FIRST_CUSTOM_CODE + 5, f.code());
+        assertEquals("bob", f.sender());
+        assertEquals("x", f.string());
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.writer(256, "bob"));
+    }
+}
@@ -0,0 +1,236 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InboundSessionTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<Frame> messages = new ArrayList<>();
+    private final List<Frame> replies = new ArrayList<>();
+    private final List<String> received = new ArrayList<>();
+    private InboundSession session;
+
+    @BeforeEach
+    void open() {
+        session = newSession();
+    }
+
+    /**
+     * A connection to a freshly started receiver: unfinished transfers are
+     * only known from their .part and .state files in the transfer directory.
+     */
+    private InboundSession newSession() {
+        IncomingTransfers transfers = new IncomingTransfers(dir.resolve("transfers"), new BlobStore(dir.resolve("blobs")));
+        // như transport blocking: việc file chạy ngay trên thread đọc
+        return new InboundSession("bob", messages::add,
+                (sender, groupId, filename, hash, absPath, size) -> received.add(absPath), transfers,
+                reply -> replies.add(FrameCodec.decode(reply)), (task, bufferedBytes) -> task.run());
+    }
+
+    /**
+     * Feed what a transport reads from the socket, in order: a frame body, or
+     * raw chunk bytes while the session expects them.
+     */
+    private void receive(byte[]... wire) throws Exception {
+        for (byte[] b : wire) {
+            if (session.rawRemaining() > 0) {
+                session.onRaw(ByteBuffer.wrap(b));
+            } else {
+                session.onFrame(b);
+            }
+        }
+    }
+
+    private static byte[] offer(String id, long size, int chunkSize) {
+        return FrameCodec.writer(Opcode.FILE_OFFER, "alice").string(id).string("").string("a.bin").varint(size)
+                .varint(chunkSize).toByteArray();
+    }
+
+    private static byte[] chunk(String id, long index, long crc) {
+        return FrameCodec.writer(Opcode.FILE_CHUNK, "alice").string(id).varint(index).varint(crc).toByteArray();
+    }
+
+    private static byte[] end(String id) {
+        return FrameCodec.writer(Opcode.FILE_END, "alice").string(id).toByteArray();
+    }
+
+    private static long crc(byte[] content, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(content, off, len);
+        return crc.getValue();
+    }
+
+    /** {@code body} cut into FRAGMENT frames of {@code piece} data bytes, as OutboundFrame sends it. */
+    private static byte[][] fragments(byte[] body, int piece) {
+        int n = (body.length + piece - 1) / piece;
+        byte[][] out = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            int off = i * piece;
+            out[i] = FrameCodec.writer(Opcode.FRAGMENT, "alice").varint(body.length).varint(off)
+                    .bytes(body, off, Math.min(piece, body.length - off)).toByteArray();
+        }
+        return out;
+    }
+
+    private static byte[] chat(String text) {
+        return FrameCodec.writer(Opcode.CHAT_TEXT, "alice").string(text).toByteArray();
+    }
+
+    private String hashOf(byte[] content) throws IOException {
+        Path f = Files.write(dir.resolve("content-" + content.length), content);
+        return BlobStore.sha256(f);
+    }
+
+    @Test
+    void badChunkIndexClosesInsteadOfReadingRawBytesAsFrames() throws Exception {
+        byte[] content = "0123456789".getBytes();
+        String id = hashOf(content);
+        receive(offer(id, content.length, 4));
+        assertEquals(Opcode.FILE_HAVE, replies.get(0).opcode());
+
+        // byte thô của chunk trông như một frame chat hợp lệ
+        byte[] raw = FrameCodec.writer(Opcode.CHAT_TEXT, "mallory").string("not a frame").toByteArray();
+        IOException e = assertThrows(IOException.class, () -> receive(chunk(id, 7, 0), raw));
+        assertTrue(e.getMessage().contains("FILE_CHUNK"), e.getMessage());
+        assertTrue(messages.isEmpty(), "raw chunk bytes were decoded as a frame");
+    }
+
+    @Test
+    void truncatedChunkHeaderCloses() throws Exception {
+        byte[] content = "0123456789".getBytes();
+        String id = hashOf(content);
+        receive(offer(id, content.length, 4));
+        byte[] truncated = FrameCodec.writer(Opcode.FILE_CHUNK, "alice").string(id).toByteArray();
+        assertThrows(IOException.class, () -> receive(truncated));
+    }
+
+    @Test
+    void malformedOfferAndEndClose() {
+        byte[] offer = FrameCodec.writer(Opcode.FILE_OFFER, "alice").string("x").toByteArray();
+        assertThrows(IOException.class, () -> receive(offer));
+        byte[] end = FrameCodec.writer(Opcode.FILE_END, "alice").toByteArray();
+        assertThrows(IOException.class, () -> receive(end));
+    }
+
+    @Test
+    void offerAfterRestartResumesFromStateFile() throws Exception {
+        byte[] content = "0123456789".getBytes();
+        String id = hashOf(content);
+        receive(offer(id, content.length, 4),
+                chunk(id, 0, crc(content, 0, 4)), Arrays.copyOfRange(content, 0, 4),
+                chunk(id, 1, crc(content, 4, 4)), Arrays.copyOfRange(content, 4, 8));
+        session.close(); // kết nối đứt trước chunk cuối
+
+        replies.clear();
+        session = newSession();
+        receive(offer(id, content.length, 4));
+        Frame have = replies.get(0);
+        assertEquals(Opcode.FILE_HAVE, have.opcode());
+        assertEquals(id, have.string());
+        assertEquals(BitSet.valueOf(new long[]{0b011}), BitSet.valueOf(have.bytes()));
+
+        receive(chunk(id, 2, crc(content, 8, 2)), Arrays.copyOfRange(content, 8, 10), end(id));
+        assertEquals(Opcode.FILE_DONE, replies.get(1).opcode());
+        assertEquals(1, received.size());
+        assertArrayEquals(content, Files.readAllBytes(Path.of(received.get(0))));
+    }
+
+    @Test
+    void chunkWithBadChecksumIsAskedForAgain() throws Exception {
+        byte[] content = "0123456789".getBytes();
+        String id = hashOf(content);
+        receive(offer(id, content.length, 4),
+                chunk(id, 0, crc(content, 0, 4)), Arrays.copyOfRange(content, 0, 4),
+                chunk(id, 1, crc(content, 4, 4) ^ 1), Arrays.copyOfRange(content, 4, 8),
+                chunk(id, 2, crc(content, 8, 2)), Arrays.copyOfRange(content, 8, 10),
+                end(id));
+        Frame have = replies.get(1);
+        assertEquals(Opcode.FILE_HAVE, have.opcode());
+        assertEquals(id, have.string());
+        assertEquals(BitSet.valueOf(new long[]{0b101}), BitSet.valueOf(have.bytes()));
+        assertTrue(received.isEmpty());
+
+        // sender chỉ gửi lại chunk còn thiếu
+        receive(chunk(id, 1, crc(content, 4, 4)), Arrays.copyOfRange(content, 4, 8), end(id));
+        assertEquals(Opcode.FILE_DONE, replies.get(2).opcode());
+        assertEquals(1, received.size());
+        assertArrayEquals(content, Files.readAllBytes(Path.of(received.get(0))));
+    }
+
+    @Test
+    void oversizedOfferIsRejected() throws Exception {
+        String id = hashOf("x".getBytes());
+        receive(offer(id, ChatConfig.MAX_FILE_BYTES + 1, 1024 * 1024));
+        assertEquals(Opcode.FILE_REJECT, replies.get(0).opcode());
+        assertTrue(Files.notExists(dir.resolve("transfers").resolve(id + ".part")));
+        // số chunk của kích thước gần Long.MAX_VALUE không được tràn thành số âm
+        assertThrows(IllegalArgumentException.class, () -> FileChunks.count(Long.MAX_VALUE, 64 * 1024 * 1024));
+    }
+
+    @Test
+    void fragmentsAreReassembled() throws Exception {
+        String text = "xin chào ".repeat(100_000); // lớn hơn MAX_FRAME_BYTES
+        receive(fragments(chat(text), ChatConfig.MAX_FRAME_BYTES / 2));
+        receive(chat("sau"));
+        assertEquals(2, messages.size());
+        assertEquals(text, messages.get(0).string());
+        assertEquals("sau", messages.get(1).string());
+    }
+
+    @Test
+    void messageOverTheLimitIsDroppedAndNextOneKept() throws Exception {
+        // chỉ header khai báo tổng quá giới hạn; không cần gửi hết 16 MB
+        byte[] first = FrameCodec.writer(Opcode.FRAGMENT, "alice").varint(ChatConfig.MAX_MESSAGE_BYTES + 1L)
+                .varint(0).bytes(new byte[1000], 0, 1000).toByteArray();
+        byte[] second = FrameCodec.writer(Opcode.FRAGMENT, "alice").varint(ChatConfig.MAX_MESSAGE_BYTES + 1L)
+                .varint(1000).bytes(new byte[1000], 0, 1000).toByteArray();
+        receive(first, second);
+        assertTrue(messages.isEmpty());
+
+        receive(fragments(chat("vẫn nhận được"), 4));
+        assertEquals(1, messages.size());
+        assertEquals("vẫn nhận được", messages.get(0).string());
+    }
+
+    @Test
+    void outOfOrderFragmentIsDropped() throws Exception {
+        byte[][] pieces = fragments(chat("một hai ba"), 4);
+        receive(pieces[0], pieces[2]);
+        // phần còn lại của message hỏng không được ghép thành message
+        receive(Arrays.copyOfRange(pieces, 3, pieces.length));
+        assertTrue(messages.isEmpty());
+
+        receive(fragments(chat("bốn"), 4));
+        assertEquals(1, messages.size());
+        assertEquals("bốn", messages.get(0).string());
+    }
+
+    @Test
+    void malformedChatFrameIsPassedOnAndConnectionKept() throws Exception {
+        // độ dài frame đã biết: handler của PeerHandle tự bỏ qua field thiếu
+        byte[] shortChat = FrameCodec.writer(Opcode.CHAT_TEXT, "alice").toByteArray();
+        byte[] chat = FrameCodec.writer(Opcode.CHAT_TEXT, "alice").string("hi").toByteArray();
+        receive(shortChat, chat);
+        assertEquals(2, messages.size());
+        assertEquals("hi", messages.get(1).string());
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Query latency of {@link ChatDb#search} over a large synthetic history.
+ * Not part of the normal test run (surefire only picks up *Test classes):
+ *
+ * <pre>mvn test -Dtest=SearchBenchmark -Dbench.messages=1000000</pre>
+ */
+class SearchBenchmark {
+
+    private static final String[] WORDS = ("hẹn gặp quán cà phê họp nhóm báo cáo tuần này file ảnh video gửi lại "
+            + "deadline thứ hai sáng chiều tối mai nay ok cảm ơn nhé bạn dự án release build test lỗi sửa xong")
+            .split(" ");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void searchLatency() throws Exception {
+        int messages = Integer.getInteger("bench.messages", 1_000_000);
+        String dbPath = dir.resolve("bench.db").toString();
+        new ChatDb(dbPath).close(); // tạo schema và index FTS
+
+        // ghi thẳng bằng JDBC trong vài transaction lớn; trigger vẫn index từng dòng
+        Random random = new Random(42);
+        String[] users = {"alice", "bob", "carol", "dave", "erin"};
+        long t0 = System.nanoTime();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+            c.setAutoCommit(false);
+            PreparedStatement p = c.prepareStatement("INSERT INTO messages (from_user, to_user, content, is_file, ts, "
+                    + "conv_key) VALUES (?, ?, ?, 0, ?, ?)");
+            for (int i = 0; i < messages; i++) {
+                String from = users[random.nextInt(users.length)];
+                String to = users[(Arrays.asList(users).indexOf(from) + 1 + random.nextInt(users.length - 1))
+                        % users.length];
+                StringBuilder text = new StringBuilder();
+                for (int w = 3 + random.nextInt(10); w > 0; w--) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                p.setString(1, from);
+                p.setString(2, to);
+                p.setString(3, text.toString().trim());
+                p.setLong(4, i);
+                p.setString(5, ChatDb.convKey(from, to));
+                p.addBatch();
+                if (i % 10_000 == 9_999) {
+                    p.executeBatch();
+                    c.commit();
+                }
+            }
+            p.executeBatch();
+            c.commit();
+        }
+        System.out.printf("[Bench] inserted and indexed %,d messages in %.1f s%n", messages,
+                (System.nanoTime() - t0) / 1e9);
+
+        ChatDb db = new ChatDb(dbPath);
+        try {
+            String[] queries = {"deadline", "cà phê", "họp nhóm báo", "rel", "release build lỗi sửa"};
+            for (String q : queries) {
+                for (int i = 0; i < 5; i++) db.search("alice", q, 20); // warm-up
+                int runs = 50;
+                long[] nanos = new long[runs];
+                int hits = 0;
+                for (int i = 0; i < runs; i++) {
+                    long s = System.nanoTime();
+                    hits = db.search("alice", q, 20).size();
+                    nanos[i] = System.nanoTime() - s;
+                }
+                Arrays.sort(nanos);
+                assertFalse(hits == 0, q);
+                System.out.printf("[Bench] search %-24s p50 %6.2f ms  p95 %6.2f ms  (%d hits)%n", '"' + q + '"',
+                        nanos[runs / 2] / 1e6, nanos[runs * 95 / 100] / 1e6, hits);
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
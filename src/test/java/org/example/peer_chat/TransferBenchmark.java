@@ -0,0 +1,176 @@
+package org.example.peer_chat;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Loopback throughput of a file send: the old 4 KB byte[] stream loop, the
+ * FileChannel.transferTo / transferFrom pair, and the full
+ * {@link MessageHandler#sendFile} path (chunk CRCs, resume state, blob store).
+ * Not part of the normal test run (surefire only picks up *Test classes):
+ *
+ * <pre>mvn test -Dtest=TransferBenchmark -Dbench.fileMb=256</pre>
+ */
+class TransferBenchmark {
+
+    private static final Path DIR;
+
+    static {
+        try {
+            DIR = Files.createTempDirectory("transfer-bench");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // MessageHandler ghi file nhận được vào dataDir/transferDir, giữ chúng ngoài thư mục project
+        System.setProperty("peerchat.dataDir", DIR.resolve("data").toString());
+        System.setProperty("peerchat.transferDir", DIR.resolve("transfers").toString());
+    }
+
+    private static final int ROUNDS = 3;
+
+    @AfterAll
+    static void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(DIR)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void throughput() throws Exception {
+        assertEquals(DIR.resolve("data").toString(), ChatConfig.DATA_DIR, "run this benchmark on its own");
+        long size = Long.getLong("bench.fileMb", 256) << 20;
+        File source = DIR.resolve("source.bin").toFile();
+        try (OutputStream out = new FileOutputStream(source)) {
+            Random random = new Random(7);
+            byte[] block = new byte[1 << 20];
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        File target = DIR.resolve("target.bin").toFile();
+
+        double loop = 0;
+        double channel = 0;
+        double handler = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            loop = Math.max(loop, streamLoop(source, target));
+            channel = Math.max(channel, channelTransfer(source, target));
+            handler = Math.max(handler, messageHandler(source, r));
+        }
+        System.out.printf("[Bench] %d MB file, best of %d%n", size >> 20, ROUNDS);
+        System.out.printf("[Bench] 4 KB stream loop          %7.1f MB/s%n", loop);
+        System.out.printf("[Bench] transferTo/transferFrom   %7.1f MB/s%n", channel);
+        System.out.printf("[Bench] MessageHandler.sendFile   %7.1f MB/s%n", handler);
+    }
+
+    /** The transfer loop MessageHandler used before channels: 4 KB at a time on both sides. */
+    private static double streamLoop(File source, File target) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> {
+                try (Socket s = server.accept(); InputStream in = s.getInputStream();
+                     OutputStream out = new FileOutputStream(target)) {
+                    byte[] buf = new byte[4096];
+                    long total = 0;
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        out.write(buf, 0, n);
+                        total += n;
+                    }
+                    return total;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            long t0 = System.nanoTime();
+            try (Socket s = new Socket("127.0.0.1", server.getLocalPort()); OutputStream out = s.getOutputStream();
+                 InputStream in = new FileInputStream(source)) {
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+            assertEquals(source.length(), (long) received.get(5, TimeUnit.MINUTES));
+            return mbPerSecond(source.length(), System.nanoTime() - t0);
+        }
+    }
+
+    private static double channelTransfer(File source, File target) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            long size = source.length();
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> {
+                try (SocketChannel s = server.accept();
+                     FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long total = 0;
+                    while (total < size) {
+                        long n = out.transferFrom(s, total, size - total);
+                        if (n == 0) break;
+                        total += n;
+                    }
+                    return total;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            long t0 = System.nanoTime();
+            try (SocketChannel s = SocketChannel.open(server.getLocalAddress());
+                 FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                long pos = 0;
+                while (pos < size) {
+                    pos += in.transferTo(pos, size - pos, s);
+                }
+            }
+            assertEquals(size, (long) received.get(5, TimeUnit.MINUTES));
+            return mbPerSecond(size, System.nanoTime() - t0);
+        }
+    }
+
+    /** The real send path; a fresh receiver each round so the file is not already stored. */
+    private static double messageHandler(File source, int round) throws Exception {
+        CompletableFuture<Long> received = new CompletableFuture<>();
+        ServerSocket bobSocket = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0)).socket();
+        new MessageHandler("bob" + round, bobSocket, f -> { },
+                (sender, groupId, filename, hash, path, size) -> received.complete(size));
+        ServerSocket aliceSocket = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0)).socket();
+        MessageHandler alice = new MessageHandler("alice" + round, aliceSocket, f -> { }, (s, g, n, h, p, sz) -> { });
+
+        long t0 = System.nanoTime();
+        alice.sendFile("127.0.0.1:" + bobSocket.getLocalPort(), source.getPath());
+        assertEquals(source.length(), (long) received.get(5, TimeUnit.MINUTES));
+        double rate = mbPerSecond(source.length(), System.nanoTime() - t0);
+        // lần sau phải nhận lại từ đầu, không được trả FILE_DONE vì blob đã có
+        try (Stream<Path> files = Files.walk(DIR.resolve("data"))) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        return rate;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}